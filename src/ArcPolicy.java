@@ -0,0 +1,198 @@
+/**
+ * The Adaptive Replacement Cache (ARC) policy of Megiddo and Modha. Resident
+ * blocks are split between T1, blocks referenced once since they were
+ * loaded, and T2, blocks referenced at least twice. Each has a ghost list,
+ * B1 and B2, remembering the numbers of blocks recently evicted from it.
+ * Reloading a block remembered in B1 means T1 was too small, so the target
+ * size p of T1 grows; reloading one remembered in B2 shrinks it. Victims come
+ * from T1 while it is larger than p, otherwise from T2, so the split between
+ * recency and frequency tunes itself to the workload.
+ * The pool chooses the victim before it says which block is coming in, so p
+ * is adapted when the block is admitted rather than before the eviction.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class ArcPolicy implements ReplacementPolicy {
+    private Queue once;
+    private Queue twice;
+    private Queue onceGhosts;
+    private Queue twiceGhosts;
+    private int target;
+    private int capacity;
+
+    /**
+     * Constructs a new ArcPolicy with an initial T1 target of zero.
+     *
+     * @param capacity
+     *            The maximum number of buffers the policy can hold.
+     */
+    public ArcPolicy(int capacity) {
+        this.capacity = capacity;
+        once = new Queue(capacity);
+        twice = new Queue(capacity);
+        onceGhosts = new Queue(capacity);
+        twiceGhosts = new Queue(capacity);
+        target = 0;
+    }
+
+
+    /**
+     * Searches for the buffer holding a block. Any hit moves the block to the
+     * most recently used end of T2.
+     *
+     * @param pos
+     *            The block position to search for.
+     * @return The buffer holding the block, or null if it is not resident.
+     */
+    @Override
+    public Buffer search(int pos) {
+        Buffer found = twice.search(pos);
+        if (found == null) {
+            found = once.remove(pos);
+            if (found != null) {
+                twice.enqueue(found);
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer get(int pos) {
+        Buffer found = twice.get(pos);
+        return found == null ? once.get(pos) : found;
+    }
+
+
+    /**
+     * Admits a newly loaded buffer. A block remembered in a ghost list adapts
+     * the T1 target and goes to T2; any other block goes to T1.
+     *
+     * @param buff
+     *            The buffer to admit.
+     */
+    @Override
+    public void enqueue(Buffer buff) {
+        int pos = buff.getPosition();
+        if (pos >= 0 && onceGhosts.remove(pos) != null) {
+            int step = Math.max(1, twiceGhosts.getSize() / Math.max(1,
+                onceGhosts.getSize()));
+            target = Math.min(capacity, target + step);
+            twice.enqueue(buff);
+        }
+        else if (pos >= 0 && twiceGhosts.remove(pos) != null) {
+            int step = Math.max(1, onceGhosts.getSize() / Math.max(1,
+                twiceGhosts.getSize()));
+            target = Math.max(0, target - step);
+            twice.enqueue(buff);
+        }
+        else {
+            once.enqueue(buff);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer peekVictim() {
+        return victimQueue().peekVictim();
+    }
+
+
+    /**
+     * Evicts the victim and remembers its block in the matching ghost list.
+     *
+     * @return The evicted buffer, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer dequeue() {
+        Queue from = victimQueue();
+        Buffer victim = from.dequeue();
+        if (victim != null && victim.getPosition() >= 0) {
+            remember(from == once ? onceGhosts : twiceGhosts, victim
+                .getPosition());
+        }
+        return victim;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer recycle(int pos) {
+        Buffer victim = dequeue();
+        if (victim == null) {
+            return null;
+        }
+        victim.setPosition(pos);
+        victim.setDirty(false);
+        enqueue(victim);
+        return victim;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSize() {
+        return once.getSize() + twice.getSize();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Chooses the list the next victim comes from: T1 while it is larger than
+     * its target or T2 is empty, T2 otherwise.
+     *
+     * @return The list to evict from.
+     */
+    private Queue victimQueue() {
+        if (once.getSize() > 0 && (once.getSize() > target || twice
+            .getSize() == 0)) {
+            return once;
+        }
+        return twice;
+    }
+
+
+    /**
+     * Remembers an evicted block in a ghost list, keeping T1 plus B1 and the
+     * two ghost lists together within the capacity.
+     *
+     * @param ghosts
+     *            The ghost list to add to.
+     * @param pos
+     *            The block position to remember.
+     */
+    private void remember(Queue ghosts, int pos) {
+        ghosts.enqueue(new Buffer(null, pos));
+        while (once.getSize() + onceGhosts.getSize() > capacity) {
+            onceGhosts.dequeue();
+        }
+        while (onceGhosts.getSize() + twiceGhosts.getSize() > capacity) {
+            if (twiceGhosts.getSize() > 0) {
+                twiceGhosts.dequeue();
+            }
+            else {
+                onceGhosts.dequeue();
+            }
+        }
+    }
+}
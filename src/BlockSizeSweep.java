@@ -0,0 +1,197 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds the block size that suits a storage device best. For every power of
+ * two from MIN_BLOCK_SIZE to MAX_BLOCK_SIZE, a file of the same records is
+ * generated in the directory under test, cut into blocks of that size, and
+ * two things are measured: the throughput of reading the whole file one
+ * block at a time in random order, and the time Quicksort takes to sort it
+ * with the same memory budget, which gives fewer, larger buffers as the
+ * block size grows. The best time of the repetitions is kept for each size,
+ * and the sizes with the highest read throughput and the fastest sort are
+ * reported at the end. Every sorted file is verified in parallel against
+ * the multiset hash of the file before the sort.
+ * The file should be larger than the page cache, or the cache dropped
+ * between runs, for the read figures to describe the device rather than
+ * memory.
+ * Usage: java BlockSizeSweep [directory] [file MB] [memory MB]
+ * [repetitions] [Quicksort options...]
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class BlockSizeSweep {
+    private static final int MIN_BLOCK_SIZE = 4096;
+    private static final int MAX_BLOCK_SIZE = 1 << 20;
+    private static final long SEED = 5040;
+    private static final int THREADS = Runtime.getRuntime()
+        .availableProcessors();
+
+    /**
+     * Runs the sweep, printing one line per block size and the best sizes.
+     *
+     * @param arguments
+     *            Optional directory, file size in megabytes, memory budget
+     *            in megabytes and number of repetitions, followed by any
+     *            options to sort with, such as -prefetch=4.
+     * @throws Exception
+     *             If a file cannot be generated, read, sorted or checked.
+     */
+    public static void main(String[] arguments) throws Exception {
+        File directory = new File(arguments.length > 0 ? arguments[0] : ".");
+        long fileBytes = (arguments.length > 1
+            ? Long.parseLong(arguments[1])
+            : 8) << 20;
+        long memoryBytes = (arguments.length > 2
+            ? Long.parseLong(arguments[2])
+            : 2) << 20;
+        int repetitions = arguments.length > 3
+            ? Integer.parseInt(arguments[3])
+            : 1;
+        String[] options = arguments.length > 4
+            ? Arrays.copyOfRange(arguments, 4, arguments.length)
+            : new String[0];
+        File data = new File(directory, "sweep.bin");
+        File log = new File(directory, "sweep-stats.txt");
+
+        System.out.println("file=" + (fileBytes >> 20) + "MB memory="
+            + (memoryBytes >> 20) + "MB in " + directory.getAbsolutePath());
+        int bestRead = 0;
+        double bestThroughput = 0;
+        int bestSort = 0;
+        long bestSortNanos = Long.MAX_VALUE;
+        for (int size = MIN_BLOCK_SIZE; size <= MAX_BLOCK_SIZE; size *= 2) {
+            RecordLayout layout = RecordLayout.DEFAULT.withBlockSize(size);
+            int blocks = (int)Math.max(1, fileBytes / size);
+            int buffers = (int)Math.max(2, memoryBytes / size);
+            double throughput = 0;
+            long sortNanos = Long.MAX_VALUE;
+            Statistics best = null;
+            for (int r = 0; r < repetitions; r++) {
+                generate(data, blocks, layout);
+                long hash = CheckFile.multisetHash(data.getPath(), layout,
+                    THREADS);
+                throughput = Math.max(throughput, readThroughput(data, size));
+                Statistics stats = sort(data, log, buffers, size, options);
+                if (!CheckFile.verify(data.getPath(), layout, THREADS,
+                    hash)) {
+                    throw new IllegalStateException("Not sorted with "
+                        + size + "-byte blocks");
+                }
+                if (stats.getExecutionNanos() < sortNanos) {
+                    sortNanos = stats.getExecutionNanos();
+                    best = stats;
+                }
+            }
+            System.out.println("block=" + size + " buffers=" + buffers
+                + String.format(" read=%.1fMB/s", throughput) + " sort="
+                + sortNanos / 1000000 + "ms reads=" + best.getReads()
+                + " writes=" + best.getWrites());
+            if (throughput > bestThroughput) {
+                bestThroughput = throughput;
+                bestRead = size;
+            }
+            if (sortNanos < bestSortNanos) {
+                bestSortNanos = sortNanos;
+                bestSort = size;
+            }
+        }
+        System.out.println("best block size for random reads: " + bestRead);
+        System.out.println("best block size for sorting: " + bestSort);
+        data.delete();
+        log.delete();
+    }
+
+
+    /**
+     * Generates the sweep's input, the same records whatever the block size.
+     *
+     * @param data
+     *            The file to generate.
+     * @param blocks
+     *            The number of blocks in the file.
+     * @param layout
+     *            The layout giving the block size.
+     */
+    private static void generate(File data, int blocks, RecordLayout layout) {
+        FileGenerator fg = new FileGenerator(data.getPath(), blocks, layout);
+        fg.setSeed(SEED);
+        fg.generateFile(FileType.BINARY);
+    }
+
+
+    /**
+     * Reads every block of a file once, in random order.
+     *
+     * @param data
+     *            The file to read.
+     * @param size
+     *            The block size.
+     * @return The throughput in megabytes per second.
+     * @throws Exception
+     *             If the file cannot be read.
+     */
+    private static double readThroughput(File data, int size)
+        throws Exception {
+        RandomAccessFile file = new RandomAccessFile(data, "r");
+        int blocks = (int)(file.length() / size);
+        int[] order = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(SEED);
+        for (int i = blocks - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        byte[] block = new byte[size];
+        long start = System.nanoTime();
+        for (int i = 0; i < blocks; i++) {
+            file.seek((long)order[i] * size);
+            file.readFully(block);
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        file.close();
+        return (double)blocks * size / (1 << 20) / (elapsed / 1e9);
+    }
+
+
+    /**
+     * Sorts the file through Quicksort with the given block size.
+     *
+     * @param data
+     *            The file to sort.
+     * @param log
+     *            The statistics file Quicksort appends to.
+     * @param buffers
+     *            The number of buffers, each one block.
+     * @param size
+     *            The block size.
+     * @param options
+     *            Any further options to sort with.
+     * @return The statistics of the sort.
+     * @throws Exception
+     *             If the file cannot be sorted.
+     */
+    private static Statistics sort(
+        File data,
+        File log,
+        int buffers,
+        int size,
+        String[] options)
+        throws Exception {
+        String[] arguments = new String[4 + options.length];
+        arguments[0] = data.getPath();
+        arguments[1] = String.valueOf(buffers);
+        arguments[2] = log.getPath();
+        arguments[3] = "-blocksize=" + size;
+        System.arraycopy(options, 0, arguments, 4, options.length);
+        return Quicksort.run(arguments);
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table that maps block indices to whatever a
+ * replacement policy keeps per block, such as the list node holding the
+ * block in the buffer pool queue.
+ * Keys are primitive ints so a lookup neither boxes nor allocates, and
+ * removal uses backward-shift deletion so no tombstones accumulate as blocks
+ * cycle through the pool.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ *
+ * @param <T>
+ *            The type of the value stored for each block.
+ */
+public class BlockTable<T> {
+    private static final int EMPTY = -1;
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Constructs a new BlockTable sized for the expected number of blocks.
+     * The table is kept at most half full so probe sequences stay short.
+     *
+     * @param expected
+     *            The maximum number of blocks expected to be indexed at once.
+     */
+    public BlockTable(int expected) {
+        int capacity = 2;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+
+    /**
+     * Finds the value stored for the given block.
+     *
+     * @param block
+     *            The block index to look up.
+     * @return The value stored for the block, or null if it is not indexed.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int block) {
+        int slot = slotOf(block);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == block) {
+                return (T)values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+
+    /**
+     * Associates a block with a value, replacing any previous association for
+     * the same block.
+     *
+     * @param block
+     *            The block index, which must not be negative.
+     * @param value
+     *            The value to store for the block.
+     */
+    public void put(int block, T value) {
+        int slot = slotOf(block);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == block) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = block;
+        values[slot] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+
+    /**
+     * Removes the association for a block, if there is one.
+     *
+     * @param block
+     *            The block index to remove.
+     * @return The value that was associated with the block, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(int block) {
+        int slot = slotOf(block);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == block) {
+                T removed = (T)values[slot];
+                shiftBack(slot);
+                size--;
+                return removed;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+
+    /**
+     * Gets the number of blocks currently indexed.
+     *
+     * @return The number of indexed blocks.
+     */
+    public int getSize() {
+        return size;
+    }
+
+
+    /**
+     * Closes the gap left at a removed slot by moving later entries of the
+     * same probe run back into it.
+     *
+     * @param gap
+     *            The slot that was just vacated.
+     */
+    private void shiftBack(int gap) {
+        int slot = (gap + 1) & mask;
+        while (keys[slot] != EMPTY) {
+            int home = slotOf(keys[slot]);
+            // Move the entry only if its home slot does not lie cyclically
+            // between the gap and its current slot.
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+    }
+
+
+    /**
+     * Doubles the table and re-inserts every entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[keys.length];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], (T)oldValues[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Computes the home slot of a block by mixing its bits, so that runs of
+     * consecutive block numbers spread across the table.
+     *
+     * @param block
+     *            The block index.
+     * @return The home slot for the block.
+     */
+    private int slotOf(int block) {
+        int h = block * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -1,5 +1,3 @@
-import java.nio.ByteBuffer;
-
 /**
  * Represents a buffer that stores a segment of data, typically used for
  * buffering data blocks
@@ -17,7 +15,9 @@ import java.nio.ByteBuffer;
  * @version {ibrahimk} {franciscawood}
  */
 public class Buffer {
+    private static final long MAX_SLAB_BYTES = Integer.MAX_VALUE - 8;
     private byte[] bytes;
+    private int offset;
     private boolean dirty;
     private int pos;
 
@@ -36,13 +36,59 @@ public class Buffer {
             this.bytes = new byte[bytes.length];
             setByteArray(bytes);
         }
+        offset = 0;
         dirty = false;
         setPosition(pos);
     }
 
 
     /**
-     * Retrieves the byte array stored in this buffer.
+     * Constructs a new Buffer that is a frame within a shared slab. The slab
+     * is not copied; the buffer reads and writes the slab directly starting
+     * at the given offset. The buffer is initially marked as not dirty.
+     *
+     * @param slab
+     *            The shared byte array that holds this buffer's data.
+     * @param offset
+     *            The index in the slab where this buffer's data begins.
+     * @param pos
+     *            The position or identifier of the buffer.
+     */
+    public Buffer(byte[] slab, int offset, int pos) {
+        this.bytes = slab;
+        this.offset = offset;
+        dirty = false;
+        setPosition(pos);
+    }
+
+
+    /**
+     * Gets the number of bytes in a slab holding the given number of frames,
+     * checking that they fit in one array.
+     *
+     * @param frameCount
+     *            The number of frames in the slab.
+     * @param blockSize
+     *            The number of bytes in each frame.
+     * @return The size of the slab.
+     * @throws IllegalArgumentException
+     *             If the slab would be larger than the largest array.
+     */
+    public static int slabSize(int frameCount, int blockSize) {
+        long size = (long)frameCount * blockSize;
+        if (size > MAX_SLAB_BYTES) {
+            throw new IllegalArgumentException(frameCount + " buffers of "
+                + blockSize + " bytes take " + size
+                + " bytes, more than one array can hold (" + MAX_SLAB_BYTES
+                + ")");
+        }
+        return (int)size;
+    }
+
+
+    /**
+     * Retrieves the byte array stored in this buffer. For a slab frame this
+     * is the whole slab, and the buffer's data starts at {@link #getOffset()}.
      *
      * @return The byte array representing the data in the buffer.
      */
@@ -51,6 +97,17 @@ public class Buffer {
     }
 
 
+    /**
+     * Retrieves the index in the byte array where this buffer's data begins.
+     *
+     * @return The offset of the buffer's data, which is 0 unless the buffer
+     *         is a slab frame.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+
     /**
      * Sets or updates the byte array stored in this buffer with new data.
      *
@@ -58,7 +115,7 @@ public class Buffer {
      *            The new byte array data to store in the buffer.
      */
     public void setByteArray(byte[] newData) {
-        System.arraycopy(newData, 0, this.bytes, 0, newData.length);
+        System.arraycopy(newData, 0, this.bytes, offset, newData.length);
     }
 
 
@@ -109,17 +166,49 @@ public class Buffer {
     /**
      * Extracts a short value (key) from the buffer at the specified index.
      * This method is typically used to retrieve specific pieces of data, such
-     * as keys, from the buffer.
+     * as keys, from the buffer. The key is assembled from its two big-endian
+     * bytes directly, so nothing is allocated.
      *
      * @param id
      *            The index within the buffer from which to extract the key.
      * @return The extracted short value (key) from the buffer.
      */
     public short extractKey(int id) {
-        short key = 0;
-        ByteBuffer bbuffer = ByteBuffer.allocate(2);
-        bbuffer.put(bytes, id, 2);
-        key = bbuffer.getShort(0);
-        return key;
+        int at = offset + id;
+        return (short)((bytes[at] << 8) | (bytes[at + 1] & 0xFF));
+    }
+
+
+    /**
+     * Extracts a whole four-byte record from the buffer at the specified
+     * index, packed big-endian into an int so that its key is the high half.
+     *
+     * @param id
+     *            The index within the buffer where the record begins.
+     * @return The record packed into an int.
+     */
+    public int extractRecord(int id) {
+        int at = offset + id;
+        return (bytes[at] << 24) | ((bytes[at + 1] & 0xFF) << 16)
+            | ((bytes[at + 2] & 0xFF) << 8) | (bytes[at + 3] & 0xFF);
+    }
+
+
+    /**
+     * Stores a whole four-byte record packed in an int into the buffer at the
+     * specified index and marks the buffer as dirty.
+     *
+     * @param id
+     *            The index within the buffer where the record begins.
+     * @param record
+     *            The record packed big-endian into an int.
+     */
+    public void storeRecord(int id, int record) {
+        int at = offset + id;
+        bytes[at] = (byte)(record >>> 24);
+        bytes[at + 1] = (byte)(record >>> 16);
+        bytes[at + 2] = (byte)(record >>> 8);
+        bytes[at + 3] = (byte)record;
+        dirty = true;
     }
 }
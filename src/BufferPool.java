@@ -0,0 +1,221 @@
+import java.io.IOException;
+
+/**
+ * Defines the record-level access that the sorting code needs from a buffer
+ * pool, independent of how blocks are actually brought into memory.
+ * Positions are record indices in the pool's RecordLayout, which by default
+ * has four-byte records whose first two bytes are the key. Record indices
+ * and file lengths are longs, so files beyond 2 GB can be sorted. The
+ * methods that move whole records as ints need a packed layout.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public interface BufferPool {
+
+    /**
+     * Fetches the key (short value) of the record at a specific index.
+     *
+     * @param index
+     *            The index of the record whose key is to be fetched.
+     * @return The fetched key.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    short fetchKey(long index) throws IOException;
+
+
+    /**
+     * Retrieves bytes of the record at a position and stores them into a
+     * given array.
+     *
+     * @param fromArray
+     *            The destination byte array where bytes will be copied.
+     * @param bytesCopied
+     *            The number of bytes to copy.
+     * @param destinationPos
+     *            The record position from which the bytes are retrieved.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void retrieveBytes(byte[] fromArray, int bytesCopied, long destinationPos)
+        throws IOException;
+
+
+    /**
+     * Stores bytes from a given array into the record at a position.
+     *
+     * @param fromArray
+     *            The source byte array from which bytes are copied.
+     * @param bytesCopied
+     *            The number of bytes to copy.
+     * @param destinationPos
+     *            The record position where the bytes should be stored.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void storeBytes(byte[] fromArray, int bytesCopied, long destinationPos)
+        throws IOException;
+
+
+    /**
+     * Reads the whole record at an index, packed big-endian into an int so
+     * that its key is the high half. Nothing is allocated.
+     *
+     * @param index
+     *            The index of the record to read.
+     * @return The record packed into an int.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    int readRecord(long index) throws IOException;
+
+
+    /**
+     * Writes a whole record packed big-endian in an int to an index.
+     *
+     * @param index
+     *            The index of the record to write.
+     * @param record
+     *            The record packed into an int.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void writeRecord(long index, int record) throws IOException;
+
+
+    /**
+     * Exchanges two records in place. Identical records are left untouched,
+     * so no block is marked modified for them.
+     *
+     * @param first
+     *            The index of the first record.
+     * @param second
+     *            The index of the second record.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void swapRecords(long first, long second) throws IOException;
+
+
+    /**
+     * Reads a run of consecutive records into an array, visiting each block
+     * the run spans once rather than once per record.
+     *
+     * @param index
+     *            The index of the first record to read.
+     * @param records
+     *            The array to fill from its start.
+     * @param count
+     *            The number of records to read.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void readRecords(long index, int[] records, int count) throws IOException;
+
+
+    /**
+     * Writes a run of consecutive records from an array, visiting each block
+     * the run spans once rather than once per record.
+     *
+     * @param index
+     *            The index of the first record to write.
+     * @param records
+     *            The array holding the records from its start.
+     * @param count
+     *            The number of records to write.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void writeRecords(long index, int[] records, int count)
+        throws IOException;
+
+
+    /**
+     * Checks whether the whole file fits in the memory the pool was given,
+     * in which case it can be sorted entirely in memory.
+     *
+     * @return true if the file is no larger than the pool.
+     */
+    boolean fitsInMemory();
+
+
+    /**
+     * Reads the whole file with one bulk read into an array of records, each
+     * packed big-endian into an int. Any modified blocks are written back
+     * first. Statistics count one read per block of the file.
+     *
+     * @return Every record of the file in file order.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    int[] readAllRecords() throws IOException;
+
+
+    /**
+     * Replaces the whole file with the given records in one bulk write, and
+     * keeps any blocks the pool still holds consistent with it. Statistics
+     * count one write per block of the file.
+     *
+     * @param records
+     *            Every record of the file, packed big-endian into ints.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    void writeAllRecords(int[] records) throws IOException;
+
+
+    /**
+     * Gets the length of the file managed by the pool.
+     *
+     * @return The file length in bytes.
+     */
+    long getFileLength();
+
+
+    /**
+     * Gets the statistics the pool counts its hits, misses, reads and writes
+     * in, which the sort also records its phase times in.
+     *
+     * @return The pool's statistics.
+     */
+    Statistics getStatistics();
+
+
+    /**
+     * Gets the block size, record size and key position of the pool's file.
+     *
+     * @return The pool's record layout.
+     */
+    RecordLayout getLayout();
+
+
+    /**
+     * Checks whether the block holding a record is in memory, without
+     * loading it or counting as a reference to it.
+     *
+     * @param index
+     *            The record index.
+     * @return true if reading the record would not touch the disk.
+     */
+    boolean isResident(long index);
+
+
+    /**
+     * Writes every modified block back to disk.
+     *
+     * @throws IOException
+     *             If an I/O error occurs during the flush operation.
+     */
+    void flush() throws IOException;
+
+
+    /**
+     * Closes the file associated with this buffer pool.
+     *
+     * @throws IOException
+     *             If an I/O error occurs during the close operation.
+     */
+    void closeFileStream() throws IOException;
+}
@@ -1,14 +1,32 @@
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * CheckFile: Check to see if a file is sorted. This assumes that each record
- * is a pair of short ints with the first short being the key value
+ * is a pair of short ints with the first short being the key value, or
+ * else follows a given RecordLayout.
+ *
+ * The parallel checks cut the file into chunks of whole records, map each
+ * chunk into memory and scan the chunks on a fork/join pool. Each scan
+ * notes whether its chunk is in order, its first and last keys, and the
+ * sum of a 64-bit mix of every record in it. The file is sorted if every
+ * chunk is and no chunk's last key is above the next chunk's first key.
+ * The sum of the mixes is a multiset hash: it does not depend on the order
+ * of the records, only on which records there are and how often, so the
+ * hash of the sorted file equals the hash taken before the sort when the
+ * sort only moved records around.
  *
  * @author CS3114/5040 Instructors and TAs
  * @version {ibrahimk} {franciscawood}
  */
 
 public class CheckFile {
+    private static final int MIN_CHUNK_RECORDS = 1024;
+    private static final long MAX_CHUNK_BYTES = 1 << 26;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
 
     /**
      * This method checks a file to see if it is properly sorted.
@@ -20,12 +38,32 @@ public class CheckFile {
      *             either an IOException or a FileNotFoundException
      */
     public static boolean check(String filename) throws Exception {
+        return check(filename, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * This method checks a file of records in the given layout to see if it
+     * is properly sorted.
+     *
+     * @param filename
+     *            a string containing the name of the file to check
+     * @param layout
+     *            the record size and key position of the file
+     * @return true if the file is sorted, false otherwise
+     * @throws Exception
+     *             either an IOException or a FileNotFoundException
+     */
+    public static boolean check(String filename, RecordLayout layout)
+        throws Exception {
+        boolean packed = layout.isPacked();
+        byte[] record = new byte[layout.getRecordSize()];
         DataInputStream dis;
         dis = new DataInputStream(new BufferedInputStream(new FileInputStream(
             filename)));
 
         boolean isError = false;
-        int reccnt = 0;
+        long reccnt = 0;
 
         // smallest short possible, nothing is less than it:
         short prev = Short.MIN_VALUE;
@@ -34,9 +72,15 @@ public class CheckFile {
         try {
             while (true) {
                 reccnt++;
-                curr = dis.readShort(); // reads the key from file.
-                dis.readShort(); // reads and ignores value.
-                // or we could do: dis.skipBytes(2);
+                if (packed) {
+                    curr = dis.readShort(); // reads the key from file.
+                    dis.readShort(); // reads and ignores value.
+                    // or we could do: dis.skipBytes(2);
+                }
+                else {
+                    dis.readFully(record);
+                    curr = layout.keyAt(record, 0);
+                }
                 if (prev > curr) {
                     isError = true;
                 }
@@ -49,4 +93,321 @@ public class CheckFile {
         dis.close();
         return !isError;
     }
+
+
+    /**
+     * Checks whether a file of records in the given layout is sorted,
+     * scanning memory-mapped chunks of it in parallel.
+     *
+     * @param filename
+     *            a string containing the name of the file to check
+     * @param layout
+     *            the record size and key position of the file
+     * @param threads
+     *            the number of threads to scan with
+     * @return true if the file is sorted, false otherwise
+     * @throws IOException
+     *             If the file cannot be mapped.
+     */
+    public static boolean checkParallel(
+        String filename,
+        RecordLayout layout,
+        int threads)
+        throws IOException {
+        return scan(filename, layout, threads).isSorted();
+    }
+
+
+    /**
+     * Computes the multiset hash of the records in a file, scanning
+     * memory-mapped chunks of it in parallel. Files holding the same
+     * records, in any order, have the same hash.
+     *
+     * @param filename
+     *            a string containing the name of the file to hash
+     * @param layout
+     *            the record size of the file
+     * @param threads
+     *            the number of threads to scan with
+     * @return the hash
+     * @throws IOException
+     *             If the file cannot be mapped.
+     */
+    public static long multisetHash(
+        String filename,
+        RecordLayout layout,
+        int threads)
+        throws IOException {
+        return scan(filename, layout, threads).getHash();
+    }
+
+
+    /**
+     * Checks in one parallel pass that a file is sorted and holds the
+     * records a hash was taken of before the sort.
+     *
+     * @param filename
+     *            a string containing the name of the file to check
+     * @param layout
+     *            the record size and key position of the file
+     * @param threads
+     *            the number of threads to scan with
+     * @param expectedHash
+     *            the multisetHash of the file before it was sorted
+     * @return true if the file is sorted and a permutation of the records
+     *         hashed, false otherwise
+     * @throws IOException
+     *             If the file cannot be mapped.
+     */
+    public static boolean verify(
+        String filename,
+        RecordLayout layout,
+        int threads,
+        long expectedHash)
+        throws IOException {
+        Scan scan = scan(filename, layout, threads);
+        return scan.isSorted() && scan.getHash() == expectedHash;
+    }
+
+
+    /**
+     * Maps a file chunk by chunk and scans the chunks in parallel. Any
+     * bytes after the last whole record are ignored.
+     *
+     * @param filename
+     *            the name of the file to scan
+     * @param layout
+     *            the record size and key position of the file
+     * @param threads
+     *            the number of threads to scan with
+     * @return the results of every chunk
+     * @throws IOException
+     *             If the file cannot be mapped.
+     */
+    private static Scan scan(
+        String filename,
+        RecordLayout layout,
+        int threads)
+        throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            int recordSize = layout.getRecordSize();
+            long records = file.length() / recordSize;
+            long perChunk = Math.max(MIN_CHUNK_RECORDS, (records + 4L
+                * threads - 1) / (4L * threads));
+            perChunk = Math.min(perChunk, MAX_CHUNK_BYTES / recordSize);
+            int chunks = (int)((records + perChunk - 1) / perChunk);
+            Scan scan = new Scan(file.getChannel(), layout, records,
+                perChunk, chunks);
+            ForkJoinPool workers = new ForkJoinPool(Math.max(1, threads));
+            try {
+                workers.invoke(new ScanTask(scan, 0, chunks));
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            finally {
+                workers.shutdown();
+            }
+            System.out.println(records + " records processed");
+            return scan;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+
+    /**
+     * Mixes 64 bits into 64 well-spread bits, with the finalizer of the
+     * SplitMix64 generator.
+     *
+     * @param value
+     *            the bits to mix
+     * @return the mixed bits
+     */
+    private static long mix(long value) {
+        long z = value + GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+
+    /**
+     * The chunks of one parallel scan and what each one held.
+     */
+    private static class Scan {
+        private final FileChannel channel;
+        private final RecordLayout layout;
+        private final long records;
+        private final long perChunk;
+        private final boolean[] inOrder;
+        private final short[] firstKeys;
+        private final short[] lastKeys;
+        private final long[] hashes;
+
+        /**
+         * Constructs a new Scan of a file's chunks.
+         *
+         * @param channel
+         *            the channel of the file
+         * @param layout
+         *            the record size and key position of the file
+         * @param records
+         *            the number of whole records in the file
+         * @param perChunk
+         *            the number of records in every chunk but the last
+         * @param chunks
+         *            the number of chunks
+         */
+        Scan(
+            FileChannel channel,
+            RecordLayout layout,
+            long records,
+            long perChunk,
+            int chunks) {
+            this.channel = channel;
+            this.layout = layout;
+            this.records = records;
+            this.perChunk = perChunk;
+            inOrder = new boolean[chunks];
+            firstKeys = new short[chunks];
+            lastKeys = new short[chunks];
+            hashes = new long[chunks];
+        }
+
+
+        /**
+         * Maps one chunk and scans its records in order.
+         *
+         * @param chunk
+         *            the index of the chunk
+         * @throws IOException
+         *             If the chunk cannot be mapped.
+         */
+        void scanChunk(int chunk) throws IOException {
+            int recordSize = layout.getRecordSize();
+            long first = chunk * perChunk;
+            int count = (int)Math.min(perChunk, records - first);
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+                first * recordSize, (long)count * recordSize);
+            boolean packed = layout.isPacked();
+            int keyOffset = layout.getKeyOffset();
+            boolean wideKey = layout.getKeyWidth() == 2;
+            boolean sorted = true;
+            long hash = 0;
+            short prev = Short.MIN_VALUE;
+            short curr = prev;
+            for (int i = 0; i < count; i++) {
+                int start = i * recordSize;
+                if (packed) {
+                    int record = bytes.getInt(start);
+                    curr = (short)(record >> 16);
+                    hash += mix(record);
+                }
+                else {
+                    curr = wideKey
+                        ? bytes.getShort(start + keyOffset)
+                        : bytes.get(start + keyOffset);
+                    long h = 0xcbf29ce484222325L;
+                    for (int b = 0; b < recordSize; b++) {
+                        h = (h ^ (bytes.get(start + b) & 0xFF))
+                            * 0x100000001b3L;
+                    }
+                    hash += mix(h);
+                }
+                if (i == 0) {
+                    firstKeys[chunk] = curr;
+                }
+                else if (prev > curr) {
+                    sorted = false;
+                }
+                prev = curr;
+            }
+            lastKeys[chunk] = curr;
+            inOrder[chunk] = sorted;
+            hashes[chunk] = hash;
+        }
+
+
+        /**
+         * Checks whether every chunk is in order and so is every boundary
+         * between two chunks.
+         *
+         * @return true if the file is sorted
+         */
+        boolean isSorted() {
+            for (int c = 0; c < inOrder.length; c++) {
+                if (!inOrder[c] || c > 0 && lastKeys[c - 1] > firstKeys[c]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        /**
+         * Adds up the hashes of the chunks.
+         *
+         * @return the multiset hash of the file
+         */
+        long getHash() {
+            long hash = 0;
+            for (long chunkHash : hashes) {
+                hash += chunkHash;
+            }
+            return hash;
+        }
+    }
+
+
+    /**
+     * A fork/join task that scans a range of chunks, splitting it in half
+     * until one chunk is left.
+     */
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Scan scan;
+        private final int from;
+        private final int to;
+
+        /**
+         * Constructs a new ScanTask for a range of chunks.
+         *
+         * @param scan
+         *            the scan the chunks belong to
+         * @param from
+         *            the index of the first chunk
+         * @param to
+         *            one past the index of the last chunk
+         */
+        ScanTask(Scan scan, int from, int to) {
+            this.scan = scan;
+            this.from = from;
+            this.to = to;
+        }
+
+
+        /**
+         * Scans the chunks, forking both halves of a range of more than one.
+         */
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScanTask(scan, from, middle), new ScanTask(scan,
+                    middle, to));
+                return;
+            }
+            if (to > from) {
+                try {
+                    scan.scanChunk(from);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,193 @@
+/**
+ * The CLOCK (second chance) replacement policy. Buffers sit in a fixed ring
+ * of frames, each with a reference bit that is set on every hit. To find a
+ * victim the clock hand sweeps the ring, clearing set bits and stopping at
+ * the first frame whose bit is already clear. A hit costs a single bit write,
+ * with no list manipulation at all.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private Buffer[] frames;
+    private boolean[] referenced;
+    private Integer[] slotIds;
+    private BlockTable<Integer> index;
+    private int hand;
+    private int size;
+    private int capacity;
+
+    /**
+     * Constructs a new ClockPolicy with a ring of the given number of frames.
+     *
+     * @param capacity
+     *            The maximum number of buffers the policy can hold.
+     */
+    public ClockPolicy(int capacity) {
+        this.capacity = capacity;
+        frames = new Buffer[capacity];
+        referenced = new boolean[capacity];
+        slotIds = new Integer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slotIds[i] = i;
+        }
+        index = new BlockTable<Integer>(capacity);
+        hand = 0;
+        size = 0;
+    }
+
+
+    /**
+     * Searches for the buffer holding a block and sets its reference bit.
+     *
+     * @param pos
+     *            The block position to search for.
+     * @return The buffer holding the block, or null if it is not resident.
+     */
+    @Override
+    public Buffer search(int pos) {
+        Integer slot = index.get(pos);
+        if (slot == null) {
+            return null;
+        }
+        referenced[slot] = true;
+        return frames[slot];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer get(int pos) {
+        Integer slot = index.get(pos);
+        return slot == null ? null : frames[slot];
+    }
+
+
+    /**
+     * Places a newly loaded buffer in the first empty frame at or after the
+     * clock hand. Its reference bit starts clear.
+     *
+     * @param buff
+     *            The buffer to admit.
+     */
+    @Override
+    public void enqueue(Buffer buff) {
+        while (frames[hand] != null) {
+            hand = (hand + 1) % capacity;
+        }
+        place(hand, buff);
+        size++;
+    }
+
+
+    /**
+     * Sweeps the clock hand to the next frame whose reference bit is clear,
+     * giving every referenced frame it passes a second chance.
+     *
+     * @return The next victim, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer peekVictim() {
+        if (size == 0) {
+            return null;
+        }
+        while (frames[hand] == null || referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % capacity;
+        }
+        return frames[hand];
+    }
+
+
+    /**
+     * Evicts the buffer under the clock hand after sweeping to it.
+     *
+     * @return The evicted buffer, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer dequeue() {
+        Buffer victim = peekVictim();
+        if (victim == null) {
+            return null;
+        }
+        unindex(hand);
+        frames[hand] = null;
+        size--;
+        return victim;
+    }
+
+
+    /**
+     * Evicts the buffer under the clock hand and reuses its frame for a new
+     * block, then advances the hand past it.
+     *
+     * @param pos
+     *            The block position the recycled buffer will hold.
+     * @return The recycled buffer, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer recycle(int pos) {
+        Buffer victim = peekVictim();
+        if (victim == null) {
+            return null;
+        }
+        unindex(hand);
+        victim.setPosition(pos);
+        victim.setDirty(false);
+        place(hand, victim);
+        hand = (hand + 1) % capacity;
+        return victim;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Puts a buffer in a frame with its reference bit clear and indexes it.
+     *
+     * @param slot
+     *            The frame to fill.
+     * @param buff
+     *            The buffer to place.
+     */
+    private void place(int slot, Buffer buff) {
+        frames[slot] = buff;
+        referenced[slot] = false;
+        if (buff.getPosition() >= 0) {
+            index.put(buff.getPosition(), slotIds[slot]);
+        }
+    }
+
+
+    /**
+     * Removes the index entry for the buffer in a frame, if it has one.
+     *
+     * @param slot
+     *            The frame whose buffer is leaving.
+     */
+    private void unindex(int slot) {
+        int pos = frames[slot].getPosition();
+        if (pos >= 0) {
+            index.remove(pos);
+        }
+    }
+}
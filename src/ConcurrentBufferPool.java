@@ -0,0 +1,739 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A buffer pool that any number of threads can use at once without a global
+ * lock. All frames live in one preallocated slab. The page table that maps
+ * blocks to frames is split into STRIPES tables by block index, each guarded
+ * by its own lock, so lookups of different blocks rarely wait for each
+ * other, and a lock is only held for the lookup itself, never during I/O.
+ * Every frame has a pin count. An operation pins the frame it touches,
+ * works on it without any lock, and unpins it; a pinned frame is never
+ * evicted. Eviction is CLOCK: a shared hand sweeps the frames, clearing the
+ * reference bit that each pin sets, and claims the first unpinned,
+ * unreferenced frame by swapping its pin count from zero to EXCLUSIVE with a
+ * compare-and-set. While a frame is claimed it is written back if dirty,
+ * remapped and loaded, and threads that look it up in the meantime wait
+ * for it. Before taking a stripe lock, a lookup tries the frame a small
+ * direct-mapped hint array last saw the block in; the hint is read without
+ * any lock and may be stale, which is harmless because a frame is only used
+ * once it is pinned and still holds the block. File I/O uses positional
+ * channel reads and writes, which never move a shared file pointer.
+ * Operations on different records are safe at once, even in the same
+ * block; operations on the same record are not ordered with each other.
+ * A thread never waits for a frame while it holds a pin: a swap of records
+ * in two blocks takes the second pin only if the block is resident and
+ * free, and otherwise copies the first record out, swaps it with the
+ * second and copies the result back, one pin at a time. So a thread waiting
+ * for a victim holds nothing, the frames pinned by other threads are always
+ * released, and a single frame is enough for any number of threads. The
+ * bulk whole-file reads and writes and flush must not overlap other
+ * operations.
+ * As in the other pools, only fetchKey counts hits; every load counts a
+ * miss.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class ConcurrentBufferPool implements BufferPool {
+    private static final int STRIPES = 64;
+    private static final int HINTS = 4096;
+    private static final int EXCLUSIVE = -1;
+    private static final long MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+    private RandomAccessFile disk;
+    private FileChannel channel;
+    private long diskLength;
+    private RecordLayout layout;
+    private int blockSize;
+    private int recordSize;
+    private int keyOffset;
+    private boolean wideKey;
+    private byte[] slab;
+    private Buffer[] frames;
+    private AtomicIntegerArray pins;
+    private AtomicIntegerArray referenced;
+    private AtomicInteger hand;
+    private BlockTable<Buffer>[] tables;
+    private int[] hints;
+    private ThreadLocal<byte[]> swapScratch;
+    private Statistics stats;
+
+    /**
+     * Constructs a new ConcurrentBufferPool for a file in the default record
+     * layout.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of frames in the pool.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     */
+    public ConcurrentBufferPool(RandomAccessFile file, int bufferCount)
+        throws IOException {
+        this(file, bufferCount, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * Constructs a new ConcurrentBufferPool for a file in the given record
+     * layout.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of frames in the pool.
+     * @param layout
+     *            The block size, record size and key position of the file.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     * @throws IllegalArgumentException
+     *             If the frames would be larger than the largest array.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentBufferPool(
+        RandomAccessFile file,
+        int bufferCount,
+        RecordLayout layout)
+        throws IOException {
+        disk = file;
+        channel = disk.getChannel();
+        diskLength = disk.length();
+        stats = new Statistics();
+        this.layout = layout;
+        blockSize = layout.getBlockSize();
+        recordSize = layout.getRecordSize();
+        keyOffset = layout.getKeyOffset();
+        wideKey = layout.getKeyWidth() == 2;
+        slab = new byte[Buffer.slabSize(bufferCount, blockSize)];
+        frames = new Buffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            frames[i] = new Buffer(slab, i * blockSize, -1);
+        }
+        pins = new AtomicIntegerArray(bufferCount);
+        referenced = new AtomicIntegerArray(bufferCount);
+        hand = new AtomicInteger();
+        tables = (BlockTable<Buffer>[])new BlockTable<?>[STRIPES];
+        for (int s = 0; s < STRIPES; s++) {
+            tables[s] = new BlockTable<Buffer>(bufferCount / STRIPES + 1);
+        }
+        hints = new int[HINTS];
+        Arrays.fill(hints, -1);
+        swapScratch = ThreadLocal.withInitial(() -> new byte[recordSize]);
+    }
+
+
+    /**
+     * Pins the frame holding a block, loading the block first if it is not
+     * in the pool. The frame cannot be evicted until it is unpinned.
+     *
+     * @param block
+     *            The block position.
+     * @return The frame holding the block.
+     * @throws IOException
+     *             If an I/O error occurs loading the block.
+     */
+    public Buffer pin(int block) throws IOException {
+        return pin(block, false);
+    }
+
+
+    /**
+     * Pins the frame holding a block, loading it if needed, and counts a
+     * hit if it was already in the pool and the caller asks for one.
+     *
+     * @param block
+     *            The block position.
+     * @param countHit
+     *            true if finding the block in the pool counts as a hit.
+     * @return The frame holding the block.
+     * @throws IOException
+     *             If an I/O error occurs loading the block.
+     */
+    private Buffer pin(int block, boolean countHit) throws IOException {
+        int hint = hints[block & (HINTS - 1)];
+        if (hint >= 0 && tryPin(hint, block)) {
+            if (countHit) {
+                stats.incrementHits();
+            }
+            return frames[hint];
+        }
+        BlockTable<Buffer> table = tables[block & (STRIPES - 1)];
+        while (true) {
+            Buffer found;
+            synchronized (table) {
+                found = table.get(block);
+            }
+            if (found != null) {
+                if (tryPin(slotOf(found), block)) {
+                    hints[block & (HINTS - 1)] = slotOf(found);
+                    if (countHit) {
+                        stats.incrementHits();
+                    }
+                    return found;
+                }
+                // Being loaded or evicted; look again once it settles
+                Thread.yield();
+                continue;
+            }
+            long begin = System.nanoTime();
+            int victim = claimVictim();
+            Buffer frame = frames[victim];
+            int old = frame.getPosition();
+            if (old >= 0) {
+                if (frame.isDirty()) {
+                    writeBlock(frame);
+                }
+                BlockTable<Buffer> oldTable = tables[old & (STRIPES - 1)];
+                synchronized (oldTable) {
+                    oldTable.remove(old);
+                }
+                stats.incrementEvictions();
+            }
+            synchronized (table) {
+                if (table.get(block) != null) {
+                    // Another thread loaded the block first
+                    frame.setPosition(-1);
+                    pins.set(victim, 0);
+                    continue;
+                }
+                frame.setPosition(block);
+                table.put(block, frame);
+            }
+            readBlock(frame);
+            hints[block & (HINTS - 1)] = victim;
+            referenced.set(victim, 1);
+            pins.set(victim, 1);
+            stats.incrementMisses();
+            stats.getMissLatency().record(System.nanoTime() - begin);
+            return frame;
+        }
+    }
+
+
+    /**
+     * Pins the frame holding a block only if that takes no waiting: the
+     * block is in the pool and its frame is not claimed.
+     *
+     * @param block
+     *            The block position.
+     * @return The pinned frame, or null if the block would have to be
+     *         waited for or loaded.
+     */
+    private Buffer pinIfResident(int block) {
+        int hint = hints[block & (HINTS - 1)];
+        if (hint >= 0 && tryPin(hint, block)) {
+            return frames[hint];
+        }
+        BlockTable<Buffer> table = tables[block & (STRIPES - 1)];
+        Buffer found;
+        synchronized (table) {
+            found = table.get(block);
+        }
+        if (found != null && tryPin(slotOf(found), block)) {
+            return found;
+        }
+        return null;
+    }
+
+
+    /**
+     * Releases one pin on a frame.
+     *
+     * @param frame
+     *            A frame returned by pin.
+     * @param dirty
+     *            true if the frame was modified while pinned.
+     */
+    public void unpin(Buffer frame, boolean dirty) {
+        if (dirty) {
+            frame.setDirty(true);
+        }
+        pins.decrementAndGet(slotOf(frame));
+    }
+
+
+    /**
+     * Gets the number of pins currently held on the frame holding a block.
+     *
+     * @param block
+     *            The block position.
+     * @return The pin count, or 0 if the block is not in the pool.
+     */
+    public int getPinCount(int block) {
+        BlockTable<Buffer> table = tables[block & (STRIPES - 1)];
+        Buffer found;
+        synchronized (table) {
+            found = table.get(block);
+        }
+        return found == null ? 0 : Math.max(0, pins.get(slotOf(found)));
+    }
+
+
+    /**
+     * Adds a pin to a frame unless it is claimed for loading or eviction, and
+     * checks that it still holds the block it was found for.
+     *
+     * @param slot
+     *            The frame's slot.
+     * @param block
+     *            The block the frame was found holding.
+     * @return true if the frame is pinned and holds the block.
+     */
+    private boolean tryPin(int slot, int block) {
+        int count = pins.get(slot);
+        while (count != EXCLUSIVE) {
+            if (pins.compareAndSet(slot, count, count + 1)) {
+                if (frames[slot].getPosition() == block) {
+                    if (referenced.get(slot) == 0) {
+                        referenced.set(slot, 1);
+                    }
+                    return true;
+                }
+                pins.decrementAndGet(slot);
+                return false;
+            }
+            count = pins.get(slot);
+        }
+        return false;
+    }
+
+
+    /**
+     * Sweeps the clock hand until it claims a frame that is neither pinned
+     * nor recently referenced, giving every referenced frame a second
+     * chance on the way.
+     *
+     * @return The slot of the claimed frame, whose pin count is now
+     *         EXCLUSIVE.
+     */
+    private int claimVictim() {
+        int sweeps = 0;
+        while (true) {
+            int slot = Math.floorMod(hand.getAndIncrement(), frames.length);
+            if (pins.get(slot) == 0) {
+                if (referenced.get(slot) != 0) {
+                    referenced.set(slot, 0);
+                }
+                else if (pins.compareAndSet(slot, 0, EXCLUSIVE)) {
+                    return slot;
+                }
+            }
+            if (++sweeps % (2 * frames.length) == 0) {
+                // Every frame is pinned by some thread; let them finish
+                Thread.yield();
+            }
+        }
+    }
+
+
+    /**
+     * Finds the slot of a frame from its place in the slab.
+     *
+     * @param frame
+     *            The frame.
+     * @return The frame's slot.
+     */
+    private int slotOf(Buffer frame) {
+        return frame.getOffset() / blockSize;
+    }
+
+
+    /**
+     * Reads a frame's block from disk, zero filling past the end of file.
+     *
+     * @param frame
+     *            The claimed frame, already mapped to its block.
+     * @throws IOException
+     *             If an I/O error occurs during the read.
+     */
+    private void readBlock(Buffer frame) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(slab, frame.getOffset(), blockSize);
+        long position = (long)frame.getPosition() * blockSize;
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position() - frame
+                .getOffset()) < 0) {
+                break;
+            }
+        }
+        Arrays.fill(slab, bytes.position(), frame.getOffset() + blockSize,
+            (byte)0);
+        stats.incrementReads();
+    }
+
+
+    /**
+     * Writes a frame's block to disk and marks the frame clean.
+     *
+     * @param frame
+     *            The frame, claimed or otherwise not modified meanwhile.
+     * @throws IOException
+     *             If an I/O error occurs during the write.
+     */
+    private void writeBlock(Buffer frame) throws IOException {
+        long position = (long)frame.getPosition() * blockSize;
+        int length = (int)Math.min(blockSize, diskLength - position);
+        ByteBuffer bytes = ByteBuffer.wrap(slab, frame.getOffset(), length);
+        long begin = System.nanoTime();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, position + bytes.position() - frame
+                .getOffset());
+        }
+        stats.getWriteLatency().record(System.nanoTime() - begin);
+        stats.incrementWrites();
+        frame.setDirty(false);
+    }
+
+
+    /**
+     * Finds the block holding a record.
+     *
+     * @param index
+     *            The record index.
+     * @return The block position.
+     */
+    private int blockOf(long index) {
+        return (int)(index * recordSize / blockSize);
+    }
+
+
+    /**
+     * Finds where a record starts within its frame's slab.
+     *
+     * @param frame
+     *            The frame holding the record.
+     * @param index
+     *            The record index.
+     * @return The index of the record's first byte in the slab.
+     */
+    private int slabOffset(Buffer frame, long index) {
+        return frame.getOffset() + (int)(index * recordSize % blockSize);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short fetchKey(long index) throws IOException {
+        Buffer frame = pin(blockOf(index), true);
+        int at = slabOffset(frame, index) + keyOffset;
+        short key = wideKey
+            ? (short)((slab[at] << 8) | (slab[at + 1] & 0xFF))
+            : slab[at];
+        unpin(frame, false);
+        return key;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void retrieveBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        Buffer frame = pin(blockOf(destinationPos));
+        System.arraycopy(slab, slabOffset(frame, destinationPos), fromArray, 0,
+            bytesCopied);
+        unpin(frame, false);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        Buffer frame = pin(blockOf(destinationPos));
+        System.arraycopy(fromArray, 0, slab, slabOffset(frame, destinationPos),
+            bytesCopied);
+        unpin(frame, true);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readRecord(long index) throws IOException {
+        Buffer frame = pin(blockOf(index));
+        int record = frame.extractRecord(slabOffset(frame, index) - frame
+            .getOffset());
+        unpin(frame, false);
+        return record;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecord(long index, int record) throws IOException {
+        Buffer frame = pin(blockOf(index));
+        int at = slabOffset(frame, index);
+        slab[at] = (byte)(record >>> 24);
+        slab[at + 1] = (byte)(record >>> 16);
+        slab[at + 2] = (byte)(record >>> 8);
+        slab[at + 3] = (byte)record;
+        unpin(frame, true);
+    }
+
+
+    /**
+     * Exchanges two records. Records in one block are swapped under a single
+     * pin, and records in two blocks under both pins if the second block can
+     * be pinned at once. Otherwise the first record is copied out under its
+     * own pin, exchanged with the second under the second's pin, and copied
+     * back, so the thread never holds one frame while it waits for another.
+     *
+     * @param first
+     *            The index of the first record.
+     * @param second
+     *            The index of the second record.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void swapRecords(long first, long second) throws IOException {
+        int firstBlock = blockOf(first);
+        int secondBlock = blockOf(second);
+        if (firstBlock == secondBlock) {
+            Buffer frame = pin(firstBlock);
+            int a = slabOffset(frame, first);
+            int b = slabOffset(frame, second);
+            for (int i = 0; i < recordSize; i++) {
+                byte swap = slab[a + i];
+                slab[a + i] = slab[b + i];
+                slab[b + i] = swap;
+            }
+            unpin(frame, true);
+            return;
+        }
+        Buffer one = pin(firstBlock);
+        Buffer two = pinIfResident(secondBlock);
+        if (two != null) {
+            int a = slabOffset(one, first);
+            int b = slabOffset(two, second);
+            for (int i = 0; i < recordSize; i++) {
+                byte swap = slab[a + i];
+                slab[a + i] = slab[b + i];
+                slab[b + i] = swap;
+            }
+            unpin(two, true);
+            unpin(one, true);
+            return;
+        }
+        byte[] held = swapScratch.get();
+        System.arraycopy(slab, slabOffset(one, first), held, 0, recordSize);
+        unpin(one, false);
+        two = pin(secondBlock);
+        int b = slabOffset(two, second);
+        for (int i = 0; i < recordSize; i++) {
+            byte swap = slab[b + i];
+            slab[b + i] = held[i];
+            held[i] = swap;
+        }
+        unpin(two, true);
+        one = pin(firstBlock);
+        System.arraycopy(held, 0, slab, slabOffset(one, first), recordSize);
+        unpin(one, true);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void readRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            Buffer frame = pin(blockOf(index + done));
+            int pos = slabOffset(frame, index + done) - frame.getOffset();
+            int n = Math.min(count - done, (blockSize - pos) / recordSize);
+            for (int i = 0; i < n; i++) {
+                records[done + i] = frame.extractRecord(pos + i * recordSize);
+            }
+            unpin(frame, false);
+            done += n;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            Buffer frame = pin(blockOf(index + done));
+            int pos = slabOffset(frame, index + done) - frame.getOffset();
+            int n = Math.min(count - done, (blockSize - pos) / recordSize);
+            for (int i = 0; i < n; i++) {
+                frame.storeRecord(pos + i * recordSize, records[done + i]);
+            }
+            unpin(frame, true);
+            done += n;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean fitsInMemory() {
+        return (long)frames.length * blockSize >= diskLength
+            && diskLength <= MAX_ARRAY_BYTES;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] readAllRecords() throws IOException {
+        flush();
+        ByteBuffer all = ByteBuffer.allocate((int)diskLength);
+        while (all.hasRemaining() && channel.read(all, all.position()) >= 0) {
+            // Positional reads until the whole file is in
+        }
+        for (long i = 0; i < diskLength; i += blockSize) {
+            stats.incrementReads();
+        }
+        int[] records = new int[(int)(diskLength / recordSize)];
+        all.flip();
+        all.asIntBuffer().get(records);
+        return records;
+    }
+
+
+    /**
+     * Replaces the whole file with the given records in one bulk write and
+     * forgets every block in the pool, whose copies are now stale.
+     *
+     * @param records
+     *            Every record of the file, packed big-endian into ints.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void writeAllRecords(int[] records) throws IOException {
+        flush();
+        ByteBuffer all = ByteBuffer.allocate(records.length * recordSize);
+        all.asIntBuffer().put(records);
+        while (all.hasRemaining()) {
+            channel.write(all, all.position());
+        }
+        for (int i = 0; i < all.capacity(); i += blockSize) {
+            stats.incrementWrites();
+        }
+        for (int slot = 0; slot < frames.length; slot++) {
+            int block = frames[slot].getPosition();
+            if (block >= 0) {
+                BlockTable<Buffer> table = tables[block & (STRIPES - 1)];
+                synchronized (table) {
+                    table.remove(block);
+                }
+                frames[slot].setPosition(-1);
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFileLength() {
+        return diskLength;
+    }
+
+
+    /**
+     * Writes every dirty frame back in position order. Frames stay in the
+     * pool, clean. Each frame is claimed while it is written, so a thread
+     * still holding a pin only delays the flush.
+     *
+     * @throws IOException
+     *             If an I/O error occurs during the flush operation.
+     */
+    @Override
+    public void flush() throws IOException {
+        Buffer[] dirty = new Buffer[frames.length];
+        int count = 0;
+        for (Buffer frame : frames) {
+            if (frame.isDirty()) {
+                dirty[count++] = frame;
+            }
+        }
+        Arrays.sort(dirty, 0, count, Comparator.comparingInt(
+            Buffer::getPosition));
+        for (int i = 0; i < count; i++) {
+            int slot = slotOf(dirty[i]);
+            while (!pins.compareAndSet(slot, 0, EXCLUSIVE)) {
+                Thread.yield();
+            }
+            if (dirty[i].isDirty()) {
+                writeBlock(dirty[i]);
+            }
+            pins.set(slot, 0);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statistics getStatistics() {
+        return stats;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RecordLayout getLayout() {
+        return layout;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isResident(long index) {
+        int block = blockOf(index);
+        BlockTable<Buffer> table = tables[block & (STRIPES - 1)];
+        synchronized (table) {
+            return table.get(block) != null;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeFileStream() throws IOException {
+        disk.close();
+    }
+}
@@ -0,0 +1,495 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A buffer pool whose frames live off the Java heap, in direct ByteBuffers,
+ * so a large pool neither grows the heap nor adds to garbage collection
+ * work. The frames are carved out of a few large direct arenas allocated
+ * once, and each frame is a view of its part of an arena. Keys and records
+ * are read and written through the views' big-endian getShort, getInt and
+ * putInt, without copying, and blocks move straight between the file
+ * channel and the frames with positional reads and gather writes.
+ * The replacement policy and the way frames are recycled in place are those
+ * of LRUBufferPool's slab mode. The Buffer objects the policy manages carry
+ * only a block position, a dirty flag and, as their offset, the slot of the
+ * frame they stand for. The in-memory sort would copy the whole file onto
+ * the heap, so this pool never reports that the file fits in memory.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class DirectBufferPool implements BufferPool {
+    private static final long ARENA_BYTES = 1L << 30;
+    private RandomAccessFile disk;
+    private FileChannel channel;
+    private long diskLength;
+    private RecordLayout layout;
+    private int blockSize;
+    private int recordSize;
+    private int keyOffset;
+    private boolean wideKey;
+    private ByteBuffer[] views;
+    private Buffer[] frames;
+    private ReplacementPolicy cacheQueue;
+    private boolean hitFlag;
+    private Buffer current;
+    private byte[] swapScratch;
+    private Statistics stats;
+
+    /**
+     * Constructs a new DirectBufferPool for the specified disk file and
+     * buffer count.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of off-heap frames in the pool.
+     * @param policyName
+     *            The replacement policy: lru, clock, 2q, arc or lru2.
+     * @param layout
+     *            The block size, record size and key position of the file.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     */
+    public DirectBufferPool(
+        RandomAccessFile file,
+        int bufferCount,
+        String policyName,
+        RecordLayout layout)
+        throws IOException {
+        disk = file;
+        channel = disk.getChannel();
+        diskLength = disk.length();
+        stats = new Statistics();
+        this.layout = layout;
+        blockSize = layout.getBlockSize();
+        recordSize = layout.getRecordSize();
+        keyOffset = layout.getKeyOffset();
+        wideKey = layout.getKeyWidth() == 2;
+        swapScratch = new byte[2 * recordSize];
+        cacheQueue = ReplacementPolicy.forName(policyName, bufferCount);
+        int perArena = (int)Math.max(1, ARENA_BYTES / blockSize);
+        views = new ByteBuffer[bufferCount];
+        frames = new Buffer[bufferCount];
+        ByteBuffer arena = null;
+        for (int i = 0; i < bufferCount; i++) {
+            if (i % perArena == 0) {
+                int count = Math.min(perArena, bufferCount - i);
+                arena = ByteBuffer.allocateDirect(count * blockSize);
+            }
+            int start = i % perArena * blockSize;
+            views[i] = arena.duplicate().position(start).limit(start
+                + blockSize).slice();
+            frames[i] = new Buffer(null, i, -1);
+            cacheQueue.enqueue(frames[i]);
+        }
+    }
+
+
+    /**
+     * Locates the frame holding a record's block, loading the block over
+     * the policy's victim if it is not in the pool.
+     *
+     * @param index
+     *            The record index.
+     * @return The view of the frame.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    private ByteBuffer locateFrame(long index) throws IOException {
+        int block = (int)(index * recordSize / blockSize);
+        Buffer found = cacheQueue.search(block);
+        if (found != null) {
+            hitFlag = true;
+            current = found;
+            return views[found.getOffset()];
+        }
+        hitFlag = false;
+        long begin = System.nanoTime();
+        Buffer victim = cacheQueue.peekVictim();
+        if (victim.isDirty()) {
+            writeFrame(victim);
+        }
+        if (victim.getPosition() >= 0) {
+            stats.incrementEvictions();
+        }
+        found = cacheQueue.recycle(block);
+        current = found;
+        ByteBuffer view = views[found.getOffset()];
+        view.clear();
+        long position = (long)block * blockSize;
+        while (view.hasRemaining()) {
+            if (channel.read(view, position + view.position()) < 0) {
+                break;
+            }
+        }
+        // Clear whatever the previous block left past the end of file
+        while (view.hasRemaining()) {
+            view.put((byte)0);
+        }
+        stats.incrementReads();
+        stats.incrementMisses();
+        stats.getMissLatency().record(System.nanoTime() - begin);
+        return view;
+    }
+
+
+    /**
+     * Locates the frame holding a record's block and marks it dirty.
+     *
+     * @param index
+     *            The record index.
+     * @return The view of the frame.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    private ByteBuffer locateForWrite(long index) throws IOException {
+        ByteBuffer view = locateFrame(index);
+        current.setDirty(true);
+        return view;
+    }
+
+
+    /**
+     * Writes one frame's block back to disk and marks it clean. A short last
+     * block is written only up to the end of the file.
+     *
+     * @param frame
+     *            The dirty frame.
+     * @throws IOException
+     *             If an I/O error occurs during the write.
+     */
+    private void writeFrame(Buffer frame) throws IOException {
+        ByteBuffer view = views[frame.getOffset()];
+        long position = (long)frame.getPosition() * blockSize;
+        view.clear();
+        view.limit((int)Math.min(blockSize, diskLength - position));
+        long begin = System.nanoTime();
+        while (view.hasRemaining()) {
+            channel.write(view, position + view.position());
+        }
+        stats.getWriteLatency().record(System.nanoTime() - begin);
+        view.clear();
+        stats.incrementWrites();
+        frame.setDirty(false);
+    }
+
+
+    /**
+     * Finds where a record starts within its block.
+     *
+     * @param index
+     *            The record index.
+     * @return The byte offset of the record in its block.
+     */
+    private int blockOffset(long index) {
+        return (int)(index * recordSize % blockSize);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short fetchKey(long index) throws IOException {
+        ByteBuffer view = locateFrame(index);
+        if (hitFlag) {
+            stats.incrementHits();
+        }
+        int at = blockOffset(index) + keyOffset;
+        return wideKey ? view.getShort(at) : view.get(at);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void retrieveBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        ByteBuffer view = locateFrame(destinationPos);
+        view.get(blockOffset(destinationPos), fromArray, 0, bytesCopied);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        ByteBuffer view = locateForWrite(destinationPos);
+        view.put(blockOffset(destinationPos), fromArray, 0, bytesCopied);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readRecord(long index) throws IOException {
+        return locateFrame(index).getInt(blockOffset(index));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecord(long index, int record) throws IOException {
+        locateForWrite(index).putInt(blockOffset(index), record);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void swapRecords(long first, long second) throws IOException {
+        if (recordSize == 4) {
+            int firstPos = blockOffset(first);
+            int secondPos = blockOffset(second);
+            ByteBuffer one = locateFrame(first);
+            int a = one.getInt(firstPos);
+            if (first * 4 / blockSize == second * 4 / blockSize) {
+                int b = one.getInt(secondPos);
+                if (a != b) {
+                    one.putInt(firstPos, b);
+                    one.putInt(secondPos, a);
+                    current.setDirty(true);
+                }
+                return;
+            }
+            ByteBuffer two = locateFrame(second);
+            int b = two.getInt(secondPos);
+            if (a != b) {
+                two.putInt(secondPos, a);
+                current.setDirty(true);
+                // Locate again: with a tiny pool the first block may have
+                // been evicted when the second one was loaded.
+                locateForWrite(first).putInt(firstPos, b);
+            }
+            return;
+        }
+        locateFrame(first).get(blockOffset(first), swapScratch, 0,
+            recordSize);
+        ByteBuffer two = locateForWrite(second);
+        two.get(blockOffset(second), swapScratch, recordSize, recordSize);
+        two.put(blockOffset(second), swapScratch, 0, recordSize);
+        // Locate again: with a tiny pool the first block may have been
+        // evicted when the second one was loaded.
+        locateForWrite(first).put(blockOffset(first), swapScratch, recordSize,
+            recordSize);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void readRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            int pos = blockOffset(index + done);
+            int n = Math.min(count - done, (blockSize - pos) / recordSize);
+            ByteBuffer view = locateFrame(index + done);
+            for (int i = 0; i < n; i++) {
+                records[done + i] = view.getInt(pos + i * recordSize);
+            }
+            done += n;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            int pos = blockOffset(index + done);
+            int n = Math.min(count - done, (blockSize - pos) / recordSize);
+            ByteBuffer view = locateForWrite(index + done);
+            for (int i = 0; i < n; i++) {
+                view.putInt(pos + i * recordSize, records[done + i]);
+            }
+            done += n;
+        }
+    }
+
+
+    /**
+     * Never lets the sort copy the file onto the heap, however large the
+     * pool is.
+     *
+     * @return false.
+     */
+    @Override
+    public boolean fitsInMemory() {
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] readAllRecords() throws IOException {
+        flush();
+        ByteBuffer all = ByteBuffer.allocate((int)diskLength);
+        while (all.hasRemaining() && channel.read(all, all.position()) >= 0) {
+            // Positional reads until the whole file is in
+        }
+        for (long i = 0; i < diskLength; i += blockSize) {
+            stats.incrementReads();
+        }
+        int[] records = new int[(int)(diskLength / recordSize)];
+        all.flip();
+        all.asIntBuffer().get(records);
+        return records;
+    }
+
+
+    /**
+     * Replaces the whole file with the given records in one bulk write. The
+     * frames still holding blocks are refreshed from the records so they do
+     * not go stale.
+     *
+     * @param records
+     *            Every record of the file, packed big-endian into ints.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void writeAllRecords(int[] records) throws IOException {
+        flush();
+        ByteBuffer all = ByteBuffer.allocate(records.length * recordSize);
+        all.asIntBuffer().put(records);
+        while (all.hasRemaining()) {
+            channel.write(all, all.position());
+        }
+        for (int i = 0; i < all.capacity(); i += blockSize) {
+            stats.incrementWrites();
+        }
+        for (Buffer frame : frames) {
+            long start = (long)frame.getPosition() * blockSize;
+            if (frame.getPosition() >= 0 && start < all.capacity()) {
+                ByteBuffer view = views[frame.getOffset()];
+                view.clear();
+                view.put(all.duplicate().position((int)start).limit((int)Math
+                    .min(start + blockSize, all.capacity())));
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFileLength() {
+        return diskLength;
+    }
+
+
+    /**
+     * Writes all dirty frames back in position order, each run of
+     * consecutive blocks with a single gather write straight from the
+     * frames. A short last block is written only up to the end of the file.
+     * The frames stay resident and clean.
+     *
+     * @throws IOException
+     *             If an I/O error occurs during the flush operation.
+     */
+    @Override
+    public void flush() throws IOException {
+        Buffer[] dirty = new Buffer[frames.length];
+        int count = 0;
+        for (Buffer frame : frames) {
+            if (frame.isDirty()) {
+                dirty[count++] = frame;
+            }
+        }
+        Arrays.sort(dirty, 0, count, Comparator.comparingInt(
+            Buffer::getPosition));
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && dirty[end].getPosition() == dirty[end - 1]
+                .getPosition() + 1) {
+                end++;
+            }
+            ByteBuffer[] blocks = new ByteBuffer[end - start];
+            for (int i = start; i < end; i++) {
+                blocks[i - start] = views[dirty[i].getOffset()];
+                blocks[i - start].clear();
+            }
+            ByteBuffer last = blocks[end - start - 1];
+            last.limit((int)Math.min(blockSize, diskLength - (long)dirty[end
+                - 1].getPosition() * blockSize));
+            channel.position((long)dirty[start].getPosition() * blockSize);
+            long begin = System.nanoTime();
+            while (last.hasRemaining()) {
+                channel.write(blocks);
+            }
+            stats.getWriteLatency().record(System.nanoTime() - begin);
+            last.clear();
+            for (int i = start; i < end; i++) {
+                dirty[i].setDirty(false);
+                stats.incrementWrites();
+            }
+            start = end;
+        }
+        channel.position(0);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statistics getStatistics() {
+        return stats;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RecordLayout getLayout() {
+        return layout;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isResident(long index) {
+        return cacheQueue.get((int)(index * recordSize / blockSize)) != null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeFileStream() throws IOException {
+        disk.close();
+    }
+}
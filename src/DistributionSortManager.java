@@ -0,0 +1,430 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A distribution sort specialised for the 16-bit keys of the record files.
+ * Since a key can take only 65,536 values, no comparisons are needed: one
+ * sequential scan counts how many records carry each key, which fixes where
+ * every key's records end up in the sorted file.
+ * The keys are then grouped into ranges whose records fit in memory (a key
+ * too common to fit forms a range of its own), and a second scan scatters
+ * every record to its range's region of a scratch file through a write
+ * buffer per range. The buffer memory is shared out among the ranges, down
+ * to a sixteenth of a block each, so usually a single scatter scan serves
+ * every range; only when even that is too little is the scan repeated for
+ * the next group of ranges. Finally each region is read back, its records
+ * are placed by key with the counts, cycling every record into its slot in
+ * the one array the region was read into, and it is written to the
+ * original file.
+ * Reads are whole blocks in sequential order, writes go to each region in
+ * order, and the number of passes over the data barely depends on the pool
+ * size. Statistics count one read per block read and one write per buffer
+ * written.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class DistributionSortManager {
+    private static final int KEY_COUNT = 1 << 16;
+    private static final int KEY_BIAS = 1 << 15;
+    private long[] counts;
+    private int[] cursors;
+    private int[] limits;
+    private int memoryRecords;
+    private int blockSize;
+    private int recordSize;
+    private int recordsPerBlock;
+    private int minFrameRecords;
+    private Statistics stats;
+
+    /**
+     * Constructs a new DistributionSortManager and sorts the file.
+     *
+     * @param file
+     *            The open file to be sorted in place.
+     * @param fileName
+     *            The name of the file, used to place the scratch file next to
+     *            it.
+     * @param bufferCount
+     *            The number of blocks of memory the sort may use for its
+     *            buffers.
+     * @throws IOException
+     *             If an I/O error occurs during the sorting process.
+     */
+    public DistributionSortManager(
+        RandomAccessFile file,
+        String fileName,
+        int bufferCount)
+        throws IOException {
+        this(file, fileName, bufferCount, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * Constructs a new DistributionSortManager and sorts a file in the given
+     * record layout.
+     *
+     * @param file
+     *            The open file to be sorted in place.
+     * @param fileName
+     *            The name of the file, used to place the scratch file next to
+     *            it.
+     * @param bufferCount
+     *            The number of blocks of memory the sort may use for its
+     *            buffers.
+     * @param layout
+     *            The block size and record layout of the file, which must
+     *            be packed.
+     * @throws IllegalArgumentException
+     *             If the layout's records do not pack into an int.
+     * @throws IOException
+     *             If an I/O error occurs during the sorting process.
+     */
+    public DistributionSortManager(
+        RandomAccessFile file,
+        String fileName,
+        int bufferCount,
+        RecordLayout layout)
+        throws IOException {
+        if (!layout.isPacked()) {
+            throw new IllegalArgumentException(
+                "The distribution engine only sorts packed records, one int "
+                + "each with a 2-byte key first, not " + layout);
+        }
+        stats = new Statistics();
+        blockSize = layout.getBlockSize();
+        recordSize = layout.getRecordSize();
+        recordsPerBlock = layout.getRecordsPerBlock();
+        minFrameRecords = Math.max(1, recordsPerBlock / 16);
+        memoryRecords = Math.max(bufferCount, 2) * recordsPerBlock;
+        counts = new long[KEY_COUNT];
+        cursors = new int[KEY_COUNT];
+        limits = new int[KEY_COUNT];
+        long records = file.length() / recordSize;
+        countKeys(file, records);
+        if (records <= memoryRecords) {
+            placeRegion(file, file, 0, records, new int[(int)records]);
+            return;
+        }
+
+        long[] rangeStarts = new long[KEY_COUNT + 1];
+        int[] rangeFirstKeys = new int[KEY_COUNT + 1];
+        int ranges = buildRanges(rangeStarts, rangeFirstKeys, records);
+
+        File directory = new File(fileName).getAbsoluteFile().getParentFile();
+        File scratchFile = File.createTempFile("buckets", ".tmp", directory);
+        RandomAccessFile scratch = new RandomAccessFile(scratchFile, "rw");
+        try {
+            // One block of memory is the input frame; the rest is shared out
+            // as write buffers
+            int outputRecords = memoryRecords - recordsPerBlock;
+            int frameRecords = Math.max(minFrameRecords, Math.min(
+                recordsPerBlock, outputRecords / ranges));
+            int perPass = Math.max(1, outputRecords / frameRecords);
+            for (int from = 0; from < ranges; from += perPass) {
+                scatter(file, scratch, records, rangeStarts, rangeFirstKeys,
+                    from, Math.min(ranges, from + perPass), frameRecords);
+            }
+            int[] region = new int[memoryRecords];
+            for (int r = 0; r < ranges; r++) {
+                placeRegion(scratch, file, rangeStarts[r], rangeStarts[r + 1]
+                    - rangeStarts[r], region);
+            }
+        }
+        finally {
+            scratch.close();
+            scratchFile.delete();
+        }
+    }
+
+
+    /**
+     * Gets the statistics of the sort, counting every block read and
+     * written, including those of the scratch file.
+     *
+     * @return The sort's statistics.
+     */
+    public Statistics getStatistics() {
+        return stats;
+    }
+
+
+    /**
+     * Counts the records carrying each key in one sequential scan.
+     *
+     * @param file
+     *            The file to scan.
+     * @param records
+     *            The number of records in the file.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void countKeys(RandomAccessFile file, long records)
+        throws IOException {
+        Buffer frame = new Buffer(new byte[blockSize], 0, -1);
+        for (long done = 0; done < records; done += recordsPerBlock) {
+            int n = readFrame(file, frame, done, records - done);
+            for (int i = 0; i < n; i++) {
+                counts[frame.extractKey(i * recordSize) + KEY_BIAS]++;
+            }
+        }
+    }
+
+
+    /**
+     * Groups consecutive keys into ranges whose records fit in memory. A key
+     * with more records than fit in memory gets a range of its own, which
+     * needs no sorting since all its records are equal by key.
+     *
+     * @param rangeStarts
+     *            Filled with the record offset where each range starts,
+     *            followed by the total number of records.
+     * @param rangeFirstKeys
+     *            Filled with the first biased key of each range, followed by
+     *            KEY_COUNT.
+     * @param records
+     *            The number of records in the file.
+     * @return The number of ranges.
+     */
+    private int buildRanges(
+        long[] rangeStarts,
+        int[] rangeFirstKeys,
+        long records) {
+        int ranges = 0;
+        long offset = 0;
+        long inRange = 0;
+        for (int key = 0; key < KEY_COUNT; key++) {
+            if (counts[key] == 0) {
+                continue;
+            }
+            if (ranges == 0 || inRange + counts[key] > memoryRecords) {
+                rangeStarts[ranges] = offset;
+                rangeFirstKeys[ranges] = key;
+                ranges++;
+                inRange = 0;
+            }
+            inRange += counts[key];
+            offset += counts[key];
+        }
+        rangeStarts[ranges] = records;
+        rangeFirstKeys[ranges] = KEY_COUNT;
+        return ranges;
+    }
+
+
+    /**
+     * Scans the file once and appends every record whose key falls in one of
+     * a group of ranges to that range's region of the scratch file, through
+     * a write buffer per range.
+     *
+     * @param file
+     *            The file to scan.
+     * @param scratch
+     *            The scratch file holding the regions.
+     * @param records
+     *            The number of records in the file.
+     * @param rangeStarts
+     *            The record offset of each range, followed by the total.
+     * @param rangeFirstKeys
+     *            The first biased key of each range, followed by KEY_COUNT.
+     * @param from
+     *            The first range handled by this scan.
+     * @param to
+     *            One past the last range handled by this scan.
+     * @param frameRecords
+     *            The number of records each write buffer holds.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void scatter(
+        RandomAccessFile file,
+        RandomAccessFile scratch,
+        long records,
+        long[] rangeStarts,
+        int[] rangeFirstKeys,
+        int from,
+        int to,
+        int frameRecords)
+        throws IOException {
+        int buckets = to - from;
+        byte[] slab = new byte[buckets * frameRecords * recordSize];
+        Buffer[] outputs = new Buffer[buckets];
+        long[] written = new long[buckets];
+        int[] filled = new int[buckets];
+        for (int b = 0; b < buckets; b++) {
+            outputs[b] = new Buffer(slab, b * frameRecords * recordSize, -1);
+            written[b] = rangeStarts[from + b];
+        }
+        // cursors maps each biased key to its bucket in this scan, or -1
+        for (int key = 0; key < KEY_COUNT; key++) {
+            cursors[key] = -1;
+        }
+        for (int b = 0; b < buckets; b++) {
+            for (int key = rangeFirstKeys[from + b]; key < rangeFirstKeys[from
+                + b + 1]; key++) {
+                cursors[key] = b;
+            }
+        }
+
+        Buffer input = new Buffer(new byte[blockSize], 0, -1);
+        for (long done = 0; done < records; done += recordsPerBlock) {
+            int n = readFrame(file, input, done, records - done);
+            for (int i = 0; i < n; i++) {
+                int record = input.extractRecord(i * recordSize);
+                int b = cursors[(record >> 16) + KEY_BIAS];
+                if (b < 0) {
+                    continue;
+                }
+                outputs[b].storeRecord(filled[b] * recordSize, record);
+                if (++filled[b] == frameRecords) {
+                    writeFrame(scratch, outputs[b], written[b], filled[b]);
+                    written[b] += filled[b];
+                    filled[b] = 0;
+                }
+            }
+        }
+        for (int b = 0; b < buckets; b++) {
+            if (filled[b] > 0) {
+                writeFrame(scratch, outputs[b], written[b], filled[b]);
+            }
+        }
+    }
+
+
+    /**
+     * Reads a region of records, puts them in key order using the key counts
+     * and writes them to the same offset of the target file. The records are
+     * ordered in place: each record out of its key's slots is swapped into
+     * the next free slot of its key, and the record it displaces moves on in
+     * turn, so no second array is needed. A region too large for memory
+     * holds a single key and is copied as it is.
+     *
+     * @param source
+     *            The file to read the region from.
+     * @param target
+     *            The file to write the ordered region to.
+     * @param start
+     *            The record offset of the region.
+     * @param count
+     *            The number of records in the region.
+     * @param region
+     *            Scratch space for the region's records.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void placeRegion(
+        RandomAccessFile source,
+        RandomAccessFile target,
+        long start,
+        long count,
+        int[] region)
+        throws IOException {
+        Buffer frame = new Buffer(new byte[blockSize], 0, -1);
+        if (count > region.length) {
+            for (long done = 0; done < count; done += recordsPerBlock) {
+                int n = readFrame(source, frame, start + done, count - done);
+                writeFrame(target, frame, start + done, n);
+            }
+            return;
+        }
+        int size = (int)count;
+        int lowest = KEY_COUNT;
+        int highest = -1;
+        for (int done = 0; done < size; done += recordsPerBlock) {
+            int n = readFrame(source, frame, start + done, size - done);
+            for (int i = 0; i < n; i++) {
+                int record = frame.extractRecord(i * recordSize);
+                int key = (record >> 16) + KEY_BIAS;
+                lowest = Math.min(lowest, key);
+                highest = Math.max(highest, key);
+                region[done + i] = record;
+            }
+        }
+        int next = 0;
+        for (int key = lowest; key <= highest; key++) {
+            cursors[key] = next;
+            next += (int)counts[key];
+            limits[key] = next;
+        }
+        for (int key = lowest; key <= highest; key++) {
+            while (cursors[key] < limits[key]) {
+                int record = region[cursors[key]];
+                int home = (record >> 16) + KEY_BIAS;
+                while (home != key) {
+                    int slot = cursors[home]++;
+                    int swap = region[slot];
+                    region[slot] = record;
+                    record = swap;
+                    home = (record >> 16) + KEY_BIAS;
+                }
+                region[cursors[key]++] = record;
+            }
+        }
+        for (int done = 0; done < size; done += recordsPerBlock) {
+            int n = Math.min(recordsPerBlock, size - done);
+            for (int i = 0; i < n; i++) {
+                frame.storeRecord(i * recordSize, region[done + i]);
+            }
+            writeFrame(target, frame, start + done, n);
+        }
+    }
+
+
+    /**
+     * Reads up to one block of records into a frame.
+     *
+     * @param file
+     *            The file to read from.
+     * @param frame
+     *            The frame to fill.
+     * @param pos
+     *            The record offset to read from.
+     * @param remaining
+     *            The number of records left to read.
+     * @return The number of records read.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private int readFrame(
+        RandomAccessFile file,
+        Buffer frame,
+        long pos,
+        long remaining)
+        throws IOException {
+        int n = (int)Math.min(recordsPerBlock, remaining);
+        file.seek(pos * recordSize);
+        file.readFully(frame.getByteArray(), frame.getOffset(), n
+            * recordSize);
+        stats.incrementReads();
+        return n;
+    }
+
+
+    /**
+     * Writes records from a frame at a record offset.
+     *
+     * @param file
+     *            The file to write to.
+     * @param frame
+     *            The frame holding the records.
+     * @param pos
+     *            The record offset to write at.
+     * @param count
+     *            The number of records to write.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void writeFrame(
+        RandomAccessFile file,
+        Buffer frame,
+        long pos,
+        int count)
+        throws IOException {
+        file.seek(pos * recordSize);
+        file.write(frame.getByteArray(), frame.getOffset(), count
+            * recordSize);
+        stats.incrementWrites();
+    }
+}
@@ -1,26 +1,6 @@
 import java.io.*;
 import java.util.*;
 
-/**
- * Enum variables
- * 
- * @author Cliff Shaffer, Patrick Sullivan
- * @version 2024-03-30
- */
-enum FileType {
-    /**
-     * BINARY
-     */
-    BINARY,
-    /**
-     * ASCII
-     */
-    ASCII
-};
-
-
-
-
 /**
  * Generate a test data file of records. Each record is 4 bytes: 2 bytes for
  * the key (a java short, used for sorting), 2 bytes for the value (a java
@@ -31,6 +11,10 @@ enum FileType {
  * [space][letter][space][space]. In Binary mode, the keys and values of a
  * record are in the range [1-30000). Raw binary is not easily human-readable,
  * and often looks like textual garbage.
+ * Given a RecordLayout, blocks and records take the layout's sizes instead.
+ * A one-byte key is in the range [1-127) or is a letter, and the bytes of a
+ * record outside its key repeat the value's two bytes in binary mode or are
+ * spaces in ASCII mode.
  * 
  * @author Cliff Shaffer, Patrick Sullivan
  * @version 2024-03-30
@@ -61,6 +45,7 @@ public class FileGenerator {
 
     private final int numBlocks;
     private final String fname;
+    private final RecordLayout layout;
     private Random rng;
 
     /**
@@ -72,8 +57,25 @@ public class FileGenerator {
      *            number of blocks of data in the file. each block is
      */
     public FileGenerator(String fname, int numBlocks) {
+        this(fname, numBlocks, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * Creates a FileGenerator object for making random files of records in
+     * the given layout.
+     * 
+     * @param fname
+     *            the file name (example 'oneBlock.txt' or 'data.bin')
+     * @param numBlocks
+     *            number of blocks of data in the file
+     * @param layout
+     *            the block size, record size and key position of the file
+     */
+    public FileGenerator(String fname, int numBlocks, RecordLayout layout) {
         this.numBlocks = numBlocks;
         this.fname = fname;
+        this.layout = layout;
         rng = new Random();
     }
 
@@ -110,7 +112,9 @@ public class FileGenerator {
         }
 
         try {
-            if (ft == FileType.ASCII)
+            if (!layout.isPacked())
+                generateLayoutFile(dos, ft == FileType.ASCII);
+            else if (ft == FileType.ASCII)
                 generateAsciiFile(dos);
             else if (ft == FileType.BINARY)
                 generateBinaryFile(dos);
@@ -142,7 +146,7 @@ public class FileGenerator {
         int range = 26; // number of characters in alphabet range, from A to Z.
 
         for (int i = 0; i < numBlocks; i++) {
-            for (int j = 0; j < RECORDS_PER_BLOCK; j++) {
+            for (int j = 0; j < layout.getRecordsPerBlock(); j++) {
                 randKey = Math.abs(rng.nextInt() % range) + asciiOffset;
                 dos.writeShort(randKey); // THIS writes to the file!
                 dos.writeShort(blankVal); // THIS writes to the file!
@@ -166,7 +170,7 @@ public class FileGenerator {
         int minRand = 1; // minimum random short
         int range = 30000 - minRand; // max random short - min random short
         for (int i = 0; i < numBlocks; i++) {
-            for (int j = 0; j < RECORDS_PER_BLOCK; j++) {
+            for (int j = 0; j < layout.getRecordsPerBlock(); j++) {
 // val = (short)(random(29999) + 1);
                 randKey = Math.abs(rng.nextInt() % range) + minRand;
                 randVal = Math.abs(rng.nextInt() % range) + minRand;
@@ -175,4 +179,55 @@ public class FileGenerator {
             }
         }
     }
+
+
+    /**
+     * Generates a file of random records in a layout other than 4-byte
+     * records with the key first. Keys are drawn as in the other modes, and
+     * the remaining bytes are filled with a random value or with spaces.
+     * 
+     * @param dos
+     *            The data output stream to write data to
+     * @param ascii
+     *            true for letter keys and blank values, false for binary
+     * @throws IOException
+     *             if writing a record encounters an issue
+     */
+    private void generateLayoutFile(DataOutputStream dos, boolean ascii)
+        throws IOException {
+        int keyOffset = layout.getKeyOffset();
+        int keyWidth = layout.getKeyWidth();
+        int maxRand = keyWidth == 2 ? 30000 : 127; // exclusive key bound
+        byte[] record = new byte[layout.getRecordSize()];
+        for (int i = 0; i < numBlocks; i++) {
+            for (int j = 0; j < layout.getRecordsPerBlock(); j++) {
+                int randKey;
+                if (ascii) {
+                    Arrays.fill(record, (byte)' ');
+                    randKey = Math.abs(rng.nextInt() % 26) + 'A';
+                    if (keyWidth == 2) {
+                        randKey |= ' ' << 8; // ' A' to ' Z' as before
+                    }
+                }
+                else {
+                    randKey = Math.abs(rng.nextInt() % (maxRand - 1)) + 1;
+                    int randVal = Math.abs(rng.nextInt() % 29999) + 1;
+                    for (int b = 0; b < record.length; b += 2) {
+                        record[b] = (byte)(randVal >> 8);
+                        if (b + 1 < record.length) {
+                            record[b + 1] = (byte)randVal;
+                        }
+                    }
+                }
+                if (keyWidth == 2) {
+                    record[keyOffset] = (byte)(randKey >> 8);
+                    record[keyOffset + 1] = (byte)randKey;
+                }
+                else {
+                    record[keyOffset] = (byte)randKey;
+                }
+                dos.write(record); // THIS writes to the file!
+            }
+        }
+    }
 }
@@ -0,0 +1,16 @@
+/**
+ * Enum variables
+ * 
+ * @author Cliff Shaffer, Patrick Sullivan
+ * @version 2024-03-30
+ */
+public enum FileType {
+    /**
+     * BINARY
+     */
+    BINARY,
+    /**
+     * ASCII
+     */
+    ASCII
+}
@@ -1,22 +1,53 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Manages a buffer pool using the Least Recently Used (LRU) strategy for
  * accessing blocks of data from disk.
  * This class is designed to minimize disk I/O by caching recently accessed data
  * blocks in memory.
+ * The replacement policy is pluggable: LRU is the default, and CLOCK, 2Q, ARC
+ * and LRU-2 can be chosen by name.
+ * In slab mode all frames live in one preallocated array and a miss recycles
+ * the victim frame in place, so no memory is allocated per miss.
+ * With write-behind enabled, dirty blocks are handed to a background
+ * WriteBehindFlusher instead of being written on the eviction path, and
+ * after every miss the next victim is handed over early if it is dirty, so
+ * it is usually clean by the time it is evicted. With read-ahead enabled, a
+ * ReadAheadPrefetcher loads the blocks that sequential scans are about to
+ * miss on. With a SortJournal attached, every block is
+ * reported to the journal before it is written, so the journal can save
+ * the block's old contents first.
+ * Block and record sizes and the key's place in a record come from a
+ * RecordLayout. Whole-record reads and writes as ints are only meaningful
+ * for packed layouts; keys and swaps work for any layout.
  */
 /**
  * @author {Ibrahim Khalilov} {Francisca Wood}
  * @version {ibrahimk} {fransciscawood}
  */
-public class LRUBufferPool {
+public class LRUBufferPool implements BufferPool {
     private RandomAccessFile disk;
-    private Queue cacheQueue;
+    private ReplacementPolicy cacheQueue;
     private boolean hitFlag;
-    private static final int BLOCK_SIZE = 4096;
-    private static final int RECORD_SIZE = 4;
+    private byte[] slab;
+    private Buffer[] frames;
+    private long diskLength;
+    private WriteBehindFlusher flusher;
+    private ReadAheadPrefetcher prefetcher;
+    private SortJournal journal;
+    private Statistics stats;
+    private RecordLayout layout;
+    private int blockSize;
+    private int recordSize;
+    private int keyOffset;
+    private boolean wideKey;
+    private byte[] swapScratch;
+    private static final long MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
 
     /**
      * Constructs a new LRUBufferPool for the specified disk file and buffer
@@ -30,15 +61,171 @@ public class LRUBufferPool {
      *             If an I/O error occurs reading from the disk file.
      */
     public LRUBufferPool(RandomAccessFile file, int bufferCount)
+        throws IOException {
+        this(file, bufferCount, false, "lru");
+    }
+
+
+    /**
+     * Constructs a new LRUBufferPool for the specified disk file and buffer
+     * count, optionally backing every buffer with a single preallocated slab.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of buffers to allocate in the pool.
+     * @param useSlab
+     *            true to preallocate one slab of bufferCount blocks and
+     *            recycle its frames in place, false to allocate a new block
+     *            on every miss.
+     * @param policyName
+     *            The replacement policy: lru, clock, 2q, arc or lru2.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     */
+    public LRUBufferPool(
+        RandomAccessFile file,
+        int bufferCount,
+        boolean useSlab,
+        String policyName)
+        throws IOException {
+        this(file, bufferCount, useSlab, policyName, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * Constructs a new LRUBufferPool for a file in the given record layout.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of buffers to allocate in the pool.
+     * @param useSlab
+     *            true to preallocate one slab of bufferCount blocks and
+     *            recycle its frames in place, false to allocate a new block
+     *            on every miss.
+     * @param policyName
+     *            The replacement policy: lru, clock, 2q, arc or lru2.
+     * @param layout
+     *            The block size, record size and key position of the file.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     * @throws IllegalArgumentException
+     *             If the slab would be larger than the largest array.
+     */
+    public LRUBufferPool(
+        RandomAccessFile file,
+        int bufferCount,
+        boolean useSlab,
+        String policyName,
+        RecordLayout layout)
         throws IOException {
         disk = file;
-        int diskLength = (int)disk.length();
-        cacheQueue = new Queue(bufferCount);
-        for (int i = 0; i < bufferCount; i++) {
-            cacheQueue.enqueue(new Buffer(null, -1));
+        diskLength = disk.length();
+        stats = new Statistics();
+        this.layout = layout;
+        blockSize = layout.getBlockSize();
+        recordSize = layout.getRecordSize();
+        keyOffset = layout.getKeyOffset();
+        wideKey = layout.getKeyWidth() == 2;
+        swapScratch = new byte[2 * recordSize];
+        cacheQueue = ReplacementPolicy.forName(policyName, bufferCount);
+        if (useSlab) {
+            slab = new byte[Buffer.slabSize(bufferCount, blockSize)];
+            frames = new Buffer[bufferCount];
+            for (int i = 0; i < bufferCount; i++) {
+                frames[i] = new Buffer(slab, i * blockSize, -1);
+                cacheQueue.enqueue(frames[i]);
+            }
         }
-        new QuicksortManager(this, diskLength);
-        flush();
+        else {
+            for (int i = 0; i < bufferCount; i++) {
+                cacheQueue.enqueue(new Buffer(null, -1));
+            }
+        }
+    }
+
+
+    /**
+     * Starts a background writer that takes over writing dirty blocks, so a
+     * miss that evicts a dirty buffer only copies the block instead of
+     * waiting for the write.
+     *
+     * @param stagingFrames
+     *            The number of blocks that can wait to be written before an
+     *            eviction has to wait.
+     */
+    public void enableWriteBehind(int stagingFrames) {
+        if (prefetcher != null) {
+            throw new IllegalStateException(
+                "Write-behind must be enabled before read-ahead");
+        }
+        flusher = new WriteBehindFlusher(disk.getChannel(), diskLength,
+            stagingFrames, blockSize, stats);
+        flusher.start();
+    }
+
+
+    /**
+     * Starts a background reader that follows sequential streams of misses
+     * and reads their next blocks ahead, so later misses find them loaded.
+     *
+     * @param depth
+     *            The number of blocks read ahead of each stream.
+     */
+    public void enableReadAhead(int depth) {
+        prefetcher = new ReadAheadPrefetcher(disk.getChannel(), diskLength,
+            depth, blockSize, flusher, stats);
+        prefetcher.start();
+    }
+
+
+    /**
+     * Attaches a journal that is told about every block before it is
+     * written, whether on eviction, in a flush or by a bulk write.
+     *
+     * @param sortJournal
+     *            The journal, or null to write without one.
+     */
+    public void setJournal(SortJournal sortJournal) {
+        journal = sortJournal;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statistics getStatistics() {
+        return stats;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RecordLayout getLayout() {
+        return layout;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isResident(long index) {
+        return cacheQueue.get((int)(index * recordSize / blockSize)) != null;
+    }
+
+
+    /**
+     * Gets the background writer, if write-behind is enabled.
+     *
+     * @return The writer, or null if dirty blocks are written directly.
+     */
+    public WriteBehindFlusher getFlusher() {
+        return flusher;
     }
 
 
@@ -56,18 +243,18 @@ public class LRUBufferPool {
      * @throws IOException
      *             If an I/O error occurs during the operation.
      */
+    @Override
     public void storeBytes(
         byte[] fromArray,
         int bytesCopied,
-        int destinationPos)
+        long destinationPos)
         throws IOException {
         Buffer found = locateBuffer(destinationPos);
-        int bufferPos = (destinationPos * RECORD_SIZE) % BLOCK_SIZE;
+        int bufferPos = found.getOffset() + blockOffset(destinationPos);
         byte[] temp = found.getByteArray();
         for (int i = 0; i < bytesCopied; i++) {
             temp[bufferPos++] = fromArray[i];
         }
-        found.setByteArray(temp);
         found.setDirty(true);
     }
 
@@ -85,13 +272,14 @@ public class LRUBufferPool {
      * @throws IOException
      *             If an I/O error occurs during the operation.
      */
+    @Override
     public void retrieveBytes(
         byte[] fromArray,
         int bytesCopied,
-        int destinationPos)
+        long destinationPos)
         throws IOException {
         Buffer found = locateBuffer(destinationPos);
-        int bufferPos = (destinationPos * RECORD_SIZE) % BLOCK_SIZE;
+        int bufferPos = found.getOffset() + blockOffset(destinationPos);
         byte[] temp = found.getByteArray();
         for (int i = 0; i < bytesCopied; i++) {
             fromArray[i] = temp[bufferPos++];
@@ -109,12 +297,66 @@ public class LRUBufferPool {
     public void removeFromPool() throws IOException {
         Buffer toBeRemoved = cacheQueue.dequeue();
         if (toBeRemoved != null && toBeRemoved.isDirty()) {
-            disk.seek(toBeRemoved.getPosition() * BLOCK_SIZE);
-            byte[] temp = toBeRemoved.getByteArray();
-            disk.write(temp);
-            Statistics.incrementWrites();
-            disk.seek(0);
+            writeBack(toBeRemoved);
+        }
+        if (toBeRemoved != null && toBeRemoved.getPosition() >= 0) {
+            stats.incrementEvictions();
+        }
+    }
+
+
+    /**
+     * Writes a buffer's block back to its position on disk, or stages it
+     * with the background writer, and marks the buffer clean.
+     *
+     * @param buffer
+     *            The dirty buffer to write back.
+     * @throws IOException
+     *             If an I/O error occurs during the write.
+     */
+    private void writeBack(Buffer buffer) throws IOException {
+        if (journal != null) {
+            journal.beforeWrite(buffer.getPosition());
         }
+        if (prefetcher != null) {
+            prefetcher.invalidate(buffer.getPosition());
+        }
+        if (flusher != null) {
+            flusher.stage(buffer);
+            return;
+        }
+        long begin = System.nanoTime();
+        disk.seek((long)buffer.getPosition() * blockSize);
+        disk.write(buffer.getByteArray(), buffer.getOffset(), blockLength(
+            buffer.getPosition()));
+        stats.getWriteLatency().record(System.nanoTime() - begin);
+        stats.incrementWrites();
+        disk.seek(0);
+        buffer.setDirty(false);
+    }
+
+
+    /**
+     * Copies a missed block from the background writer, which may hold a
+     * version newer than the disk, or else from the background reader.
+     *
+     * @param pos
+     *            The block position.
+     * @param target
+     *            The array to copy the block into.
+     * @param offset
+     *            The index in the target where the block goes.
+     * @return true if the block was copied, false if it must be read from
+     *         disk.
+     * @throws IOException
+     *             If the wait for a block being read ahead was interrupted.
+     */
+    private boolean readStaged(int pos, byte[] target, int offset)
+        throws IOException {
+        if (flusher != null && flusher.readPending(pos, target, offset)) {
+            return true;
+        }
+        return prefetcher != null && prefetcher.take(pos, target, offset);
     }
 
 
@@ -128,20 +370,14 @@ public class LRUBufferPool {
      * @throws IOException
      *             If an I/O error occurs during the operation.
      */
-    private Buffer locateBuffer(int pos) throws IOException {
-        int bufferIndex = (pos * RECORD_SIZE) / BLOCK_SIZE;
+    private Buffer locateBuffer(long pos) throws IOException {
+        int bufferIndex = (int)(pos * recordSize / blockSize);
         Buffer found = cacheQueue.search(bufferIndex);
         if (found == null) {
-            byte[] newBuff = new byte[BLOCK_SIZE];
-            disk.seek(BLOCK_SIZE * bufferIndex);
-            disk.read(newBuff, 0, BLOCK_SIZE);
-            disk.seek(0);
-            found = new Buffer(newBuff, bufferIndex);
-            cacheQueue.enqueue(found);
-            if (cacheQueue.getSize() > cacheQueue.getCapacity()) {
-                removeFromPool();
-            }
-            Statistics.incrementReads();
+            long begin = System.nanoTime();
+            found = loadBuffer(bufferIndex);
+            stats.incrementMisses();
+            stats.getMissLatency().record(System.nanoTime() - begin);
             hitFlag = false;
             return found;
         }
@@ -150,6 +386,100 @@ public class LRUBufferPool {
     }
 
 
+    /**
+     * Brings a block that is not in the pool into it, evicting a victim and
+     * writing it back first if it is dirty.
+     *
+     * @param bufferIndex
+     *            The block position.
+     * @return The buffer now holding the block.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    private Buffer loadBuffer(int bufferIndex) throws IOException {
+        Buffer found;
+        if (slab != null) {
+            Buffer victim = cacheQueue.peekVictim();
+            if (victim.isDirty()) {
+                writeBack(victim);
+            }
+            if (victim.getPosition() >= 0) {
+                stats.incrementEvictions();
+            }
+            found = cacheQueue.recycle(bufferIndex);
+            if (!readStaged(bufferIndex, slab, found.getOffset())) {
+                disk.seek((long)blockSize * bufferIndex);
+                int bytesRead = disk.read(slab, found.getOffset(), blockSize);
+                disk.seek(0);
+                // Clear whatever the previous block left past the end of file
+                Arrays.fill(slab, found.getOffset() + Math.max(bytesRead, 0),
+                    found.getOffset() + blockSize, (byte)0);
+                stats.incrementReads();
+            }
+            if (prefetcher != null) {
+                prefetcher.recordMiss(bufferIndex);
+            }
+            cleanAhead();
+            return found;
+        }
+        byte[] newBuff = new byte[blockSize];
+        if (!readStaged(bufferIndex, newBuff, 0)) {
+            disk.seek((long)blockSize * bufferIndex);
+            disk.read(newBuff, 0, blockSize);
+            disk.seek(0);
+            stats.incrementReads();
+        }
+        if (prefetcher != null) {
+            prefetcher.recordMiss(bufferIndex);
+        }
+        found = new Buffer(newBuff, bufferIndex);
+        if (cacheQueue.getSize() >= cacheQueue.getCapacity()) {
+            removeFromPool();
+        }
+        cacheQueue.enqueue(found);
+        cleanAhead();
+        return found;
+    }
+
+
+    /**
+     * Hands the next victim to the background writer if it is dirty and a
+     * staging frame is free, so the eviction that reaches it finds it clean
+     * and does not wait on a write.
+     *
+     * @throws IOException
+     *             If an earlier background write failed.
+     */
+    private void cleanAhead() throws IOException {
+        if (flusher == null) {
+            return;
+        }
+        Buffer next = cacheQueue.peekVictim();
+        if (next == null || !next.isDirty()) {
+            return;
+        }
+        if (journal != null) {
+            journal.beforeWrite(next.getPosition());
+        }
+        if (prefetcher != null) {
+            prefetcher.invalidate(next.getPosition());
+        }
+        flusher.tryStage(next);
+    }
+
+
+    /**
+     * Finds where a record starts within its block.
+     *
+     * @param index
+     *            The record index.
+     * @return The byte offset of the record in its block.
+     */
+    private int blockOffset(long index) {
+        return (int)(index * recordSize % blockSize);
+    }
+
+
     /**
      * Fetches the key (short value) stored at a specific index within a buffer.
      *
@@ -160,37 +490,375 @@ public class LRUBufferPool {
      * @throws IOException
      *             If an I/O error occurs during the operation.
      */
-    public short fetchKey(int index) throws IOException {
+    @Override
+    public short fetchKey(long index) throws IOException {
         short found = 0;
         Buffer buf = locateBuffer(index);
         if (hitFlag) {
-            Statistics.incrementHits();
+            stats.incrementHits();
+        }
+        int bufferPos = blockOffset(index) + keyOffset;
+        if (wideKey) {
+            found = buf.extractKey(bufferPos);
+        }
+        else {
+            found = buf.getByteArray()[buf.getOffset() + bufferPos];
         }
-        int bufferPos = (index * RECORD_SIZE) % BLOCK_SIZE;
-        found = buf.extractKey(bufferPos);
         return found;
     }
 
 
     /**
-     * Writes all dirty buffers back to disk and clears the buffer pool.
+     * Reads the whole record at an index, packed big-endian into an int.
+     *
+     * @param index
+     *            The index of the record to read.
+     * @return The record packed into an int.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public int readRecord(long index) throws IOException {
+        Buffer buf = locateBuffer(index);
+        return buf.extractRecord(blockOffset(index));
+    }
+
+
+    /**
+     * Writes a whole record packed big-endian in an int to an index.
+     *
+     * @param index
+     *            The index of the record to write.
+     * @param record
+     *            The record packed into an int.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void writeRecord(long index, int record) throws IOException {
+        Buffer buf = locateBuffer(index);
+        buf.storeRecord(blockOffset(index), record);
+    }
+
+
+    /**
+     * Exchanges two records in place. Four-byte records are swapped as ints
+     * without any temporary arrays, and when both records share a block, the
+     * block is located only once. Other sizes are swapped through a scratch
+     * copy of both records.
+     *
+     * @param first
+     *            The index of the first record.
+     * @param second
+     *            The index of the second record.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void swapRecords(long first, long second) throws IOException {
+        if (recordSize != 4) {
+            swapBytes(first, second);
+            return;
+        }
+        int firstPos = blockOffset(first);
+        int secondPos = blockOffset(second);
+        Buffer one = locateBuffer(first);
+        int a = one.extractRecord(firstPos);
+        if (first * recordSize / blockSize == second * recordSize
+            / blockSize) {
+            int b = one.extractRecord(secondPos);
+            if (a != b) {
+                one.storeRecord(firstPos, b);
+                one.storeRecord(secondPos, a);
+            }
+            return;
+        }
+        Buffer two = locateBuffer(second);
+        int b = two.extractRecord(secondPos);
+        if (a != b) {
+            two.storeRecord(secondPos, a);
+            // Locate again: with a tiny pool the first block may have been
+            // evicted when the second one was loaded.
+            locateBuffer(first).storeRecord(firstPos, b);
+        }
+    }
+
+
+    /**
+     * Exchanges two records of any size by copying both out and writing
+     * each into the other's place.
+     *
+     * @param first
+     *            The index of the first record.
+     * @param second
+     *            The index of the second record.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    private void swapBytes(long first, long second) throws IOException {
+        Buffer one = locateBuffer(first);
+        int firstPos = one.getOffset() + blockOffset(first);
+        System.arraycopy(one.getByteArray(), firstPos, swapScratch, 0,
+            recordSize);
+        Buffer two = locateBuffer(second);
+        int secondPos = two.getOffset() + blockOffset(second);
+        System.arraycopy(two.getByteArray(), secondPos, swapScratch,
+            recordSize, recordSize);
+        System.arraycopy(swapScratch, 0, two.getByteArray(), secondPos,
+            recordSize);
+        two.setDirty(true);
+        // Locate again: with a tiny pool the first block may have been
+        // evicted when the second one was loaded.
+        one = locateBuffer(first);
+        System.arraycopy(swapScratch, recordSize, one.getByteArray(), one
+            .getOffset() + blockOffset(first), recordSize);
+        one.setDirty(true);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void readRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            int pos = blockOffset(index + done);
+            int n = Math.min(count - done, (blockSize - pos) / recordSize);
+            Buffer buf = locateBuffer(index + done);
+            for (int i = 0; i < n; i++) {
+                records[done + i] = buf.extractRecord(pos + i * recordSize);
+            }
+            done += n;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            int pos = blockOffset(index + done);
+            int n = Math.min(count - done, (blockSize - pos) / recordSize);
+            Buffer buf = locateBuffer(index + done);
+            for (int i = 0; i < n; i++) {
+                buf.storeRecord(pos + i * recordSize, records[done + i]);
+            }
+            done += n;
+        }
+    }
+
+
+    /**
+     * Checks whether the whole file fits in the pool's buffers, and in the
+     * single array the in-memory sort reads it into.
+     *
+     * @return true if bufferCount blocks cover the file and it is smaller
+     *         than the largest array.
+     */
+    @Override
+    public boolean fitsInMemory() {
+        return (long)cacheQueue.getCapacity() * blockSize >= diskLength
+            && diskLength <= MAX_ARRAY_BYTES;
+    }
+
+
+    /**
+     * Reads the whole file with one bulk read into an array of packed
+     * records, writing back any dirty buffers first.
+     *
+     * @return Every record of the file in file order.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public int[] readAllRecords() throws IOException {
+        flush();
+        byte[] all = new byte[(int)diskLength];
+        disk.seek(0);
+        disk.readFully(all);
+        for (long i = 0; i < diskLength; i += blockSize) {
+            stats.incrementReads();
+        }
+        int[] records = new int[(int)(diskLength / recordSize)];
+        ByteBuffer.wrap(all).asIntBuffer().get(records);
+        return records;
+    }
+
+
+    /**
+     * Replaces the whole file with the given records in one bulk write. In
+     * slab mode the frames still holding blocks are refreshed from the
+     * records so they do not go stale.
+     *
+     * @param records
+     *            Every record of the file, packed big-endian into ints.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void writeAllRecords(int[] records) throws IOException {
+        flush();
+        if (prefetcher != null) {
+            prefetcher.invalidateAll();
+        }
+        byte[] all = new byte[records.length * recordSize];
+        ByteBuffer.wrap(all).asIntBuffer().put(records);
+        if (journal != null) {
+            for (long start = 0; start < all.length; start += blockSize) {
+                journal.beforeWrite((int)(start / blockSize));
+            }
+        }
+        disk.seek(0);
+        disk.write(all);
+        disk.seek(0);
+        for (int i = 0; i < all.length; i += blockSize) {
+            stats.incrementWrites();
+        }
+        if (slab != null) {
+            for (Buffer frame : frames) {
+                long start = (long)frame.getPosition() * blockSize;
+                if (frame.getPosition() >= 0 && start < all.length) {
+                    System.arraycopy(all, (int)start, slab, frame.getOffset(),
+                        (int)Math.min(blockSize, all.length - start));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Gets the length of the disk file managed by the pool.
+     *
+     * @return The file length in bytes.
+     */
+    @Override
+    public long getFileLength() {
+        return diskLength;
+    }
+
+
+    /**
+     * Writes all dirty buffers back to disk and clears the buffer pool. In
+     * slab mode the frames stay resident and are only marked clean, since
+     * they are reused rather than released. The dirty blocks are written in
+     * position order, each run of consecutive blocks with a single gather
+     * write. With write-behind enabled, they are staged in position order
+     * instead and the flush returns once the background writer has written
+     * everything.
      *
      * @throws IOException
      *             If an I/O error occurs during the flush operation.
      */
+    @Override
     public void flush() throws IOException {
-        while (cacheQueue.getSize() > 0) {
-            removeFromPool();
+        Buffer[] dirty;
+        int count = 0;
+        if (slab != null) {
+            dirty = new Buffer[frames.length];
+            for (Buffer frame : frames) {
+                if (frame.isDirty()) {
+                    dirty[count++] = frame;
+                }
+            }
+        }
+        else {
+            dirty = new Buffer[cacheQueue.getSize()];
+            while (cacheQueue.getSize() > 0) {
+                Buffer removed = cacheQueue.dequeue();
+                if (removed != null && removed.isDirty()) {
+                    dirty[count++] = removed;
+                }
+            }
+        }
+        Arrays.sort(dirty, 0, count, Comparator.comparingInt(
+            Buffer::getPosition));
+        if (flusher != null) {
+            for (int i = 0; i < count; i++) {
+                writeBack(dirty[i]);
+            }
+            flusher.drain();
+            return;
+        }
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && dirty[end].getPosition() == dirty[end - 1]
+                .getPosition() + 1) {
+                end++;
+            }
+            writeRun(dirty, start, end);
+            start = end;
+        }
+    }
+
+
+    /**
+     * Writes buffers holding consecutive blocks with one gather write and
+     * marks them clean. A short last block is written only up to the end of
+     * the file. Statistics count one write per block.
+     *
+     * @param sorted
+     *            Dirty buffers sorted by position.
+     * @param start
+     *            The index of the first buffer of the run.
+     * @param end
+     *            One past the index of the last buffer of the run.
+     * @throws IOException
+     *             If an I/O error occurs during the write.
+     */
+    private void writeRun(Buffer[] sorted, int start, int end)
+        throws IOException {
+        ByteBuffer[] blocks = new ByteBuffer[end - start];
+        for (int i = start; i < end; i++) {
+            blocks[i - start] = ByteBuffer.wrap(sorted[i].getByteArray(),
+                sorted[i].getOffset(), blockLength(sorted[i].getPosition()));
+            if (journal != null) {
+                journal.beforeWrite(sorted[i].getPosition());
+            }
+            if (prefetcher != null) {
+                prefetcher.invalidate(sorted[i].getPosition());
+            }
+        }
+        FileChannel channel = disk.getChannel();
+        channel.position((long)sorted[start].getPosition() * blockSize);
+        long begin = System.nanoTime();
+        while (blocks[blocks.length - 1].hasRemaining()) {
+            channel.write(blocks);
         }
+        stats.getWriteLatency().record(System.nanoTime() - begin);
+        disk.seek(0);
+        for (int i = start; i < end; i++) {
+            sorted[i].setDirty(false);
+            stats.incrementWrites();
+        }
+    }
+
+
+    /**
+     * Gets the number of bytes of a block that lie in the file, which is
+     * less than the block size for a short last block.
+     *
+     * @param pos
+     *            The block position.
+     * @return The length of the block.
+     */
+    private int blockLength(int pos) {
+        return (int)Math.min(blockSize, diskLength - (long)pos * blockSize);
     }
 
 
     /**
-     * Retrieves the queue managing the LRU strategy in the buffer pool.
+     * Retrieves the replacement policy managing the buffers in the pool.
      *
-     * @return The LRU queue.
+     * @return The replacement policy.
      */
-    public Queue getQueue() {
+    public ReplacementPolicy getQueue() {
         return cacheQueue;
     }
 
@@ -201,7 +869,14 @@ public class LRUBufferPool {
      * @throws IOException
      *             If an I/O error occurs during the close operation.
      */
+    @Override
     public void closeFileStream() throws IOException {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (flusher != null) {
+            flusher.close();
+        }
         disk.close();
     }
 
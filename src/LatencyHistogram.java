@@ -0,0 +1,118 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of operation latencies in nanoseconds that any number of
+ * threads may record into at once. Bucket i counts the latencies whose
+ * highest set bit is bit i, so every bucket spans a factor of two and a
+ * percentile is reported as the upper bound of the bucket it falls in.
+ * The exact count, total and maximum are kept alongside the buckets.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private AtomicLongArray buckets;
+    private LongAdder count;
+    private LongAdder total;
+    private AtomicLong max;
+
+    /**
+     * Constructs a new, empty LatencyHistogram.
+     */
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        total = new LongAdder();
+        max = new AtomicLong();
+    }
+
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos
+     *            The latency in nanoseconds; negative values count as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(value
+            | 1));
+        count.increment();
+        total.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+
+    /**
+     * Gets the number of latencies recorded.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+
+    /**
+     * Gets the mean latency.
+     *
+     * @return The mean in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+
+
+    /**
+     * Gets the largest latency recorded.
+     *
+     * @return The maximum in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket holding it.
+     *
+     * @param percent
+     *            The percentile wanted, from 0 to 100.
+     * @return The estimate in nanoseconds, never above the maximum, or 0 if
+     *         nothing was recorded.
+     */
+    public long getPercentile(double percent) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(n * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                long upper = i >= BUCKETS - 2 ? Long.MAX_VALUE : (2L << i) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+
+    /**
+     * Describes the histogram as a JSON object of its count, mean, median,
+     * 99th percentile and maximum.
+     *
+     * @return The JSON text.
+     */
+    public String toJson() {
+        return "{\"count\":" + getCount() + ",\"meanNanos\":" + getMean()
+            + ",\"p50Nanos\":" + getPercentile(50) + ",\"p99Nanos\":"
+            + getPercentile(99) + ",\"maxNanos\":" + getMax() + "}";
+    }
+}
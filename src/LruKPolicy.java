@@ -0,0 +1,321 @@
+/**
+ * The LRU-K replacement policy of O'Neil, O'Neil and Weikum. Every resident
+ * block remembers the times of its last K references, and the victim is the
+ * block whose K-th most recent reference is oldest. A block referenced fewer
+ * than K times has no K-th reference and is evicted first, oldest first, so
+ * blocks touched once by a scan leave before blocks with proven reuse.
+ * Successive references to the same block count as one correlated reference,
+ * since a partition scan touches every record of a block in a row.
+ * Blocks sit in an indexed binary heap ordered by their K-th reference time,
+ * so a hit or an eviction costs O(log n). History is kept only for resident
+ * blocks.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class LruKPolicy implements ReplacementPolicy {
+    private int k;
+    private Buffer[] frames;
+    private long[] history;
+    private int[] heap;
+    private int[] heapIndex;
+    private Integer[] slotIds;
+    private BlockTable<Integer> index;
+    private int[] freeSlots;
+    private int freeCount;
+    private int lastSlot;
+    private long clock;
+    private int size;
+    private int capacity;
+
+    /**
+     * Constructs a new LruKPolicy.
+     *
+     * @param capacity
+     *            The maximum number of buffers the policy can hold.
+     * @param k
+     *            The number of references remembered for each block.
+     */
+    public LruKPolicy(int capacity, int k) {
+        this.capacity = capacity;
+        this.k = k;
+        frames = new Buffer[capacity];
+        history = new long[capacity * k];
+        heap = new int[capacity];
+        heapIndex = new int[capacity];
+        slotIds = new Integer[capacity];
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slotIds[i] = i;
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeCount = capacity;
+        index = new BlockTable<Integer>(capacity);
+        lastSlot = -1;
+        clock = 0;
+        size = 0;
+    }
+
+
+    /**
+     * Searches for the buffer holding a block and records the reference,
+     * unless it is correlated with the previous one.
+     *
+     * @param pos
+     *            The block position to search for.
+     * @return The buffer holding the block, or null if it is not resident.
+     */
+    @Override
+    public Buffer search(int pos) {
+        Integer found = index.get(pos);
+        if (found == null) {
+            return null;
+        }
+        int slot = found;
+        if (slot != lastSlot) {
+            reference(slot);
+            siftDown(heapIndex[slot]);
+        }
+        return frames[slot];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer get(int pos) {
+        Integer slot = index.get(pos);
+        return slot == null ? null : frames[slot];
+    }
+
+
+    /**
+     * Admits a newly loaded buffer with a single reference in its history.
+     *
+     * @param buff
+     *            The buffer to admit.
+     */
+    @Override
+    public void enqueue(Buffer buff) {
+        int slot = freeSlots[--freeCount];
+        place(slot, buff);
+        heap[size] = slot;
+        heapIndex[slot] = size;
+        size++;
+        siftUp(size - 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer peekVictim() {
+        return size == 0 ? null : frames[heap[0]];
+    }
+
+
+    /**
+     * Evicts the buffer with the oldest K-th reference.
+     *
+     * @return The evicted buffer, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer dequeue() {
+        if (size == 0) {
+            return null;
+        }
+        int slot = heap[0];
+        Buffer victim = frames[slot];
+        unindex(slot);
+        frames[slot] = null;
+        size--;
+        heap[0] = heap[size];
+        heapIndex[heap[0]] = 0;
+        siftDown(0);
+        freeSlots[freeCount++] = slot;
+        if (lastSlot == slot) {
+            lastSlot = -1;
+        }
+        return victim;
+    }
+
+
+    /**
+     * Evicts the buffer with the oldest K-th reference and reuses its slot
+     * for a new block with a fresh history.
+     *
+     * @param pos
+     *            The block position the recycled buffer will hold.
+     * @return The recycled buffer, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer recycle(int pos) {
+        if (size == 0) {
+            return null;
+        }
+        int slot = heap[0];
+        Buffer victim = frames[slot];
+        unindex(slot);
+        victim.setPosition(pos);
+        victim.setDirty(false);
+        place(slot, victim);
+        siftDown(0);
+        return victim;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Puts a buffer in a slot with an empty history plus one reference now,
+     * and indexes it.
+     *
+     * @param slot
+     *            The slot to fill.
+     * @param buff
+     *            The buffer to place.
+     */
+    private void place(int slot, Buffer buff) {
+        frames[slot] = buff;
+        for (int i = 0; i < k; i++) {
+            history[slot * k + i] = 0;
+        }
+        if (buff.getPosition() >= 0) {
+            index.put(buff.getPosition(), slotIds[slot]);
+            reference(slot);
+        }
+    }
+
+
+    /**
+     * Removes the index entry for the buffer in a slot, if it has one.
+     *
+     * @param slot
+     *            The slot whose buffer is leaving.
+     */
+    private void unindex(int slot) {
+        int pos = frames[slot].getPosition();
+        if (pos >= 0) {
+            index.remove(pos);
+        }
+    }
+
+
+    /**
+     * Records a reference to a slot, shifting older reference times down its
+     * history.
+     *
+     * @param slot
+     *            The referenced slot.
+     */
+    private void reference(int slot) {
+        int base = slot * k;
+        for (int i = k - 1; i > 0; i--) {
+            history[base + i] = history[base + i - 1];
+        }
+        history[base] = ++clock;
+        lastSlot = slot;
+    }
+
+
+    /**
+     * Compares two slots for eviction order: the older K-th reference goes
+     * first, and ties, including blocks with fewer than K references, are
+     * broken by the older most recent reference.
+     *
+     * @param a
+     *            The first slot.
+     * @param b
+     *            The second slot.
+     * @return true if slot a should be evicted before slot b.
+     */
+    private boolean evictsBefore(int a, int b) {
+        long kthA = history[a * k + k - 1];
+        long kthB = history[b * k + k - 1];
+        if (kthA != kthB) {
+            return kthA < kthB;
+        }
+        return history[a * k] < history[b * k];
+    }
+
+
+    /**
+     * Moves the slot at a heap position up until its parent evicts first.
+     *
+     * @param at
+     *            The heap position to sift.
+     */
+    private void siftUp(int at) {
+        while (at > 0) {
+            int parent = (at - 1) / 2;
+            if (!evictsBefore(heap[at], heap[parent])) {
+                return;
+            }
+            swap(at, parent);
+            at = parent;
+        }
+    }
+
+
+    /**
+     * Moves the slot at a heap position down until it evicts before both of
+     * its children.
+     *
+     * @param at
+     *            The heap position to sift.
+     */
+    private void siftDown(int at) {
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && evictsBefore(heap[child + 1],
+                heap[child])) {
+                child++;
+            }
+            if (!evictsBefore(heap[child], heap[at])) {
+                return;
+            }
+            swap(at, child);
+            at = child;
+        }
+    }
+
+
+    /**
+     * Exchanges two heap positions and keeps the slot-to-position index in
+     * step.
+     *
+     * @param a
+     *            The first heap position.
+     * @param b
+     *            The second heap position.
+     */
+    private void swap(int a, int b) {
+        int slot = heap[a];
+        heap[a] = heap[b];
+        heap[b] = slot;
+        heapIndex[heap[a]] = a;
+        heapIndex[heap[b]] = b;
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A buffer pool that maps the file into memory with FileChannel.map instead
+ * of reading and writing blocks explicitly. The file is viewed through a
+ * small set of mapped windows, each covering several consecutive blocks, and
+ * keys and records are read and written directly in the mapping without
+ * copying whole blocks.
+ * The memory budget matches the explicit pool: bufferCount blocks are divided
+ * into windows of WINDOW_BLOCKS blocks. Statistics keep their meaning: a read
+ * is a window being mapped, a write is a modified window being released to
+ * the operating system for write-back, and a hit is a key fetched from a
+ * window that was already mapped. Block and record sizes and the key's
+ * place in a record come from a RecordLayout.
+ * A window being replaced is unmapped at once rather than left for the
+ * garbage collector, so no more mappings are live than there are windows;
+ * otherwise a sort that misses often piles up mappings until the operating
+ * system's limit on them is reached and the JVM dies.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class MappedBufferPool implements BufferPool {
+    private static final int WINDOW_BLOCKS = 16;
+    private static final long MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+    private RecordLayout layout;
+    private int blockSize;
+    private int recordSize;
+    private int windowSize;
+    private int keyOffset;
+    private boolean wideKey;
+    private byte[] swapScratch;
+    private RandomAccessFile disk;
+    private FileChannel channel;
+    private long diskLength;
+    private MappedByteBuffer[] windows;
+    private int[] windowIndex;
+    private boolean[] windowDirty;
+    private long[] lastUsed;
+    private long clock;
+    private boolean hitFlag;
+    private boolean modified;
+    private Statistics stats;
+    private static Object unsafe;
+    private static Method invokeCleaner;
+    private static boolean cleanerLookedUp;
+
+    /**
+     * Constructs a new MappedBufferPool for the specified disk file, using
+     * about as much mapped memory as bufferCount blocks.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of blocks worth of memory to keep mapped; at least
+     *            one window is always used.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     */
+    public MappedBufferPool(RandomAccessFile file, int bufferCount)
+        throws IOException {
+        this(file, bufferCount, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * Constructs a new MappedBufferPool for a file in the given record
+     * layout.
+     *
+     * @param file
+     *            The disk file to be managed by the buffer pool.
+     * @param bufferCount
+     *            The number of blocks worth of memory to keep mapped; at least
+     *            one window is always used.
+     * @param layout
+     *            The block size, record size and key position of the file.
+     * @throws IOException
+     *             If an I/O error occurs reading from the disk file.
+     */
+    public MappedBufferPool(
+        RandomAccessFile file,
+        int bufferCount,
+        RecordLayout layout)
+        throws IOException {
+        this.layout = layout;
+        blockSize = layout.getBlockSize();
+        recordSize = layout.getRecordSize();
+        windowSize = blockSize * WINDOW_BLOCKS;
+        keyOffset = layout.getKeyOffset();
+        wideKey = layout.getKeyWidth() == 2;
+        swapScratch = new byte[recordSize];
+        disk = file;
+        channel = disk.getChannel();
+        diskLength = disk.length();
+        int windowCount = Math.max(1, bufferCount / WINDOW_BLOCKS);
+        windows = new MappedByteBuffer[windowCount];
+        windowIndex = new int[windowCount];
+        windowDirty = new boolean[windowCount];
+        lastUsed = new long[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            windowIndex[i] = -1;
+        }
+        clock = 0;
+        stats = new Statistics();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short fetchKey(long index) throws IOException {
+        MappedByteBuffer window = locateWindow(index, false);
+        if (hitFlag) {
+            stats.incrementHits();
+        }
+        int at = windowOffset(index) + keyOffset;
+        return wideKey ? window.getShort(at) : window.get(at);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void retrieveBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        MappedByteBuffer window = locateWindow(destinationPos, false);
+        window.get(windowOffset(destinationPos), fromArray, 0, bytesCopied);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void storeBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        MappedByteBuffer window = locateWindow(destinationPos, true);
+        window.put(windowOffset(destinationPos), fromArray, 0, bytesCopied);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int readRecord(long index) throws IOException {
+        MappedByteBuffer window = locateWindow(index, false);
+        return window.getInt(windowOffset(index));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecord(long index, int record) throws IOException {
+        MappedByteBuffer window = locateWindow(index, true);
+        window.putInt(windowOffset(index), record);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void swapRecords(long first, long second) throws IOException {
+        if (recordSize != 4) {
+            retrieveBytes(swapScratch, recordSize, first);
+            MappedByteBuffer window = locateWindow(second, true);
+            int at = windowOffset(second);
+            for (int i = 0; i < recordSize; i++) {
+                byte b = window.get(at + i);
+                window.put(at + i, swapScratch[i]);
+                swapScratch[i] = b;
+            }
+            storeBytes(swapScratch, recordSize, first);
+            return;
+        }
+        int a = readRecord(first);
+        int b = readRecord(second);
+        if (a != b) {
+            writeRecord(second, a);
+            writeRecord(first, b);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void readRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            int pos = windowOffset(index + done);
+            int n = Math.min(count - done, (windowSize - pos) / recordSize);
+            MappedByteBuffer window = locateWindow(index + done, false);
+            for (int i = 0; i < n; i++) {
+                records[done + i] = window.getInt(pos + i * recordSize);
+            }
+            done += n;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeRecords(long index, int[] records, int count)
+        throws IOException {
+        int done = 0;
+        while (done < count) {
+            int pos = windowOffset(index + done);
+            int n = Math.min(count - done, (windowSize - pos) / recordSize);
+            MappedByteBuffer window = locateWindow(index + done, true);
+            for (int i = 0; i < n; i++) {
+                window.putInt(pos + i * recordSize, records[done + i]);
+            }
+            done += n;
+        }
+    }
+
+
+    /**
+     * Finds where a record starts within its window.
+     *
+     * @param index
+     *            The record index.
+     * @return The byte offset of the record in its window.
+     */
+    private int windowOffset(long index) {
+        return (int)(index * recordSize % windowSize);
+    }
+
+
+    /**
+     * Checks whether the whole file fits in the mapped windows, and in the
+     * single array the in-memory sort reads it into.
+     *
+     * @return true if the windows together cover the file and it is smaller
+     *         than the largest array.
+     */
+    @Override
+    public boolean fitsInMemory() {
+        return (long)windows.length * windowSize >= diskLength
+            && diskLength <= MAX_ARRAY_BYTES;
+    }
+
+
+    /**
+     * Reads the whole file with one bulk channel read into an array of
+     * packed records. The mappings see the same pages, so nothing needs to be
+     * written back first.
+     *
+     * @return Every record of the file in file order.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public int[] readAllRecords() throws IOException {
+        ByteBuffer all = ByteBuffer.allocate((int)diskLength);
+        while (all.hasRemaining()) {
+            if (channel.read(all, all.position()) < 0) {
+                break;
+            }
+        }
+        for (long i = 0; i < diskLength; i += blockSize) {
+            stats.incrementReads();
+        }
+        int[] records = new int[(int)(diskLength / recordSize)];
+        all.flip();
+        all.asIntBuffer().get(records);
+        return records;
+    }
+
+
+    /**
+     * Replaces the whole file with the given records in one bulk channel
+     * write. Mapped windows share the page cache with the channel and so
+     * see the new contents at once.
+     *
+     * @param records
+     *            Every record of the file, packed big-endian into ints.
+     * @throws IOException
+     *             If an I/O error occurs during the operation.
+     */
+    @Override
+    public void writeAllRecords(int[] records) throws IOException {
+        ByteBuffer all = ByteBuffer.allocate(records.length * recordSize);
+        all.asIntBuffer().put(records);
+        while (all.hasRemaining()) {
+            channel.write(all, all.position());
+        }
+        for (int i = 0; i < all.capacity(); i += blockSize) {
+            stats.incrementWrites();
+        }
+        modified = true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFileLength() {
+        return diskLength;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statistics getStatistics() {
+        return stats;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RecordLayout getLayout() {
+        return layout;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isResident(long index) {
+        int wanted = (int)(index * recordSize / windowSize);
+        for (int window : windowIndex) {
+            if (window == wanted) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Releases every modified window and forces all changes made through the
+     * mappings to disk. The windows stay mapped.
+     *
+     * @throws IOException
+     *             If an I/O error occurs during the flush operation.
+     */
+    @Override
+    public void flush() throws IOException {
+        for (int i = 0; i < windows.length; i++) {
+            if (windowDirty[i]) {
+                stats.incrementWrites();
+                windowDirty[i] = false;
+            }
+        }
+        if (modified) {
+            long begin = System.nanoTime();
+            channel.force(false);
+            stats.getWriteLatency().record(System.nanoTime() - begin);
+            modified = false;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeFileStream() throws IOException {
+        for (int i = 0; i < windows.length; i++) {
+            unmap(windows[i]);
+            windows[i] = null;
+            windowIndex[i] = -1;
+        }
+        disk.close();
+    }
+
+
+    /**
+     * Finds the mapped window holding a record, mapping it in place of the
+     * least recently used window if it is not mapped yet.
+     *
+     * @param pos
+     *            The record position being accessed.
+     * @param write
+     *            true if the access modifies the record.
+     * @return The window containing the record.
+     * @throws IOException
+     *             If an I/O error occurs while mapping a window.
+     */
+    private MappedByteBuffer locateWindow(long pos, boolean write)
+        throws IOException {
+        int wanted = (int)(pos * recordSize / windowSize);
+        int slot = -1;
+        int victim = 0;
+        for (int i = 0; i < windows.length; i++) {
+            if (windowIndex[i] == wanted) {
+                slot = i;
+                break;
+            }
+            if (lastUsed[i] < lastUsed[victim]) {
+                victim = i;
+            }
+        }
+        hitFlag = slot >= 0;
+        if (slot < 0) {
+            long begin = System.nanoTime();
+            slot = victim;
+            if (windowIndex[slot] >= 0) {
+                stats.incrementEvictions();
+            }
+            // A modified window needs no explicit write: its pages are
+            // already in the page cache and are written back by the OS.
+            if (windowDirty[slot]) {
+                stats.incrementWrites();
+                windowDirty[slot] = false;
+            }
+            long start = (long)wanted * windowSize;
+            long length = Math.min(windowSize, diskLength - start);
+            unmap(windows[slot]);
+            windows[slot] = null;
+            windowIndex[slot] = -1;
+            windows[slot] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                length);
+            windowIndex[slot] = wanted;
+            stats.incrementReads();
+            stats.incrementMisses();
+            stats.getMissLatency().record(System.nanoTime() - begin);
+        }
+        lastUsed[slot] = ++clock;
+        if (write) {
+            windowDirty[slot] = true;
+            modified = true;
+        }
+        return windows[slot];
+    }
+
+
+    /**
+     * Releases a mapping at once through the JDK's buffer cleaner. The
+     * buffer must not be used afterwards. If the cleaner cannot be reached
+     * the mapping is left for the garbage collector to release.
+     *
+     * @param window
+     *            The mapping to release, or null.
+     */
+    private static synchronized void unmap(MappedByteBuffer window) {
+        if (!cleanerLookedUp) {
+            cleanerLookedUp = true;
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = type.getMethod("invokeCleaner",
+                    ByteBuffer.class);
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                invokeCleaner = null;
+            }
+        }
+        if (window == null || invokeCleaner == null) {
+            return;
+        }
+        try {
+            invokeCleaner.invoke(unsafe, window);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Left mapped until the buffer is collected
+        }
+    }
+}
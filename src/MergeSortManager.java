@@ -0,0 +1,428 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * An external merge sort for files far larger than the buffer pool. Instead
+ * of sorting in place through the pool, which turns into random block I/O
+ * once the file outgrows it, the file is cut into runs the size of the pool,
+ * each run is sorted in memory and written to a scratch file, and the runs
+ * are then merged with a k-way merge driven by a primitive heap. Every read
+ * and write is a whole block taken in order from one run, and the last merge
+ * writes the sorted records back into the original file.
+ * Records are handled as ints packed big-endian, so ordering the ints orders
+ * the records by key. Statistics count one read or write per block moved.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class MergeSortManager {
+    private int bufferCount;
+    private int blockSize;
+    private int recordSize;
+    private int recordsPerBlock;
+    private Statistics stats;
+
+    /**
+     * Constructs a new MergeSortManager and sorts the file.
+     *
+     * @param file
+     *            The open file to be sorted in place.
+     * @param fileName
+     *            The name of the file, used to place the scratch files next
+     *            to it.
+     * @param bufferCount
+     *            The number of blocks of memory the sort may use.
+     * @throws IOException
+     *             If an I/O error occurs during the sorting process.
+     */
+    public MergeSortManager(
+        RandomAccessFile file,
+        String fileName,
+        int bufferCount)
+        throws IOException {
+        this(file, fileName, bufferCount, RecordLayout.DEFAULT);
+    }
+
+
+    /**
+     * Constructs a new MergeSortManager and sorts a file in the given record
+     * layout.
+     *
+     * @param file
+     *            The open file to be sorted in place.
+     * @param fileName
+     *            The name of the file, used to place the scratch files next
+     *            to it.
+     * @param bufferCount
+     *            The number of blocks of memory the sort may use.
+     * @param layout
+     *            The block size and record layout of the file, which must
+     *            be packed.
+     * @throws IllegalArgumentException
+     *             If the layout's records do not pack into an int.
+     * @throws IOException
+     *             If an I/O error occurs during the sorting process.
+     */
+    public MergeSortManager(
+        RandomAccessFile file,
+        String fileName,
+        int bufferCount,
+        RecordLayout layout)
+        throws IOException {
+        if (!layout.isPacked()) {
+            throw new IllegalArgumentException(
+                "The merge engine only sorts packed records, one int each "
+                + "with a 2-byte key first, not " + layout);
+        }
+        stats = new Statistics();
+        blockSize = layout.getBlockSize();
+        recordSize = layout.getRecordSize();
+        recordsPerBlock = layout.getRecordsPerBlock();
+        this.bufferCount = Math.max(bufferCount, 1);
+        long records = file.length() / recordSize;
+        int runRecords = this.bufferCount * recordsPerBlock;
+        if (records <= runRecords) {
+            sortRun(file, file, 0, (int)records, new int[(int)records]);
+            return;
+        }
+
+        File directory = new File(fileName).getAbsoluteFile().getParentFile();
+        File first = File.createTempFile("runs", ".tmp", directory);
+        File second = File.createTempFile("runs", ".tmp", directory);
+        RandomAccessFile in = new RandomAccessFile(first, "rw");
+        RandomAccessFile out = new RandomAccessFile(second, "rw");
+        try {
+            long[] runStarts = createRuns(file, in, records, runRecords);
+            int fanIn = Math.max(2, this.bufferCount - 1);
+            while (runStarts.length - 1 > fanIn) {
+                runStarts = mergePass(in, out, runStarts, fanIn);
+                RandomAccessFile swap = in;
+                in = out;
+                out = swap;
+            }
+            mergeRuns(in, runStarts, 0, runStarts.length - 1, file);
+        }
+        finally {
+            in.close();
+            out.close();
+            first.delete();
+            second.delete();
+        }
+    }
+
+
+    /**
+     * Gets the statistics of the sort, counting every block read and
+     * written, including those of the scratch file.
+     *
+     * @return The sort's statistics.
+     */
+    public Statistics getStatistics() {
+        return stats;
+    }
+
+
+    /**
+     * Cuts the file into runs of at most runRecords records, sorts each one
+     * in memory and writes them one after another to the scratch file.
+     *
+     * @param source
+     *            The file to read.
+     * @param runs
+     *            The scratch file to write the sorted runs to.
+     * @param records
+     *            The number of records in the file.
+     * @param runRecords
+     *            The maximum number of records in a run.
+     * @return The record offset where each run starts, followed by the total
+     *         number of records.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private long[] createRuns(
+        RandomAccessFile source,
+        RandomAccessFile runs,
+        long records,
+        int runRecords)
+        throws IOException {
+        int runCount = (int)((records + runRecords - 1) / runRecords);
+        long[] runStarts = new long[runCount + 1];
+        int[] run = new int[runRecords];
+        for (int r = 0; r < runCount; r++) {
+            runStarts[r] = (long)r * runRecords;
+            int count = (int)Math.min(runRecords, records - runStarts[r]);
+            sortRun(source, runs, runStarts[r], count, run);
+        }
+        runStarts[runCount] = records;
+        return runStarts;
+    }
+
+
+    /**
+     * Reads a run of records block by block, sorts it and writes it out
+     * block by block at the same record offset.
+     *
+     * @param source
+     *            The file to read the run from.
+     * @param target
+     *            The file to write the sorted run to.
+     * @param start
+     *            The record offset of the run.
+     * @param count
+     *            The number of records in the run.
+     * @param run
+     *            Scratch space for at least count records.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void sortRun(
+        RandomAccessFile source,
+        RandomAccessFile target,
+        long start,
+        int count,
+        int[] run)
+        throws IOException {
+        Buffer frame = new Buffer(new byte[blockSize], 0, -1);
+        for (int done = 0; done < count; done += recordsPerBlock) {
+            int n = Math.min(recordsPerBlock, count - done);
+            source.seek((start + done) * recordSize);
+            source.readFully(frame.getByteArray(), 0, n * recordSize);
+            stats.incrementReads();
+            for (int i = 0; i < n; i++) {
+                run[done + i] = frame.extractRecord(i * recordSize);
+            }
+        }
+        Arrays.sort(run, 0, count);
+        for (int done = 0; done < count; done += recordsPerBlock) {
+            int n = Math.min(recordsPerBlock, count - done);
+            for (int i = 0; i < n; i++) {
+                frame.storeRecord(i * recordSize, run[done + i]);
+            }
+            target.seek((start + done) * recordSize);
+            target.write(frame.getByteArray(), 0, n * recordSize);
+            stats.incrementWrites();
+        }
+    }
+
+
+    /**
+     * Merges the runs in groups of fanIn, each group becoming one longer run
+     * at the same offset in the other scratch file.
+     *
+     * @param in
+     *            The scratch file holding the current runs.
+     * @param out
+     *            The scratch file to write the merged runs to.
+     * @param runStarts
+     *            The start of every current run, followed by the total
+     *            number of records.
+     * @param fanIn
+     *            The number of runs merged at once.
+     * @return The start of every merged run, followed by the total number of
+     *         records.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private long[] mergePass(
+        RandomAccessFile in,
+        RandomAccessFile out,
+        long[] runStarts,
+        int fanIn)
+        throws IOException {
+        int runCount = runStarts.length - 1;
+        int groups = (runCount + fanIn - 1) / fanIn;
+        long[] merged = new long[groups + 1];
+        for (int g = 0; g < groups; g++) {
+            int from = g * fanIn;
+            int to = Math.min(runCount, from + fanIn);
+            merged[g] = runStarts[from];
+            mergeRuns(in, runStarts, from, to, out);
+        }
+        merged[groups] = runStarts[runCount];
+        return merged;
+    }
+
+
+    /**
+     * Merges a group of consecutive runs into one run written at the offset
+     * of the first. Each run is read through its own one-block frame, and a
+     * heap of run numbers ordered by their current records picks the next
+     * record to emit into the output frame.
+     *
+     * @param in
+     *            The file holding the runs.
+     * @param runStarts
+     *            The start of every run, followed by the total number of
+     *            records.
+     * @param from
+     *            The first run of the group.
+     * @param to
+     *            One past the last run of the group.
+     * @param out
+     *            The file to write the merged run to.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void mergeRuns(
+        RandomAccessFile in,
+        long[] runStarts,
+        int from,
+        int to,
+        RandomAccessFile out)
+        throws IOException {
+        int k = to - from;
+        byte[] frames = new byte[k * blockSize];
+        Buffer[] inputs = new Buffer[k];
+        long[] next = new long[k];
+        int[] loaded = new int[k];
+        int[] cursor = new int[k];
+        int[] current = new int[k];
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int r = 0; r < k; r++) {
+            inputs[r] = new Buffer(frames, r * blockSize, -1);
+            next[r] = runStarts[from + r];
+            if (refill(in, inputs[r], r, next, loaded, cursor, runStarts[from
+                + r + 1])) {
+                current[r] = inputs[r].extractRecord(0);
+                heap[heapSize++] = r;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, current, i);
+        }
+
+        Buffer output = new Buffer(new byte[blockSize], 0, -1);
+        long outPos = runStarts[from];
+        int filled = 0;
+        while (heapSize > 0) {
+            int r = heap[0];
+            output.storeRecord(filled * recordSize, current[r]);
+            if (++filled == recordsPerBlock) {
+                writeFrame(out, output, outPos, filled);
+                outPos += filled;
+                filled = 0;
+            }
+            cursor[r]++;
+            if (cursor[r] == loaded[r] && !refill(in, inputs[r], r, next,
+                loaded, cursor, runStarts[from + r + 1])) {
+                heap[0] = heap[--heapSize];
+            }
+            else {
+                current[r] = inputs[r].extractRecord(cursor[r] * recordSize);
+            }
+            siftDown(heap, heapSize, current, 0);
+        }
+        if (filled > 0) {
+            writeFrame(out, output, outPos, filled);
+        }
+    }
+
+
+    /**
+     * Loads the next block of a run into its frame.
+     *
+     * @param in
+     *            The file holding the run.
+     * @param frame
+     *            The run's input frame.
+     * @param r
+     *            The run's number within the group.
+     * @param next
+     *            The next record offset to load for each run.
+     * @param loaded
+     *            The number of records in each run's frame.
+     * @param cursor
+     *            The next record to take from each run's frame.
+     * @param end
+     *            The record offset where the run ends.
+     * @return true if a block was loaded, false if the run is exhausted.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private boolean refill(
+        RandomAccessFile in,
+        Buffer frame,
+        int r,
+        long[] next,
+        int[] loaded,
+        int[] cursor,
+        long end)
+        throws IOException {
+        int n = (int)Math.min(recordsPerBlock, end - next[r]);
+        if (n <= 0) {
+            return false;
+        }
+        in.seek(next[r] * recordSize);
+        in.readFully(frame.getByteArray(), frame.getOffset(), n * recordSize);
+        stats.incrementReads();
+        next[r] += n;
+        loaded[r] = n;
+        cursor[r] = 0;
+        return true;
+    }
+
+
+    /**
+     * Writes the filled part of the output frame at a record offset.
+     *
+     * @param out
+     *            The file to write to.
+     * @param frame
+     *            The output frame.
+     * @param pos
+     *            The record offset to write at.
+     * @param count
+     *            The number of records in the frame.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void writeFrame(
+        RandomAccessFile out,
+        Buffer frame,
+        long pos,
+        int count)
+        throws IOException {
+        out.seek(pos * recordSize);
+        out.write(frame.getByteArray(), frame.getOffset(), count
+            * recordSize);
+        stats.incrementWrites();
+    }
+
+
+    /**
+     * Restores the heap order below a position, where a run orders before
+     * another if its current record is smaller.
+     *
+     * @param heap
+     *            The heap of run numbers.
+     * @param size
+     *            The number of runs in the heap.
+     * @param current
+     *            The current record of each run.
+     * @param at
+     *            The heap position to sift down from.
+     */
+    private static void siftDown(int[] heap, int size, int[] current, int at) {
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && current[heap[child + 1]] < current[heap[
+                child]]) {
+                child++;
+            }
+            if (current[heap[at]] <= current[heap[child]]) {
+                return;
+            }
+            int swap = heap[at];
+            heap[at] = heap[child];
+            heap[child] = swap;
+            at = child;
+        }
+    }
+}
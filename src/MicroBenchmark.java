@@ -0,0 +1,406 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the buffer pool, the LRU replacement queue and whole quicksorts
+ * over a grid of pool sizes, file sizes and inputs, so pool sizes can be
+ * tuned from numbers instead of from stats.txt by hand.
+ * It is run the way JMH runs a benchmark: for every combination each
+ * benchmark first runs WARMUP_ITERATIONS untimed iterations so the JIT has
+ * compiled the code, then the requested number of measured iterations.
+ * Setup such as generating the input or opening the pool happens outside
+ * the timed region. For each benchmark it prints the mean throughput with
+ * the slowest and fastest iteration, the bytes allocated per operation by
+ * the measuring thread, and the disk reads and writes per operation taken
+ * from the pool's Statistics.
+ * The benchmarks are fetchKey on random records, a retrieveBytes and
+ * storeBytes pair moving a record between two random positions, a search
+ * followed on a miss by dequeue and enqueue on the LRU Queue alone, and a
+ * full sort of the file with QuicksortManager. Inputs are generated with a
+ * seeded FileGenerator: binary and ascii are its two file types, and sorted
+ * and reverse are the binary file put in ascending or descending order.
+ * Usage: java MicroBenchmark [pools] [blocks] [inputs] [iterations]
+ * where pools, blocks and inputs are comma-separated lists, such as
+ * java MicroBenchmark 8,64 64,256 binary,ascii,sorted,reverse 5
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class MicroBenchmark {
+    private static final String FILE_NAME = "microbenchmark.bin";
+    private static final long SEED = 5040;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int OPERATIONS = 200000;
+    private static final RecordLayout LAYOUT = RecordLayout.DEFAULT;
+    private static final int RECORD_SIZE = LAYOUT.getRecordSize();
+    private static final int RECORDS_PER_BLOCK = LAYOUT.getRecordsPerBlock();
+    private static int[] positions;
+    private static long sink;
+
+    /**
+     * Runs every benchmark for every combination of pool size, file size and
+     * input, and prints one line per benchmark.
+     *
+     * @param arguments
+     *            Optional pool sizes, file sizes in blocks, inputs and number
+     *            of measured iterations.
+     * @throws Exception
+     *             If a file cannot be generated or sorted.
+     */
+    public static void main(String[] arguments) throws Exception {
+        int[] pools = parseSizes(arguments.length > 0
+            ? arguments[0]
+            : "8,64");
+        int[] files = parseSizes(arguments.length > 1
+            ? arguments[1]
+            : "64,256");
+        String[] inputs = (arguments.length > 2
+            ? arguments[2]
+            : "binary,ascii,sorted,reverse").split(",");
+        int iterations = arguments.length > 3
+            ? Integer.parseInt(arguments[3])
+            : 5;
+
+        for (int blocks : files) {
+            Random random = new Random(SEED);
+            positions = new int[OPERATIONS];
+            for (int i = 0; i < OPERATIONS; i++) {
+                positions[i] = random.nextInt(blocks * RECORDS_PER_BLOCK);
+            }
+            for (int buffers : pools) {
+                runQueue(buffers, blocks, iterations);
+                for (String input : inputs) {
+                    String label = "pool=" + buffers + " blocks=" + blocks
+                        + " input=" + input;
+                    runPool("fetchKey", label, buffers, blocks, input,
+                        iterations);
+                    runPool("retrieveBytes/storeBytes", label, buffers, blocks,
+                        input, iterations);
+                    runSort(label, buffers, blocks, input, iterations);
+                }
+            }
+        }
+        new File(FILE_NAME).delete();
+    }
+
+
+    /**
+     * Benchmarks one pool operation on random records of a freshly
+     * generated file.
+     *
+     * @param benchmark
+     *            "fetchKey" or "retrieveBytes/storeBytes".
+     * @param label
+     *            The parameters, for the printed line.
+     * @param buffers
+     *            The number of buffers given to the pool.
+     * @param blocks
+     *            The number of blocks in the file.
+     * @param input
+     *            The input name.
+     * @param iterations
+     *            The number of measured iterations.
+     * @throws IOException
+     *             If the file cannot be generated or read.
+     */
+    private static void runPool(
+        String benchmark,
+        String label,
+        int buffers,
+        int blocks,
+        String input,
+        int iterations)
+        throws IOException {
+        generate(blocks, input);
+        boolean moving = !benchmark.equals("fetchKey");
+        byte[] record = new byte[RECORD_SIZE];
+        Measurement result = new Measurement(benchmark, label, OPERATIONS);
+        for (int it = -WARMUP_ITERATIONS; it < iterations; it++) {
+            RandomAccessFile file = new RandomAccessFile(FILE_NAME, "rw");
+            LRUBufferPool pool = new LRUBufferPool(file, buffers);
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            if (moving) {
+                for (int i = 0; i < OPERATIONS; i++) {
+                    pool.retrieveBytes(record, RECORD_SIZE, positions[i]);
+                    pool.storeBytes(record, RECORD_SIZE, positions[(i + 1)
+                        % OPERATIONS]);
+                }
+            }
+            else {
+                long keys = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    keys += pool.fetchKey(positions[i]);
+                }
+                sink += keys;
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            pool.flush();
+            pool.closeFileStream();
+            if (it >= 0) {
+                result.add(elapsed, allocated, pool.getStatistics());
+            }
+        }
+        result.print();
+    }
+
+
+    /**
+     * Benchmarks the LRU Queue on its own: every operation searches for a
+     * random block and, on a miss, dequeues the least recently used buffer
+     * and enqueues it again for the block, as the pool does on a miss.
+     *
+     * @param buffers
+     *            The capacity of the queue.
+     * @param blocks
+     *            The number of distinct blocks searched for.
+     * @param iterations
+     *            The number of measured iterations.
+     */
+    private static void runQueue(int buffers, int blocks, int iterations) {
+        Measurement result = new Measurement("Queue.search/enqueue/dequeue",
+            "pool=" + buffers + " blocks=" + blocks, OPERATIONS);
+        for (int it = -WARMUP_ITERATIONS; it < iterations; it++) {
+            Queue queue = new Queue(buffers);
+            for (int i = 0; i < buffers; i++) {
+                queue.enqueue(new Buffer(null, -1));
+            }
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                int block = positions[i] / RECORDS_PER_BLOCK;
+                if (queue.search(block) == null) {
+                    Buffer victim = queue.dequeue();
+                    victim.setPosition(block);
+                    queue.enqueue(victim);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            if (it >= 0) {
+                result.add(elapsed, allocated, null);
+            }
+        }
+        result.print();
+    }
+
+
+    /**
+     * Benchmarks whole sorts, generating the input again before every
+     * iteration and flushing the pool inside the timed region.
+     *
+     * @param label
+     *            The parameters, for the printed line.
+     * @param buffers
+     *            The number of buffers given to the pool.
+     * @param blocks
+     *            The number of blocks in the file.
+     * @param input
+     *            The input name.
+     * @param iterations
+     *            The number of measured iterations.
+     * @throws Exception
+     *             If the file cannot be generated, sorted or checked.
+     */
+    private static void runSort(
+        String label,
+        int buffers,
+        int blocks,
+        String input,
+        int iterations)
+        throws Exception {
+        Measurement result = new Measurement("QuicksortManager", label, 1);
+        for (int it = -WARMUP_ITERATIONS; it < iterations; it++) {
+            generate(blocks, input);
+            RandomAccessFile file = new RandomAccessFile(FILE_NAME, "rw");
+            LRUBufferPool pool = new LRUBufferPool(file, buffers);
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            new QuicksortManager(pool, pool.getFileLength());
+            pool.flush();
+            long elapsed = System.nanoTime() - start;
+            allocated = allocatedBytes() - allocated;
+            pool.closeFileStream();
+            if (!CheckFile.check(FILE_NAME)) {
+                throw new IllegalStateException("Sort failed for " + label);
+            }
+            if (it >= 0) {
+                result.add(elapsed, allocated, pool.getStatistics());
+            }
+        }
+        result.print();
+    }
+
+
+    /**
+     * Generates the input file from the fixed seed, so every benchmark and
+     * iteration sees the same records.
+     *
+     * @param blocks
+     *            The number of blocks to generate.
+     * @param input
+     *            binary, ascii, sorted or reverse.
+     * @throws IOException
+     *             If the file cannot be rewritten.
+     */
+    private static void generate(int blocks, String input)
+        throws IOException {
+        FileGenerator fg = new FileGenerator(FILE_NAME, blocks);
+        fg.setSeed(SEED);
+        if (input.equals("ascii")) {
+            fg.generateFile(FileType.ASCII);
+            return;
+        }
+        fg.generateFile(FileType.BINARY);
+        if (input.equals("binary")) {
+            return;
+        }
+        if (!input.equals("sorted") && !input.equals("reverse")) {
+            throw new IllegalArgumentException("Unknown input: " + input);
+        }
+        RandomAccessFile file = new RandomAccessFile(FILE_NAME, "rw");
+        byte[] bytes = new byte[(int)file.length()];
+        file.readFully(bytes);
+        int[] records = new int[bytes.length / RECORD_SIZE];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(records);
+        Arrays.sort(records);
+        if (input.equals("reverse")) {
+            for (int i = 0, j = records.length - 1; i < j; i++, j--) {
+                int swap = records[i];
+                records[i] = records[j];
+                records[j] = swap;
+            }
+        }
+        ByteBuffer.wrap(bytes).asIntBuffer().put(records);
+        file.seek(0);
+        file.write(bytes);
+        file.close();
+    }
+
+
+    /**
+     * Gets the number of bytes allocated so far by the current thread, if
+     * the JVM can tell.
+     *
+     * @return The allocated bytes, or 0 if the JVM does not track them.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threads)
+                .getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+
+    /**
+     * Parses a comma-separated list of sizes.
+     *
+     * @param list
+     *            The list, such as "8,64".
+     * @return The sizes.
+     */
+    private static int[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i]);
+        }
+        return sizes;
+    }
+
+
+    /**
+     * The measured iterations of one benchmark for one combination of
+     * parameters.
+     */
+    private static class Measurement {
+        private String benchmark;
+        private String label;
+        private int operations;
+        private int iterations;
+        private long totalNanos;
+        private long fastestNanos;
+        private long slowestNanos;
+        private long allocated;
+        private long reads;
+        private long writes;
+
+        /**
+         * Constructs a new, empty Measurement.
+         *
+         * @param benchmark
+         *            The benchmark name.
+         * @param label
+         *            The parameters.
+         * @param operations
+         *            The number of operations in one iteration.
+         */
+        Measurement(String benchmark, String label, int operations) {
+            this.benchmark = benchmark;
+            this.label = label;
+            this.operations = operations;
+            fastestNanos = Long.MAX_VALUE;
+        }
+
+
+        /**
+         * Adds one measured iteration.
+         *
+         * @param nanos
+         *            The time the iteration took.
+         * @param bytes
+         *            The bytes it allocated.
+         * @param stats
+         *            The statistics of its pool, or null if it had none.
+         */
+        void add(long nanos, long bytes, Statistics stats) {
+            iterations++;
+            totalNanos += nanos;
+            fastestNanos = Math.min(fastestNanos, nanos);
+            slowestNanos = Math.max(slowestNanos, nanos);
+            allocated += bytes;
+            if (stats != null) {
+                reads += stats.getReads();
+                writes += stats.getWrites();
+            }
+        }
+
+
+        /**
+         * Prints the throughput, allocation and I/O per operation.
+         */
+        void print() {
+            double ops = (double)operations * iterations;
+            System.out.println(String.format(
+                "%s %s: %.1f ops/s (%.1f..%.1f), %.1f B/op, %.3f reads/op, "
+                    + "%.3f writes/op", benchmark, label, perSecond(ops,
+                        totalNanos), perSecond(operations, slowestNanos),
+                perSecond(operations, fastestNanos), allocated / ops, reads
+                    / ops, writes / ops));
+        }
+
+
+        /**
+         * Converts a count over a duration to a rate.
+         *
+         * @param count
+         *            The number of operations.
+         * @param nanos
+         *            The duration.
+         * @return Operations per second.
+         */
+        private double perSecond(double count, long nanos) {
+            return count * 1e9 / Math.max(nanos, 1);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Compares the buffer pool backends by sorting the same generated file with
+ * each of them and reporting the elapsed time together with the hit, read and
+ * write counts kept by Statistics. Every run sorts a fresh copy generated
+ * from the same seed, so the backends see identical input. Besides the
+ * explicit, slab, mmap and off-heap direct backends, every replacement
+ * policy is run on the slab backend so their disk reads can be compared,
+ * and the parallel run sorts on the slab backend with one fork/join thread
+ * per processor.
+ * Usage: java PoolBenchmark [blocks] [buffers] [repetitions]
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class PoolBenchmark {
+    private static final String FILE_NAME = "benchmark.bin";
+    private static final long SEED = 5040;
+
+    /**
+     * Runs the benchmark and prints one line per backend and repetition.
+     *
+     * @param arguments
+     *            Optional number of blocks, number of buffers and number of
+     *            repetitions.
+     * @throws Exception
+     *             If the file cannot be generated, sorted or checked.
+     */
+    public static void main(String[] arguments) throws Exception {
+        int blocks = arguments.length > 0
+            ? Integer.parseInt(arguments[0])
+            : 256;
+        int buffers = arguments.length > 1
+            ? Integer.parseInt(arguments[1])
+            : 64;
+        int repetitions = arguments.length > 2
+            ? Integer.parseInt(arguments[2])
+            : 3;
+        String[] backends = { "explicit", "slab", "mmap", "direct", "clock",
+            "2q", "arc", "lru2", "parallel" };
+
+        System.out.println("blocks=" + blocks + " buffers=" + buffers);
+        for (int r = 0; r < repetitions; r++) {
+            for (String backend : backends) {
+                run(backend, blocks, buffers);
+            }
+        }
+        new File(FILE_NAME).delete();
+    }
+
+
+    /**
+     * Generates the input, sorts it with one backend and prints the result.
+     *
+     * @param backend
+     *            The backend name: explicit, slab, mmap, parallel or a
+     *            replacement policy name.
+     * @param blocks
+     *            The number of blocks in the generated file.
+     * @param buffers
+     *            The number of buffers given to the pool.
+     * @throws Exception
+     *             If the file cannot be generated, sorted or checked.
+     */
+    private static void run(String backend, int blocks, int buffers)
+        throws Exception {
+        FileGenerator fg = new FileGenerator(FILE_NAME, blocks);
+        fg.setSeed(SEED);
+        fg.generateFile(FileType.BINARY);
+
+        RandomAccessFile file = new RandomAccessFile(FILE_NAME, "rw");
+        long start = System.nanoTime();
+        BufferPool pool = createPool(backend, file, buffers);
+        int threads = 1;
+        if (backend.equals("parallel")) {
+            threads = Runtime.getRuntime().availableProcessors();
+            pool = new SynchronizedBufferPool(pool);
+        }
+        new QuicksortManager(pool, pool.getFileLength(), threads);
+        pool.flush();
+        pool.closeFileStream();
+        long elapsed = System.nanoTime() - start;
+
+        Statistics stats = pool.getStatistics();
+        System.out.println(backend + ": " + (elapsed / 1000000) + " ms, hits "
+            + stats.getHits() + ", reads " + stats.getReads() + ", writes "
+            + stats.getWrites() + ", sorted " + CheckFile.check(FILE_NAME));
+    }
+
+
+    /**
+     * Creates the pool for a backend name.
+     *
+     * @param backend
+     *            The backend name: explicit, slab, mmap, direct, parallel or a
+     *            replacement policy name.
+     * @param file
+     *            The file to manage.
+     * @param buffers
+     *            The number of buffers given to the pool.
+     * @return The new buffer pool.
+     * @throws IOException
+     *             If the pool cannot be created.
+     */
+    private static BufferPool createPool(
+        String backend,
+        RandomAccessFile file,
+        int buffers)
+        throws IOException {
+        if (backend.equals("mmap")) {
+            return new MappedBufferPool(file, buffers);
+        }
+        if (backend.equals("direct")) {
+            return new DirectBufferPool(file, buffers, "lru",
+                RecordLayout.DEFAULT);
+        }
+        if (backend.equals("explicit")) {
+            return new LRUBufferPool(file, buffers, false, "lru");
+        }
+        if (backend.equals("slab") || backend.equals("parallel")) {
+            return new LRUBufferPool(file, buffers, true, "lru");
+        }
+        return new LRUBufferPool(file, buffers, true, backend);
+    }
+}
@@ -4,16 +4,19 @@
  * This queue supports basic enqueue and dequeue operations, and it allows
  * searching for buffer nodes based on their position.
  * The queue is implemented as a doubly linked list to efficiently add and
- * remove elements at both ends.
+ * remove elements at both ends, with a block index hash table alongside it so
+ * that a search finds its node in constant time. A successful search moves
+ * the node to the head, so the tail is always the least recently used buffer.
  */
 /**
  * @author {Ibrahim Khalilov} {Francisca Wood}
  * @version {ibrahimk} {fransciscawood}
  */
-public class Queue {
+public class Queue implements ReplacementPolicy {
     private Node<Buffer> tail;
     private Node<Buffer> head;
     private Node<Buffer> current;
+    private BlockTable<Node<Buffer>> index;
     private int size;
     private int capacity;
 
@@ -29,6 +32,7 @@ public class Queue {
         head = new Node<Buffer>(null, null, null);
         head.setNext(tail);
         tail.setPrev(head);
+        index = new BlockTable<Node<Buffer>>(capacity + 1);
         this.capacity = capacity;
         setSize(0);
     }
@@ -42,10 +46,14 @@ public class Queue {
      * @param buff
      *            The buffer to be added to the queue.
      */
+    @Override
     public void enqueue(Buffer buff) {
         current = new Node<Buffer>(buff, head, head.getNext());
         head.setNext(current);
         current.getNext().setPrev(current);
+        if (buff.getPosition() >= 0) {
+            index.put(buff.getPosition(), current);
+        }
         size++;
     }
 
@@ -56,6 +64,7 @@ public class Queue {
      *
      * @return The buffer removed from the queue, or null if the queue is empty.
      */
+    @Override
     public Buffer dequeue() {
         if (size == 0) {
             return null;
@@ -64,6 +73,9 @@ public class Queue {
         Buffer val = current.getVal();
         current.getPrev().setNext(tail);
         tail.setPrev(current.getPrev());
+        if (val.getPosition() >= 0 && index.get(val.getPosition()) == current) {
+            index.remove(val.getPosition());
+        }
         current = head.getNext();
         size--;
         return val;
@@ -71,24 +83,119 @@ public class Queue {
 
 
     /**
-     * Searches for a buffer in the queue based on its position.
+     * Searches for a buffer in the queue based on its position. A buffer that
+     * is found becomes the most recently used one and is moved to the head.
      *
      * @param pos
      *            The position of the buffer to search for.
      * @return The found buffer, or null if no buffer with the specified
      *         position exists in the queue.
      */
+    @Override
     public Buffer search(int pos) {
-        Buffer found = null;
-        Node<Buffer> temp = head.getNext();
-        while (temp.getVal() != null) {
-            if (temp.getVal().getPosition() == pos) {
-                found = temp.getVal();
-                break;
-            }
-            temp = temp.getNext();
+        Node<Buffer> found = index.get(pos);
+        if (found == null) {
+            return null;
+        }
+        promote(found);
+        return found.getVal();
+    }
+
+
+    /**
+     * Finds a buffer based on its position without changing its place in
+     * the queue.
+     *
+     * @param pos
+     *            The position of the buffer to look for.
+     * @return The found buffer, or null if no buffer with the specified
+     *         position exists in the queue.
+     */
+    @Override
+    public Buffer get(int pos) {
+        Node<Buffer> found = index.get(pos);
+        return found == null ? null : found.getVal();
+    }
+
+
+    /**
+     * Removes the buffer with a given position from anywhere in the queue.
+     *
+     * @param pos
+     *            The position of the buffer to remove.
+     * @return The removed buffer, or null if no buffer with the specified
+     *         position exists in the queue.
+     */
+    public Buffer remove(int pos) {
+        Node<Buffer> found = index.remove(pos);
+        if (found == null) {
+            return null;
+        }
+        found.getPrev().setNext(found.getNext());
+        found.getNext().setPrev(found.getPrev());
+        current = head.getNext();
+        size--;
+        return found.getVal();
+    }
+
+
+    /**
+     * Retrieves the least recently used buffer without removing it.
+     *
+     * @return The buffer at the tail of the queue, or null if the queue is
+     *         empty.
+     */
+    @Override
+    public Buffer peekVictim() {
+        return tail.getPrev().getVal();
+    }
+
+
+    /**
+     * Reassigns the least recently used buffer to a new position and makes it
+     * the most recently used, reusing its node so nothing is allocated. The
+     * caller is responsible for writing the buffer back beforehand if it is
+     * dirty.
+     *
+     * @param pos
+     *            The new position for the recycled buffer.
+     * @return The recycled buffer, or null if the queue is empty.
+     */
+    @Override
+    public Buffer recycle(int pos) {
+        if (size == 0) {
+            return null;
+        }
+        Node<Buffer> node = tail.getPrev();
+        Buffer val = node.getVal();
+        if (val.getPosition() >= 0 && index.get(val.getPosition()) == node) {
+            index.remove(val.getPosition());
+        }
+        val.setPosition(pos);
+        val.setDirty(false);
+        index.put(pos, node);
+        promote(node);
+        return val;
+    }
+
+
+    /**
+     * Unlinks a node from its current place in the list and relinks it right
+     * after the head, making its buffer the most recently used.
+     *
+     * @param node
+     *            The node to move to the head of the queue.
+     */
+    private void promote(Node<Buffer> node) {
+        if (head.getNext() == node) {
+            return;
         }
-        return found;
+        node.getPrev().setNext(node.getNext());
+        node.getNext().setPrev(node.getPrev());
+        node.setPrev(head);
+        node.setNext(head.getNext());
+        head.getNext().setPrev(node);
+        head.setNext(node);
     }
 
 
@@ -97,6 +204,7 @@ public class Queue {
      *
      * @return The number of elements in the queue.
      */
+    @Override
     public int getSize() {
         return size;
     }
@@ -119,6 +227,7 @@ public class Queue {
      *
      * @return The maximum number of elements the queue can hold.
      */
+    @Override
     public int getCapacity() {
         return capacity;
     }
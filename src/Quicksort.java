@@ -42,6 +42,39 @@ public class Quicksort {
 
     /**
      * Main method to execute the sorting process.
+     * The arguments are the data file, the number of buffers and the
+     * statistics file, optionally followed by option flags:
+     * -engine=name picks the sort (quick, the in-place quicksort through the
+     * buffer pool, merge, the external merge sort, or distribution, the
+     * counting sort on 16-bit keys; quick by default),
+     * -slab preallocates all buffers in one slab that is recycled in place,
+     * -mmap maps the file into memory instead of reading and writing blocks
+     * explicitly, -direct keeps the buffers off the heap in direct memory,
+     * -policy=name picks the replacement policy (lru, clock, 2q, arc or
+     * lru2; lru by default), -threads=n sorts with n fork/join threads
+     * sharing one synchronized pool, -concurrent uses a lock-striped pool
+     * with pinned frames and CLOCK eviction that the threads share without a
+     * global lock, -localsort sorts small partitions as soon as they are
+     * formed instead of in a final insertion sort pass over the whole file,
+     * -partition=name picks the partitioning scheme (hoare, threeway or
+     * block; hoare by default), -pivot=name picks the pivot strategy
+     * (median3, or sampled for a ninther that favors resident blocks;
+     * median3 by default),
+     * -writebehind=n hands dirty blocks to a background writer with n
+     * staging frames, -prefetch=n reads n blocks ahead of sequential
+     * scans in the background, -metrics=path appends every counter,
+     * phase time and latency histogram of the sort to path as one line of
+     * JSON, and -blocksize=n, -recordsize=n, -keyoffset=n and -keywidth=n
+     * describe the file as blocks of n bytes (4096 by default) holding
+     * records of n bytes (4 by default) whose key of 1 or 2 bytes (2 by
+     * default) starts at byte n of the record (0 by default). The number of
+     * buffers counts blocks of the given size. The merge and distribution
+     * engines hold each record in an int and so only sort packed records,
+     * 4 bytes with a 2-byte key first; quick sorts any layout.
+     * -checkpoint=ms makes a quick sort with the default pool and one thread
+     * resumable: it keeps a journal next to the file, takes a checkpoint at
+     * least ms milliseconds apart, and a later run with the same arguments
+     * picks up from the last checkpoint if the sort did not finish.
      * 
      * @param arguments
      *            Command line arguments provided to the program.
@@ -49,7 +82,23 @@ public class Quicksort {
      *             If an I/O error occurs.
      */
     public static void main(String[] arguments) throws IOException {
-        int poolSize = Integer.parseInt(arguments[1]);
+        run(arguments);
+    }
+
+
+    /**
+     * Sorts the data file named in the arguments and appends its statistics
+     * to the statistics file, exactly as main does.
+     *
+     * @param arguments
+     *            Command line arguments, as for main.
+     * @return The statistics of the sort, or null if the data file could not
+     *         be opened.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public static Statistics run(String[] arguments) throws IOException {
+        RecordLayout layout = parseLayout(arguments);
         RandomAccessFile targetFile = null;
         try {
             targetFile = new RandomAccessFile(arguments[0], "rw");
@@ -57,30 +106,230 @@ public class Quicksort {
         catch (Exception e) {
             e.printStackTrace();
         }
-        if (targetFile != null) {
-            FileWriter logFile = new FileWriter(arguments[2], true);
+        if (targetFile == null) {
+            System.out.println("File not found: " + arguments[0]);
+            return null;
+        }
+        FileWriter logFile = new FileWriter(arguments[2], true);
 
-            long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
 
-            LRUBufferPool memoryPool = new LRUBufferPool(targetFile, poolSize);
-            memoryPool.closeFileStream();
+        Statistics stats = sortFile(targetFile, arguments, layout);
 
-            Statistics.setExecutionTime(System.currentTimeMillis() - startTime);
+        stats.setExecutionNanos(System.nanoTime() - startTime);
 
-            logFile.write("Sorting process initiated for: " + arguments[0]
-                + "\n");
-            logFile.write("Cache Hit Count: " + Statistics.getHits() + "\n");
-            logFile.write("Number of Reads from Disk: " + Statistics.getReads()
-                + "\n");
-            logFile.write("Number of Writes to Disk: " + Statistics.getWrites()
+        logFile.write("Sorting process initiated for: " + arguments[0] + "\n");
+        String engine = optionValue(arguments, "-engine=", null);
+        if (engine != null) {
+            logFile.write("Sort Engine: " + engine + "\n");
+        }
+        String partition = optionValue(arguments, "-partition=", null);
+        if (partition != null) {
+            logFile.write("Partition Scheme: " + partition + "\n");
+        }
+        String pivot = optionValue(arguments, "-pivot=", null);
+        if (pivot != null) {
+            logFile.write("Pivot Strategy: " + pivot + "\n");
+        }
+        String policy = optionValue(arguments, "-policy=", null);
+        if (policy != null) {
+            logFile.write("Replacement Policy: " + policy + "\n");
+        }
+        logFile.write("Cache Hit Count: " + stats.getHits() + "\n");
+        logFile.write("Number of Reads from Disk: " + stats.getReads()
+            + "\n");
+        logFile.write("Number of Writes to Disk: " + stats.getWrites()
+            + "\n");
+        if (optionValue(arguments, "-prefetch=", null) != null) {
+            logFile.write("Prefetch Hits: " + stats.getPrefetchHits() + "\n");
+            logFile.write("Prefetch Wasted: " + stats.getPrefetchWasted()
                 + "\n");
-            logFile.write("Elapsed Time: " + Statistics.measureTime()
-                + " milliseconds \n");
-            logFile.flush();
-            logFile.close();
+        }
+        logFile.write("Elapsed Time: " + stats.measureTime()
+            + " milliseconds \n");
+        logFile.flush();
+        logFile.close();
+
+        String metricsPath = optionValue(arguments, "-metrics=", null);
+        if (metricsPath != null) {
+            FileWriter metricsFile = new FileWriter(metricsPath, true);
+            metricsFile.write(stats.toJson() + "\n");
+            metricsFile.close();
+        }
+        return stats;
+    }
+
+
+    /**
+     * Sorts the open file with the engine and pool the options ask for, and
+     * closes it. Writing the sorted blocks back is timed as the "flush"
+     * phase.
+     *
+     * @param targetFile
+     *            The open file to sort.
+     * @param arguments
+     *            Command line arguments provided to the program.
+     * @param layout
+     *            The block size, record size and key position of the file.
+     * @return The statistics of the sort.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private static Statistics sortFile(
+        RandomAccessFile targetFile,
+        String[] arguments,
+        RecordLayout layout)
+        throws IOException {
+        int poolSize = Integer.parseInt(arguments[1]);
+        String engine = optionValue(arguments, "-engine=", "quick");
+        if (engine.equals("merge")) {
+            MergeSortManager merge = new MergeSortManager(targetFile,
+                arguments[0], poolSize, layout);
+            targetFile.close();
+            return merge.getStatistics();
+        }
+        if (engine.equals("distribution")) {
+            DistributionSortManager distribution = new DistributionSortManager(
+                targetFile, arguments[0], poolSize, layout);
+            targetFile.close();
+            return distribution.getStatistics();
+        }
+        if (!engine.equals("quick")) {
+            targetFile.close();
+            throw new IllegalArgumentException("Unknown sort engine: "
+                + engine);
+        }
+
+        boolean useSlab = hasFlag(arguments, "-slab");
+        boolean useMapping = hasFlag(arguments, "-mmap");
+        boolean concurrent = hasFlag(arguments, "-concurrent");
+        boolean direct = hasFlag(arguments, "-direct");
+        String policy = optionValue(arguments, "-policy=", "lru");
+        int threads = Integer.parseInt(optionValue(arguments, "-threads=",
+            "1"));
+        String checkpoint = optionValue(arguments, "-checkpoint=", null);
+        SortJournal journal = null;
+        if (checkpoint != null) {
+            if (useMapping || direct || concurrent || threads > 1) {
+                targetFile.close();
+                throw new IllegalArgumentException(
+                    "-checkpoint needs the default pool and one thread");
+            }
+            journal = new SortJournal(arguments[0], layout, Long.parseLong(
+                checkpoint));
+        }
+        BufferPool memoryPool;
+        if (useMapping) {
+            memoryPool = new MappedBufferPool(targetFile, poolSize, layout);
+        }
+        else if (direct) {
+            memoryPool = new DirectBufferPool(targetFile, poolSize, policy,
+                layout);
+        }
+        else if (concurrent) {
+            memoryPool = new ConcurrentBufferPool(targetFile, poolSize,
+                layout);
         }
         else {
-            System.out.println("File not found: " + arguments[0]);
+            LRUBufferPool explicitPool = new LRUBufferPool(targetFile,
+                poolSize, useSlab, policy, layout);
+            explicitPool.setJournal(journal);
+            int stagingFrames = Integer.parseInt(optionValue(arguments,
+                "-writebehind=", "0"));
+            if (stagingFrames > 0) {
+                explicitPool.enableWriteBehind(stagingFrames);
+            }
+            int readAhead = Integer.parseInt(optionValue(arguments,
+                "-prefetch=", "0"));
+            if (readAhead > 0) {
+                explicitPool.enableReadAhead(readAhead);
+            }
+            memoryPool = explicitPool;
+        }
+        if (threads > 1 && !concurrent) {
+            memoryPool = new SynchronizedBufferPool(memoryPool);
+        }
+        SortOptions options = new SortOptions();
+        options.setThreads(threads);
+        options.setLocalSort(hasFlag(arguments, "-localsort"));
+        options.setPartition(optionValue(arguments, "-partition=", "hoare"));
+        options.setPivot(optionValue(arguments, "-pivot=", "median3"));
+        options.setJournal(journal);
+        new QuicksortManager(memoryPool, memoryPool.getFileLength(), options);
+        long begin = System.nanoTime();
+        memoryPool.flush();
+        memoryPool.closeFileStream();
+        memoryPool.getStatistics().addPhaseTime("flush", System.nanoTime()
+            - begin);
+        return memoryPool.getStatistics();
+    }
+
+
+    /**
+     * Builds the record layout described by the -blocksize, -recordsize,
+     * -keyoffset and -keywidth options, each defaulting to the original
+     * layout.
+     *
+     * @param arguments
+     *            Command line arguments provided to the program.
+     * @return The layout of the data file.
+     */
+    private static RecordLayout parseLayout(String[] arguments) {
+        RecordLayout standard = RecordLayout.DEFAULT;
+        int blockSize = Integer.parseInt(optionValue(arguments, "-blocksize=",
+            String.valueOf(standard.getBlockSize())));
+        int recordSize = Integer.parseInt(optionValue(arguments,
+            "-recordsize=", String.valueOf(standard.getRecordSize())));
+        int keyOffset = Integer.parseInt(optionValue(arguments, "-keyoffset=",
+            String.valueOf(standard.getKeyOffset())));
+        int keyWidth = Integer.parseInt(optionValue(arguments, "-keywidth=",
+            String.valueOf(standard.getKeyWidth())));
+        return new RecordLayout(blockSize, recordSize, keyOffset, keyWidth);
+    }
+
+
+    /**
+     * Checks whether an option flag was given after the three required
+     * arguments.
+     *
+     * @param arguments
+     *            Command line arguments provided to the program.
+     * @param flag
+     *            The flag to look for, such as "-slab".
+     * @return true if the flag is present, false otherwise.
+     */
+    private static boolean hasFlag(String[] arguments, String flag) {
+        for (int i = 3; i < arguments.length; i++) {
+            if (arguments[i].equals(flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Looks up the value of an option of the form -name=value given after
+     * the three required arguments.
+     *
+     * @param arguments
+     *            Command line arguments provided to the program.
+     * @param prefix
+     *            The option prefix including the equals sign, such as
+     *            "-policy=".
+     * @param fallback
+     *            The value to use when the option is absent.
+     * @return The option value, or the fallback if it is absent.
+     */
+    private static String optionValue(
+        String[] arguments,
+        String prefix,
+        String fallback) {
+        for (int i = 3; i < arguments.length; i++) {
+            if (arguments[i].startsWith(prefix)) {
+                return arguments[i].substring(prefix.length());
+            }
         }
+        return fallback;
     }
 }
@@ -1,4 +1,9 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A manager class that implements a hybrid sorting algorithm combining
@@ -8,41 +13,250 @@ import java.io.IOException;
  * Quicksort is used for sorting large segments of the dataset, and Insertion
  * Sort is applied for final tuning
  * on smaller segments to improve the overall sorting performance.
+ * In parallel mode the partitions are sorted as fork/join tasks: a task
+ * partitions its range and forks both sides, and once a range falls below
+ * PARALLEL_THRESHOLD records it is sorted sequentially, insertion sort
+ * included, by a single task. The ranges given to concurrent tasks are
+ * disjoint, and the buffer pool must be safe to share between threads.
+ * When the whole file fits in the pool, none of this is needed: the records
+ * are read with one bulk read, sorted as a primitive array (in parallel when
+ * large) and written back with one bulk write.
+ * In local sort mode a partition of at most INSERTION_SORT_THRESHOLD_MAX
+ * records is sorted as soon as it is formed, while its blocks are still
+ * resident: its records are copied into a small array, sorted there by
+ * insertion sort and only the records that moved are written back. Every
+ * partition is then final when the recursion returns, and the insertion
+ * sort over the whole file is skipped.
+ * The three-way partition scheme suits files with few distinct keys: records
+ * equal to the pivot are gathered in the middle of the range and left out of
+ * both recursive calls, so a run of equal keys is never swapped again.
+ * The block partition scheme moves whole blocks instead of single records:
+ * it copies one block from each end of the range into local arrays, pairs
+ * up and exchanges misplaced records between the two copies, and writes a
+ * copy back in one piece once every record in it is on the correct side.
+ * With the sampled pivot strategy a range of at least SAMPLE_THRESHOLD
+ * records is split into nine equal strata and one record taken from each;
+ * the pivot is the median of the medians of the three groups of three, a
+ * ninther, which is far less likely than a median of three to land near
+ * either end of the keys. A stratum's middle record is only a default:
+ * the blocks around it are probed, up to SAMPLE_PROBES of them, and the
+ * nearest record in a block the pool already holds is taken instead, so
+ * the sample rarely costs a read. Smaller ranges use the median of three.
+ * Partitioning does not recurse. The ranges still to sort wait on an
+ * explicit stack, and after each partition the sort carries on with one
+ * side and pushes the other: the smaller side, so the stack never holds
+ * more than a logarithmic number of ranges, unless neither side is more
+ * than twice the other, in which case the side with more of its end
+ * blocks resident goes first while they are still in the pool. Every range
+ * has a depth budget of twice the base-two logarithm of the records it
+ * started with, spent one partition at a time, and a range that runs out
+ * is heapsorted in place through the pool instead, so a run of bad pivots
+ * costs at most O(n log n) time rather than O(n^2). Parallel tasks share
+ * the same budget.
+ * With a SortJournal the single-threaded sort can be resumed after a
+ * crash. It takes a checkpoint of the ranges waiting on the stack before
+ * the first partition, whenever the journal's interval has passed between
+ * two partitions, and before the final insertion pass, and it starts from
+ * the journal's ranges, or straight at the insertion pass, when the journal
+ * holds a checkpoint. The journal is finished once the sorted file is
+ * flushed.
+ * Records follow the pool's RecordLayout. The in-memory sort, local sort
+ * mode and the block partition scheme handle records as ints, so they are
+ * only used for packed layouts; other layouts are partitioned record by
+ * record through fetchKey and swapRecords, Hoare or three-way, and finished
+ * by an insertion sort that moves records as bytes.
+ * The time spent in each phase, the partitioning pass ("quicksort"), the
+ * final insertion sort pass ("insertion") or the whole in-memory sort
+ * ("inmemory"), is added to the pool's statistics.
  */
 /**
  * @author {Ibrahim Khalilov} {Francisca Wood}
  * @version {ibrahimk} {fransciscawood}
  */
 public class QuicksortManager {
-    private static LRUBufferPool bufferPoolInstance;
-    private static final int SIZE_OF_RECORD = 4;
+    private BufferPool bufferPoolInstance;
     private static final int INSERTION_SORT_THRESHOLD_MAX = 10;
     private static final int INSERTION_SORT_THRESHOLD_MIN = 3;
+    private static final int PARALLEL_THRESHOLD = 16384;
+    private static final int PARALLEL_ARRAY_THRESHOLD = 1 << 16;
+    private static final int SAMPLE_THRESHOLD = 4096;
+    private static final int SAMPLE_PROBES = 8;
+    private boolean localSort;
+    private boolean threeWay;
+    private boolean blockPartition;
+    private boolean sampledPivot;
+    private boolean packed;
+    private int recordSize;
+    private int recordsPerBlock;
+    private SortJournal journal;
 
     /**
      * Constructs a new QuicksortManager instance and initiates the hybrid
      * sorting process on the dataset.
      *
      * @param pool
-     *            The LRUBufferPool instance used for managing disk and memory
+     *            The buffer pool instance used for managing disk and memory
      *            data access.
      * @param lengthOfFile
      *            The length of the file to be sorted, in bytes.
      * @throws IOException
      *             If an I/O error occurs during the sorting process.
      */
-    public QuicksortManager(LRUBufferPool pool, int lengthOfFile)
+    public QuicksortManager(BufferPool pool, long lengthOfFile)
+        throws IOException {
+        this(pool, lengthOfFile, 1);
+    }
+
+
+    /**
+     * Constructs a new QuicksortManager instance and sorts the dataset,
+     * using a fork/join pool when more than one thread is requested.
+     *
+     * @param pool
+     *            The buffer pool instance used for managing disk and memory
+     *            data access. It must be thread-safe if threads is more than
+     *            one.
+     * @param lengthOfFile
+     *            The length of the file to be sorted, in bytes.
+     * @param threads
+     *            The number of threads to sort with.
+     * @throws IOException
+     *             If an I/O error occurs during the sorting process.
+     */
+    public QuicksortManager(BufferPool pool, long lengthOfFile, int threads)
+        throws IOException {
+        this(pool, lengthOfFile, threadOptions(threads));
+    }
+
+
+    /**
+     * Constructs a new QuicksortManager instance and sorts the dataset with
+     * the given options.
+     *
+     * @param pool
+     *            The buffer pool instance used for managing disk and memory
+     *            data access. It must be thread-safe if the options ask for
+     *            more than one thread.
+     * @param lengthOfFile
+     *            The length of the file to be sorted, in bytes.
+     * @param options
+     *            The settings to sort with.
+     * @throws IOException
+     *             If an I/O error occurs during the sorting process.
+     */
+    public QuicksortManager(
+        BufferPool pool,
+        long lengthOfFile,
+        SortOptions options)
         throws IOException {
         bufferPoolInstance = pool;
-        performQuickSortHybrid(0, (lengthOfFile / SIZE_OF_RECORD) - 1);
+        RecordLayout layout = pool.getLayout();
+        packed = layout.isPacked();
+        recordSize = layout.getRecordSize();
+        recordsPerBlock = layout.getRecordsPerBlock();
+        localSort = packed && options.isLocalSort();
+        threeWay = options.getPartition().equals("threeway");
+        blockPartition = packed && options.getPartition().equals("block");
+        sampledPivot = options.getPivot().equals("sampled");
+        int threads = options.getThreads();
+        journal = options.getJournal();
+        if (journal != null && threads > 1) {
+            throw new IllegalArgumentException(
+                "A journal needs a single-threaded sort");
+        }
+        long lastIndex = (lengthOfFile / recordSize) - 1;
+        Statistics stats = pool.getStatistics();
+        long begin = System.nanoTime();
+        if (packed && pool.fitsInMemory()) {
+            int[] records = pool.readAllRecords();
+            if (records.length >= PARALLEL_ARRAY_THRESHOLD) {
+                Arrays.parallelSort(records);
+            }
+            else {
+                Arrays.sort(records);
+            }
+            pool.writeAllRecords(records);
+            stats.addPhaseTime("inmemory", System.nanoTime() - begin);
+            finishJournal();
+            return;
+        }
+        if (threads <= 1) {
+            ArrayDeque<long[]> pending = new ArrayDeque<long[]>();
+            boolean insertionOnly = false;
+            if (journal != null && journal.isResumed()) {
+                pending.addAll(journal.getRanges());
+                insertionOnly = journal.isInsertionPhase();
+            }
+            else {
+                pending.push(new long[] { 0, lastIndex, depthLimit(lastIndex
+                    + 1) });
+                if (journal != null) {
+                    journal.checkpoint(pool, pending, false);
+                }
+            }
+            if (!insertionOnly) {
+                sortPending(pending);
+                stats.addPhaseTime("quicksort", System.nanoTime() - begin);
+            }
+            if (!localSort) {
+                if (journal != null && !insertionOnly) {
+                    journal.checkpoint(pool, pending, true);
+                }
+                begin = System.nanoTime();
+                insertionSort(0, lastIndex);
+                stats.addPhaseTime("insertion", System.nanoTime() - begin);
+            }
+            finishJournal();
+            return;
+        }
+        ForkJoinPool workers = new ForkJoinPool(threads);
+        try {
+            // Leaves finish their own ranges, so the whole run is one phase
+            workers.invoke(new SortTask(0, lastIndex, depthLimit(lastIndex
+                + 1)));
+            stats.addPhaseTime("quicksort", System.nanoTime() - begin);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            workers.shutdown();
+        }
+    }
+
+
+    /**
+     * Flushes the sorted file and finishes the journal, if there is one.
+     *
+     * @throws IOException
+     *             If the pool cannot be flushed or the journal closed.
+     */
+    private void finishJournal() throws IOException {
+        if (journal != null) {
+            bufferPoolInstance.flush();
+            journal.finish();
+        }
+    }
+
 
-        insertionSort(0, (lengthOfFile / SIZE_OF_RECORD) - 1);
+    /**
+     * Creates the default options with a number of threads.
+     *
+     * @param threads
+     *            The number of threads to sort with.
+     * @return The options.
+     */
+    private static SortOptions threadOptions(int threads) {
+        SortOptions options = new SortOptions();
+        options.setThreads(threads);
+        return options;
     }
 
 
     /**
      * Chooses a pivot index for the Quicksort partitioning process using the
-     * median-of-three method.
+     * median-of-three method, or a ninther of resident samples for large
+     * ranges under the sampled strategy.
      *
      * @param leftIndex
      *            The starting index of the segment to be sorted.
@@ -53,56 +267,343 @@ public class QuicksortManager {
      *             If an I/O error occurs when fetching keys from the buffer
      *             pool.
      */
-    private int choosePivotIndex(int leftIndex, int rightIndex)
+    private long choosePivotIndex(long leftIndex, long rightIndex)
+        throws IOException {
+        if (sampledPivot && rightIndex - leftIndex + 1 >= SAMPLE_THRESHOLD) {
+            long[] samples = new long[9];
+            long length = rightIndex - leftIndex + 1;
+            for (int s = 0; s < 9; s++) {
+                samples[s] = sampleIndex(leftIndex + length * s / 9,
+                    leftIndex + length * (s + 1) / 9 - 1);
+            }
+            return medianIndex(medianIndex(samples[0], samples[1],
+                samples[2]), medianIndex(samples[3], samples[4], samples[5]),
+                medianIndex(samples[6], samples[7], samples[8]));
+        }
+        return medianIndex(leftIndex, (leftIndex + rightIndex) / 2,
+            rightIndex);
+    }
+
+
+    /**
+     * Finds which of three records holds the median key.
+     *
+     * @param first
+     *            The index of the first record.
+     * @param middle
+     *            The index of the second record.
+     * @param last
+     *            The index of the third record.
+     * @return The index of the record whose key is the median.
+     * @throws IOException
+     *             If an I/O error occurs when fetching keys.
+     */
+    private long medianIndex(long first, long middle, long last)
         throws IOException {
-        short firstKey = bufferPoolInstance.fetchKey(leftIndex);
-        short middleKey = bufferPoolInstance.fetchKey((leftIndex + rightIndex)
-            / 2);
-        short lastKey = bufferPoolInstance.fetchKey(rightIndex);
+        short firstKey = bufferPoolInstance.fetchKey(first);
+        short middleKey = bufferPoolInstance.fetchKey(middle);
+        short lastKey = bufferPoolInstance.fetchKey(last);
 
         if ((firstKey > middleKey) ^ (firstKey > lastKey))
-            return leftIndex;
+            return first;
         else if ((middleKey > firstKey) ^ (middleKey > lastKey))
-            return (leftIndex + rightIndex) / 2;
+            return middle;
         else
-            return rightIndex;
+            return last;
+    }
+
+
+    /**
+     * Picks the record to sample from one stratum of a range: the record at
+     * the middle if its block is resident, otherwise the record at the same
+     * place in the nearest resident block within the stratum, probing
+     * outwards one block at a time on alternate sides, or the middle record
+     * if no probed block is resident.
+     *
+     * @param low
+     *            The first index of the stratum.
+     * @param high
+     *            The last index of the stratum.
+     * @return The index of the record to sample.
+     */
+    private long sampleIndex(long low, long high) {
+        long middle = (low + high) / 2;
+        if (bufferPoolInstance.isResident(middle)) {
+            return middle;
+        }
+        for (int probe = 1; probe <= SAMPLE_PROBES / 2; probe++) {
+            long step = (long)probe * recordsPerBlock;
+            if (middle + step <= high
+                && bufferPoolInstance.isResident(middle + step)) {
+                return middle + step;
+            }
+            if (middle - step >= low
+                && bufferPoolInstance.isResident(middle - step)) {
+                return middle - step;
+            }
+        }
+        return middle;
+    }
+
+
+    /**
+     * Computes the partitioning depth a range is allowed before it is
+     * heapsorted instead.
+     *
+     * @param count
+     *            The number of records in the range.
+     * @return Twice the base-two logarithm of the count.
+     */
+    private static int depthLimit(long count) {
+        return 2 * (63 - Long.numberOfLeadingZeros(Math.max(1, count)));
     }
 
 
     /**
      * Performs the hybrid Quicksort on the specified segment of the dataset.
-     * If the segment size falls within a specific range, the method returns
-     * early,
-     * deferring the final sorting to Insertion Sort.
      *
      * @param leftIndex
      *            The starting index of the segment to be sorted.
      * @param rightIndex
      *            The ending index of the segment to be sorted.
+     * @param depthLimit
+     *            The number of partitions allowed on the way to any record
+     *            before the range holding it is heapsorted.
      * @throws IOException
      *             If an I/O error occurs during sorting.
      */
-    private void performQuickSortHybrid(int leftIndex, int rightIndex)
+    private void performQuickSortHybrid(
+        long leftIndex,
+        long rightIndex,
+        int depthLimit)
+        throws IOException {
+        ArrayDeque<long[]> pending = new ArrayDeque<long[]>();
+        pending.push(new long[] { leftIndex, rightIndex, depthLimit });
+        sortPending(pending);
+    }
+
+
+    /**
+     * Sorts the ranges on a stack until it is empty. Ranges wait on the
+     * stack rather than in recursive calls. A range whose size falls within
+     * a specific range is left for the final Insertion Sort, or in local
+     * sort mode sorted right away, a range that has used up its depth budget
+     * is heapsorted, and a checkpoint is taken between partitions whenever
+     * the journal says one is due.
+     *
+     * @param pending
+     *            The ranges to sort, each the first and last index and the
+     *            depth budget left.
+     * @throws IOException
+     *             If an I/O error occurs during sorting.
+     */
+    private void sortPending(ArrayDeque<long[]> pending) throws IOException {
+        while (!pending.isEmpty()) {
+            long[] range = pending.pop();
+            long left = range[0];
+            long right = range[1];
+            int depth = (int)range[2];
+            while (!settleRange(left, right)) {
+                if (depth == 0) {
+                    heapSort(left, right);
+                    break;
+                }
+                if (journal != null && journal.isDue()) {
+                    pending.push(new long[] { left, right, depth });
+                    journal.checkpoint(bufferPoolInstance, pending, false);
+                    pending.pop();
+                }
+                depth--;
+                long[] bounds = partition(left, right);
+                if (continueLeft(left, bounds[0], bounds[1], right)) {
+                    pending.push(new long[] { bounds[1], right, depth });
+                    right = bounds[0];
+                }
+                else {
+                    pending.push(new long[] { left, bounds[0], depth });
+                    left = bounds[1];
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Finishes a range that needs no partitioning: an empty or single
+     * record range, or a small one, which is left for the final insertion
+     * sort or sorted right away in local sort mode.
+     *
+     * @param leftIndex
+     *            The starting index of the range.
+     * @param rightIndex
+     *            The ending index of the range.
+     * @return true if the range is done with, false if it must be
+     *         partitioned.
+     * @throws IOException
+     *             If an I/O error occurs while sorting a small range.
+     */
+    private boolean settleRange(long leftIndex, long rightIndex)
         throws IOException {
         if (rightIndex <= leftIndex) {
-            return;
+            return true;
         }
-        if (rightIndex - leftIndex + 1 <= INSERTION_SORT_THRESHOLD_MAX
-            && rightIndex - leftIndex + 1 >= INSERTION_SORT_THRESHOLD_MIN) {
-            // Defer to insertion sort for the final tuning at the end of the
-            // method
-            return;
+        if (localSort && rightIndex - leftIndex
+            + 1 <= INSERTION_SORT_THRESHOLD_MAX) {
+            sortSmallPartition(leftIndex, rightIndex);
+            return true;
         }
-        else {
-            int pivotIndex = choosePivotIndex(leftIndex, rightIndex);
-            swapElements(pivotIndex, rightIndex);
-            int partitionIndex = partitionDSA(leftIndex, rightIndex - 1,
-                bufferPoolInstance.fetchKey(rightIndex));
-            swapElements(partitionIndex, rightIndex);
+        // Defer to insertion sort for the final tuning at the end
+        return rightIndex - leftIndex + 1 <= INSERTION_SORT_THRESHOLD_MAX
+            && rightIndex - leftIndex + 1 >= INSERTION_SORT_THRESHOLD_MIN;
+    }
+
 
-            performQuickSortHybrid(leftIndex, partitionIndex - 1);
-            performQuickSortHybrid(partitionIndex + 1, rightIndex);
+    /**
+     * Decides which side of a partition to sort next. The smaller side goes
+     * first when one side is more than twice the other; otherwise the side
+     * with more resident end records does, and the smaller on a tie.
+     *
+     * @param leftIndex
+     *            The first index of the left side.
+     * @param leftEnd
+     *            The last index of the left side.
+     * @param rightStart
+     *            The first index of the right side.
+     * @param rightIndex
+     *            The last index of the right side.
+     * @return true to continue with the left side, false for the right.
+     */
+    private boolean continueLeft(
+        long leftIndex,
+        long leftEnd,
+        long rightStart,
+        long rightIndex) {
+        long leftCount = leftEnd - leftIndex + 1;
+        long rightCount = rightIndex - rightStart + 1;
+        if (leftCount > 2 * rightCount || rightCount > 2 * leftCount) {
+            return leftCount < rightCount;
         }
+        int leftResident = residentEnds(leftIndex, leftEnd);
+        int rightResident = residentEnds(rightStart, rightIndex);
+        if (leftResident != rightResident) {
+            return leftResident > rightResident;
+        }
+        return leftCount <= rightCount;
+    }
+
+
+    /**
+     * Counts how many of the two end records of a range are in blocks the
+     * pool holds.
+     *
+     * @param leftIndex
+     *            The first index of the range.
+     * @param rightIndex
+     *            The last index of the range.
+     * @return 0, 1 or 2.
+     */
+    private int residentEnds(long leftIndex, long rightIndex) {
+        int resident = 0;
+        if (bufferPoolInstance.isResident(leftIndex)) {
+            resident++;
+        }
+        if (bufferPoolInstance.isResident(rightIndex)) {
+            resident++;
+        }
+        return resident;
+    }
+
+
+    /**
+     * Sorts a range in place with heapsort through the buffer pool, which
+     * takes O(n log n) time whatever the keys. It is the fallback for ranges
+     * that exhaust their depth budget.
+     *
+     * @param leftIndex
+     *            The starting index of the range.
+     * @param rightIndex
+     *            The ending index of the range.
+     * @throws IOException
+     *             If an I/O error occurs when accessing the buffer pool.
+     */
+    private void heapSort(long leftIndex, long rightIndex)
+        throws IOException {
+        long count = rightIndex - leftIndex + 1;
+        for (long root = count / 2 - 1; root >= 0; root--) {
+            siftDown(leftIndex, root, count);
+        }
+        for (long end = count - 1; end > 0; end--) {
+            swapElements(leftIndex, leftIndex + end);
+            siftDown(leftIndex, 0, end);
+        }
+    }
+
+
+    /**
+     * Moves a record down a max-heap stored in a range until neither of its
+     * children has a larger key.
+     *
+     * @param base
+     *            The index of the heap's first record.
+     * @param root
+     *            The heap position of the record to move.
+     * @param count
+     *            The number of records in the heap.
+     * @throws IOException
+     *             If an I/O error occurs when accessing the buffer pool.
+     */
+    private void siftDown(long base, long root, long count)
+        throws IOException {
+        short key = bufferPoolInstance.fetchKey(base + root);
+        long child = 2 * root + 1;
+        while (child < count) {
+            short childKey = bufferPoolInstance.fetchKey(base + child);
+            if (child + 1 < count) {
+                short otherKey = bufferPoolInstance.fetchKey(base + child + 1);
+                if (otherKey > childKey) {
+                    child++;
+                    childKey = otherKey;
+                }
+            }
+            if (childKey <= key) {
+                return;
+            }
+            swapElements(base + root, base + child);
+            root = child;
+            child = 2 * root + 1;
+        }
+    }
+
+
+    /**
+     * Chooses a pivot and partitions a segment around it with the selected
+     * scheme.
+     *
+     * @param leftIndex
+     *            The starting index of the segment.
+     * @param rightIndex
+     *            The ending index of the segment.
+     * @return The index of the last record of the left part, followed by the
+     *         index of the first record of the right part. The records in
+     *         between are equal to the pivot and in their final place.
+     * @throws IOException
+     *             If an I/O error occurs during partitioning.
+     */
+    private long[] partition(long leftIndex, long rightIndex)
+        throws IOException {
+        long pivotIndex = choosePivotIndex(leftIndex, rightIndex);
+        swapElements(pivotIndex, rightIndex);
+        if (threeWay) {
+            return partitionThreeWay(leftIndex, rightIndex);
+        }
+        if (blockPartition) {
+            long partitionIndex = partitionBlocks(leftIndex, rightIndex);
+            return new long[] { partitionIndex - 1, partitionIndex + 1 };
+        }
+        long partitionIndex = partitionDSA(leftIndex, rightIndex - 1,
+            bufferPoolInstance.fetchKey(rightIndex));
+        swapElements(partitionIndex, rightIndex);
+        return new long[] { partitionIndex - 1, partitionIndex + 1 };
     }
 
 
@@ -120,10 +621,10 @@ public class QuicksortManager {
      * @throws IOException
      *             If an I/O error occurs during partitioning.
      */
-    private int partitionDSA(int leftIndex, int rightIndex, short pivot)
+    private long partitionDSA(long leftIndex, long rightIndex, short pivot)
         throws IOException {
-        int i = leftIndex;
-        int j = rightIndex;
+        long i = leftIndex;
+        long j = rightIndex;
 
         while (true) {
 
@@ -135,7 +636,7 @@ public class QuicksortManager {
                 j--;
             }
             if (i >= j) {
-                return j;
+                return i;
             }
             swapElements(i, j);
             i++;
@@ -144,11 +645,263 @@ public class QuicksortManager {
     }
 
 
+    /**
+     * Partitions a segment around the pivot at its right end a block at a
+     * time. A window of records from each end of the segment, cut at block
+     * boundaries, is read into a local array. The two windows are scanned
+     * towards each other as in partitionDSA, exchanging records between the
+     * arrays, and a window is written back and replaced by the next one
+     * inwards once it is used up. When the windows meet, what is left of the
+     * last one is partitioned in memory and the pivot is swapped into place.
+     * A window no record moved in is not written back.
+     *
+     * @param leftIndex
+     *            The starting index of the segment.
+     * @param rightIndex
+     *            The ending index of the segment, holding the pivot.
+     * @return The index where the pivot is placed.
+     * @throws IOException
+     *             If an I/O error occurs during partitioning.
+     */
+    private long partitionBlocks(long leftIndex, long rightIndex)
+        throws IOException {
+        short pivot = bufferPoolInstance.fetchKey(rightIndex);
+        int windowSize = (int)Math.min(recordsPerBlock, rightIndex
+            - leftIndex);
+        int[] left = new int[windowSize];
+        int[] right = new int[windowSize];
+
+        long leftStart = leftIndex;
+        int leftCount = (int)(Math.min(nextBlockStart(leftStart), rightIndex)
+            - leftStart);
+        bufferPoolInstance.readRecords(leftStart, left, leftCount);
+        long rightEnd = rightIndex;
+        long rightStart = Math.max(blockStart(rightEnd - 1), leftStart
+            + leftCount);
+        int rightCount = (int)(rightEnd - rightStart);
+        bufferPoolInstance.readRecords(rightStart, right, rightCount);
+        boolean leftMoved = false;
+        boolean rightMoved = false;
+        int i = 0;
+        int j = rightCount - 1;
+        while (true) {
+            while (i < leftCount && (left[i] >> 16) < pivot) {
+                i++;
+            }
+            while (j >= 0 && (right[j] >> 16) > pivot) {
+                j--;
+            }
+            if (i < leftCount && j >= 0) {
+                int swap = left[i];
+                left[i++] = right[j];
+                right[j--] = swap;
+                leftMoved = true;
+                rightMoved = true;
+            }
+            else if (i == leftCount) {
+                if (leftMoved) {
+                    bufferPoolInstance.writeRecords(leftStart, left,
+                        leftCount);
+                }
+                leftStart += leftCount;
+                if (leftStart == rightStart) {
+                    return finishBlocks(right, rightStart, rightCount, 0, j,
+                        rightMoved, rightIndex);
+                }
+                leftCount = (int)(Math.min(nextBlockStart(leftStart),
+                    rightStart) - leftStart);
+                bufferPoolInstance.readRecords(leftStart, left, leftCount);
+                leftMoved = false;
+                i = 0;
+            }
+            else {
+                if (rightMoved) {
+                    bufferPoolInstance.writeRecords(rightStart, right,
+                        rightCount);
+                }
+                rightEnd = rightStart;
+                if (rightEnd == leftStart + leftCount) {
+                    return finishBlocks(left, leftStart, leftCount, i,
+                        leftCount - 1, leftMoved, rightIndex);
+                }
+                rightStart = Math.max(blockStart(rightEnd - 1), leftStart
+                    + leftCount);
+                rightCount = (int)(rightEnd - rightStart);
+                bufferPoolInstance.readRecords(rightStart, right, rightCount);
+                rightMoved = false;
+                j = rightCount - 1;
+            }
+        }
+    }
+
+
+    /**
+     * Finishes a block partition once the two windows have met. The records
+     * of the last window still unscanned are split in memory into those
+     * smaller than the pivot and the rest, the window is written back, and
+     * the pivot is swapped to the first position of the larger side.
+     *
+     * @param window
+     *            The last window.
+     * @param windowStart
+     *            The index of the window's first record.
+     * @param windowCount
+     *            The number of records in the window.
+     * @param from
+     *            The first unscanned position in the window.
+     * @param to
+     *            The last unscanned position in the window.
+     * @param moved
+     *            Whether any record in the window has moved already.
+     * @param rightIndex
+     *            The index holding the pivot.
+     * @return The index where the pivot is placed.
+     * @throws IOException
+     *             If an I/O error occurs during partitioning.
+     */
+    private long finishBlocks(
+        int[] window,
+        long windowStart,
+        int windowCount,
+        int from,
+        int to,
+        boolean moved,
+        long rightIndex)
+        throws IOException {
+        short pivot = bufferPoolInstance.fetchKey(rightIndex);
+        while (from <= to) {
+            if ((window[from] >> 16) < pivot) {
+                from++;
+            }
+            else {
+                int swap = window[from];
+                window[from] = window[to];
+                window[to--] = swap;
+                moved = true;
+            }
+        }
+        if (moved) {
+            bufferPoolInstance.writeRecords(windowStart, window, windowCount);
+        }
+        long partitionIndex = windowStart + from;
+        swapElements(partitionIndex, rightIndex);
+        return partitionIndex;
+    }
+
+
+    /**
+     * Gets the index of the first record of the block holding a record.
+     *
+     * @param index
+     *            The index of the record.
+     * @return The index of the first record in its block.
+     */
+    private long blockStart(long index) {
+        return index - index % recordsPerBlock;
+    }
+
+
+    /**
+     * Gets the index of the first record of the block after the one holding
+     * a record.
+     *
+     * @param index
+     *            The index of the record.
+     * @return The index of the first record in the next block.
+     */
+    private long nextBlockStart(long index) {
+        return blockStart(index) + recordsPerBlock;
+    }
+
+
+    /**
+     * Partitions a segment three ways around the pivot at its right end, in
+     * the manner of Bentley and McIlroy. The scan works in from both ends
+     * like partitionDSA, but each record equal to the pivot that it meets is
+     * swapped out to the near end of the segment. When the scans cross, the
+     * pivot and the equal records at both ends are swapped into the middle.
+     *
+     * @param leftIndex
+     *            The starting index of the segment.
+     * @param rightIndex
+     *            The ending index of the segment, holding the pivot.
+     * @return The index of the last record smaller than the pivot, followed
+     *         by the index of the first record larger than it.
+     * @throws IOException
+     *             If an I/O error occurs during partitioning.
+     */
+    private long[] partitionThreeWay(long leftIndex, long rightIndex)
+        throws IOException {
+        short pivot = bufferPoolInstance.fetchKey(rightIndex);
+        long i = leftIndex - 1;
+        long j = rightIndex;
+        long leftEqual = leftIndex - 1;
+        long rightEqual = rightIndex;
+        while (true) {
+            while (bufferPoolInstance.fetchKey(++i) < pivot) {
+                // The pivot at rightIndex stops the scan
+            }
+            while (j > leftIndex && bufferPoolInstance.fetchKey(--j) > pivot) {
+                // Stops at leftIndex
+            }
+            if (i >= j) {
+                break;
+            }
+            swapElements(i, j);
+            if (bufferPoolInstance.fetchKey(i) == pivot) {
+                swapElements(++leftEqual, i);
+            }
+            if (bufferPoolInstance.fetchKey(j) == pivot) {
+                swapElements(--rightEqual, j);
+            }
+        }
+        // The pivot goes between the scans unless the record already there
+        // is equal to it, in which case the pivot stays in the equal run at
+        // the right end
+        long equalEnd = rightIndex;
+        if (bufferPoolInstance.fetchKey(i) != pivot) {
+            swapElements(i, rightIndex);
+            equalEnd = rightIndex - 1;
+        }
+
+        // Now [left, leftEqual] is equal, [leftEqual + 1, i - 1] smaller,
+        // [i + 1, rightEqual - 1] larger and [rightEqual, equalEnd] equal
+        long smaller = i - 1 - leftEqual;
+        long leftMoves = Math.min(leftEqual - leftIndex + 1, smaller);
+        swapRanges(leftIndex, i - leftMoves, leftMoves);
+        long rightEquals = equalEnd - rightEqual + 1;
+        long rightMoves = Math.min(rightEquals, rightEqual - 1 - i);
+        swapRanges(i + 1, equalEnd - rightMoves + 1, rightMoves);
+        return new long[] { leftIndex + smaller - 1, i + 1 + rightEquals };
+    }
+
+
+    /**
+     * Swaps two non-overlapping runs of records of the same length.
+     *
+     * @param first
+     *            The index of the first record of one run.
+     * @param second
+     *            The index of the first record of the other run.
+     * @param count
+     *            The number of records in each run.
+     * @throws IOException
+     *             If an I/O error occurs when accessing the buffer pool.
+     */
+    private void swapRanges(long first, long second, long count)
+        throws IOException {
+        for (long k = 0; k < count; k++) {
+            swapElements(first + k, second + k);
+        }
+    }
+
+
     /**
      * This method is intended for final tuning on smaller segments that are
      * nearly sorted.
      * It's more efficient on such segments due to its adaptive nature and low
-     * overhead.
+     * overhead. Each record is held in a register while larger records are
+     * shifted up one place, so a shift costs one read and one write.
      *
      * @param leftIndex
      *            The starting index of the segment to be sorted.
@@ -157,24 +910,111 @@ public class QuicksortManager {
      * @throws IOException
      *             If an I/O error occurs when accessing the buffer pool.
      */
-    private void insertionSort(int leftIndex, int rightIndex)
+    private void insertionSort(long leftIndex, long rightIndex)
         throws IOException {
-        for (int i = leftIndex + 1; i <= rightIndex; i++) {
+        if (!packed) {
+            insertionSortBytes(leftIndex, rightIndex);
+            return;
+        }
+        for (long i = leftIndex + 1; i <= rightIndex; i++) {
             short currentKey = bufferPoolInstance.fetchKey(i);
-            int j = i - 1;
+            long j = i - 1;
+            if (bufferPoolInstance.fetchKey(j) <= currentKey) {
+                continue;
+            }
+            int currentRecord = bufferPoolInstance.readRecord(i);
+            do {
+                bufferPoolInstance.writeRecord(j + 1, bufferPoolInstance
+                    .readRecord(j));
+                j--;
+            }
+            while (j >= leftIndex && bufferPoolInstance.fetchKey(
+                j) > currentKey);
+            bufferPoolInstance.writeRecord(j + 1, currentRecord);
+        }
+    }
+
+
+    /**
+     * Insertion sorts a segment of records that do not pack into an int,
+     * holding the record being placed and the one being shifted in two
+     * small arrays.
+     *
+     * @param leftIndex
+     *            The starting index of the segment to be sorted.
+     * @param rightIndex
+     *            The ending index of the segment to be sorted.
+     * @throws IOException
+     *             If an I/O error occurs when accessing the buffer pool.
+     */
+    private void insertionSortBytes(long leftIndex, long rightIndex)
+        throws IOException {
+        byte[] current = new byte[recordSize];
+        byte[] shifted = new byte[recordSize];
+        for (long i = leftIndex + 1; i <= rightIndex; i++) {
+            short currentKey = bufferPoolInstance.fetchKey(i);
+            long j = i - 1;
+            if (bufferPoolInstance.fetchKey(j) <= currentKey) {
+                continue;
+            }
+            bufferPoolInstance.retrieveBytes(current, recordSize, i);
+            do {
+                bufferPoolInstance.retrieveBytes(shifted, recordSize, j);
+                bufferPoolInstance.storeBytes(shifted, recordSize, j + 1);
+                j--;
+            }
             while (j >= leftIndex && bufferPoolInstance.fetchKey(
-                j) > currentKey) {
-                swapElements(j, j + 1);
+                j) > currentKey);
+            bufferPoolInstance.storeBytes(current, recordSize, j + 1);
+        }
+    }
+
+
+    /**
+     * Sorts a partition of at most INSERTION_SORT_THRESHOLD_MAX records on a
+     * local copy. The records are read once, insertion sorted by key in the
+     * array, and written back from the first one that moved, so a partition
+     * already in order costs no writes and no comparison goes through the
+     * buffer pool.
+     *
+     * @param leftIndex
+     *            The starting index of the partition.
+     * @param rightIndex
+     *            The ending index of the partition.
+     * @throws IOException
+     *             If an I/O error occurs when accessing the buffer pool.
+     */
+    private void sortSmallPartition(long leftIndex, long rightIndex)
+        throws IOException {
+        int count = (int)(rightIndex - leftIndex + 1);
+        int[] records = new int[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = bufferPoolInstance.readRecord(leftIndex + i);
+        }
+        int firstMoved = count;
+        for (int i = 1; i < count; i++) {
+            int current = records[i];
+            int j = i - 1;
+            while (j >= 0 && (records[j] >> 16) > (current >> 16)) {
+                records[j + 1] = records[j];
                 j--;
             }
+            if (j + 1 < i) {
+                records[j + 1] = current;
+                firstMoved = Math.min(firstMoved, j + 1);
+            }
+        }
+        for (int i = firstMoved; i < count; i++) {
+            bufferPoolInstance.writeRecord(leftIndex + i, records[i]);
         }
     }
 
 
     /**
      * Swaps two elements in the dataset by exchanging their positions.
-     * This method is used by both the Quicksort and Insertion Sort algorithms
-     * to reorder elements during the sorting process.
+     * This method is used by the Quicksort algorithm to reorder elements
+     * during the sorting process. The exchange is done in place by the
+     * buffer pool without temporary arrays.
      *
      * @param firstPosition
      *            The index of the first element to be swapped.
@@ -183,26 +1023,64 @@ public class QuicksortManager {
      * @throws IOException
      *             If an I/O error occurs when accessing the buffer pool.
      */
-    private void swapElements(int firstPosition, int secondPosition)
-        throws IOException {
-        byte[] tempForFirst = new byte[SIZE_OF_RECORD];
-        byte[] tempForSecond = new byte[SIZE_OF_RECORD];
-        bufferPoolInstance.retrieveBytes(tempForFirst, SIZE_OF_RECORD,
-            firstPosition);
-        bufferPoolInstance.retrieveBytes(tempForSecond, SIZE_OF_RECORD,
-            secondPosition);
-        boolean isDuplicate = true;
-        for (int i = 0; i < tempForFirst.length; i++) {
-            if (tempForFirst[i] != tempForSecond[i]) {
-                isDuplicate = false;
-                break;
-            }
+    private void swapElements(long firstPosition, long secondPosition)
+        throws IOException {
+        bufferPoolInstance.swapRecords(firstPosition, secondPosition);
+    }
+
+
+    /**
+     * A fork/join task that sorts one range of the dataset. Ranges of at
+     * least PARALLEL_THRESHOLD records are partitioned and both sides forked;
+     * smaller ranges, and ranges that have used up their depth budget, are
+     * sorted sequentially, and finished with insertion sort unless small
+     * partitions were sorted locally, by the task itself.
+     */
+    private class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long leftIndex;
+        private final long rightIndex;
+        private final int depth;
+
+        /**
+         * Constructs a new SortTask for a range of records.
+         *
+         * @param leftIndex
+         *            The starting index of the range.
+         * @param rightIndex
+         *            The ending index of the range.
+         * @param depth
+         *            The depth budget left for the range.
+         */
+        SortTask(long leftIndex, long rightIndex, int depth) {
+            this.leftIndex = leftIndex;
+            this.rightIndex = rightIndex;
+            this.depth = depth;
         }
-        if (!isDuplicate) {
-            bufferPoolInstance.storeBytes(tempForFirst, SIZE_OF_RECORD,
-                secondPosition);
-            bufferPoolInstance.storeBytes(tempForSecond, SIZE_OF_RECORD,
-                firstPosition);
+
+
+        /**
+         * Sorts the range, forking both sides of a partition while the range
+         * is large.
+         */
+        @Override
+        protected void compute() {
+            try {
+                if (rightIndex - leftIndex + 1 < PARALLEL_THRESHOLD
+                    || depth == 0) {
+                    performQuickSortHybrid(leftIndex, rightIndex, depth);
+                    if (!localSort) {
+                        insertionSort(leftIndex, rightIndex);
+                    }
+                    return;
+                }
+                long[] bounds = partition(leftIndex, rightIndex);
+                invokeAll(new SortTask(leftIndex, bounds[0], depth - 1),
+                    new SortTask(bounds[1], rightIndex, depth - 1));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 }
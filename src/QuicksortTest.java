@@ -1,6 +1,12 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
 import student.TestCase;
 
 /**
@@ -99,4 +105,1113 @@ public class QuicksortTest extends TestCase {
         assertTrue(CheckFile.check(fname));
     }
 
+
+    /**
+     * Tests that a hit in the queue promotes the buffer to the head, so that
+     * the buffer evicted next is the least recently used one.
+     */
+    public void testQueuePromotesOnHit() {
+        Queue queue = new Queue(3);
+        queue.enqueue(new Buffer(new byte[4], 0));
+        queue.enqueue(new Buffer(new byte[4], 1));
+        queue.enqueue(new Buffer(new byte[4], 2));
+
+        assertEquals(0, queue.search(0).getPosition());
+        assertNull(queue.search(7));
+
+        assertEquals(1, queue.dequeue().getPosition());
+        assertNull(queue.search(1));
+        assertEquals(2, queue.dequeue().getPosition());
+        assertEquals(0, queue.dequeue().getPosition());
+        assertNull(queue.dequeue());
+    }
+
+
+    /**
+     * Tests sorting with the slab-backed pool, where frames are recycled in
+     * place instead of allocated on each miss.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testSortingWithSlab() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 8);
+        fg.setSeed(5040);
+        fg.generateFile(FileType.BINARY);
+
+        assertFalse(CheckFile.check(fname));
+        Quicksort.main(new String[] { fname, "3", "stats.txt", "-slab" });
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests sorting with the memory-mapped pool, and that its statistics
+     * count window mappings as reads.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testSortingWithMapping() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 40);
+        fg.setSeed(5040);
+        fg.generateFile(FileType.BINARY);
+
+        assertFalse(CheckFile.check(fname));
+        Statistics stats = Quicksort.run(new String[] { fname, "32",
+            "stats.txt", "-mmap" });
+        assertTrue(CheckFile.check(fname));
+        assertTrue(stats.getReads() >= 3);
+        assertTrue(stats.getHits() > 0);
+    }
+
+
+    /**
+     * Tests the memory-mapped pool on a file far larger than its one window,
+     * so that it maps more windows over the sort than the operating system
+     * allows to be live at once.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testMappingReleasesWindows() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 70);
+        fg.setSeed(5040);
+        fg.generateFile(FileType.BINARY);
+
+        Statistics stats = Quicksort.run(new String[] { fname, "1",
+            "stats.txt", "-mmap" });
+        assertTrue(CheckFile.check(fname));
+        assertTrue(stats.getReads() > 65536);
+    }
+
+
+    /**
+     * Tests that records and keys packed into primitives round-trip through
+     * a buffer, including keys with the sign bit set.
+     */
+    public void testBufferRecordAccess() {
+        Buffer buffer = new Buffer(new byte[8], 0);
+        buffer.storeRecord(4, 0x8001ABCD);
+        assertTrue(buffer.isDirty());
+        assertEquals(0x8001ABCD, buffer.extractRecord(4));
+        assertEquals((short)0x8001, buffer.extractKey(4));
+        assertEquals(0, buffer.extractRecord(0));
+    }
+
+
+    /**
+     * Tests that every replacement policy sorts correctly, both with frames
+     * allocated per miss and with slab frames recycled in place.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testSortingWithEachPolicy() throws Exception {
+        String fname = "input.bin";
+        String[] policies = { "lru", "clock", "2q", "arc", "lru2" };
+        for (String policy : policies) {
+            for (boolean useSlab : new boolean[] { false, true }) {
+                FileGenerator fg = new FileGenerator(fname, 6);
+                fg.setSeed(3114);
+                fg.generateFile(FileType.ASCII);
+                assertFalse(CheckFile.check(fname));
+
+                String option = "-policy=" + policy;
+                String[] args = useSlab
+                    ? new String[] { fname, "4", "stats.txt", option, "-slab" }
+                    : new String[] { fname, "4", "stats.txt", option };
+                Quicksort.main(args);
+                assertTrue(policy, CheckFile.check(fname));
+            }
+        }
+    }
+
+
+    /**
+     * Tests that CLOCK gives a referenced buffer a second chance and evicts
+     * the unreferenced one instead.
+     */
+    public void testClockSecondChance() {
+        ClockPolicy clock = new ClockPolicy(2);
+        clock.enqueue(new Buffer(null, 0));
+        clock.enqueue(new Buffer(null, 1));
+        assertNotNull(clock.search(0));
+
+        assertEquals(1, clock.dequeue().getPosition());
+        assertNull(clock.search(1));
+        assertEquals(0, clock.peekVictim().getPosition());
+    }
+
+
+    /**
+     * Tests the fork/join parallel sort on a file large enough to be split
+     * into several tasks.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testParallelSorting() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 64);
+        fg.setSeed(6006);
+        fg.generateFile(FileType.BINARY);
+
+        assertFalse(CheckFile.check(fname));
+        Quicksort.main(new String[] { fname, "16", "stats.txt", "-slab",
+            "-threads=4" });
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests the external merge sort engine, both when the file fits in
+     * memory and when several merge passes are needed.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testMergeSortEngine() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 21);
+        fg.setSeed(4711);
+        fg.generateFile(FileType.BINARY);
+        assertFalse(CheckFile.check(fname));
+        Quicksort.main(new String[] { fname, "3", "stats.txt",
+            "-engine=merge" });
+        assertTrue(CheckFile.check(fname));
+        assertEquals(21 * FileGenerator.BYTES_PER_BLOCK, new File(fname)
+            .length());
+
+        fg = new FileGenerator(fname, 2);
+        fg.generateFile(FileType.ASCII);
+        Quicksort.main(new String[] { fname, "3", "stats.txt",
+            "-engine=merge" });
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests the distribution sort engine on binary keys, where the key
+     * ranges outnumber the buffers, and on ASCII keys, where single keys are
+     * too common to fit in memory.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testDistributionSortEngine() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 30);
+        fg.setSeed(1024);
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "3", "stats.txt",
+            "-engine=distribution" });
+        assertTrue(CheckFile.check(fname));
+
+        fg.generateFile(FileType.ASCII);
+        assertFalse(CheckFile.check(fname));
+        Quicksort.main(new String[] { fname, "2", "stats.txt",
+            "-engine=distribution" });
+        assertTrue(CheckFile.check(fname));
+
+        fg = new FileGenerator(fname, 1);
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "2", "stats.txt",
+            "-engine=distribution" });
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests that a file that fits in the pool is sorted in memory with one
+     * read and one write per block.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testInMemoryFastPath() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 4);
+        fg.setSeed(2024);
+        fg.generateFile(FileType.BINARY);
+
+        Statistics stats = Quicksort.run(new String[] { fname, "4",
+            "stats.txt", "-slab" });
+        assertTrue(CheckFile.check(fname));
+        assertEquals(4, stats.getReads());
+        assertEquals(4, stats.getWrites());
+        assertEquals(0, stats.getHits());
+    }
+
+
+    /**
+     * Tests that sorting small partitions locally gives a sorted file with
+     * fewer reads and writes than the final insertion sort pass.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testLocalPartitionSort() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 20);
+        fg.setSeed(1010);
+        fg.generateFile(FileType.BINARY);
+        Statistics deferred = Quicksort.run(new String[] { fname, "4",
+            "stats.txt" });
+        assertTrue(CheckFile.check(fname));
+
+        fg.generateFile(FileType.BINARY);
+        Statistics local = Quicksort.run(new String[] { fname, "4",
+            "stats.txt", "-localsort" });
+        assertTrue(CheckFile.check(fname));
+        assertTrue(local.getReads() < deferred.getReads());
+        assertTrue(local.getWrites() < deferred.getWrites());
+
+        fg.generateFile(FileType.ASCII);
+        Quicksort.main(new String[] { fname, "4", "stats.txt", "-localsort",
+            "-threads=2" });
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests the three-way partition on ASCII files, whose few distinct keys
+     * make long runs of equal records and so need far fewer key lookups, and
+     * on binary files.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testThreeWayPartition() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 20);
+        fg.setSeed(1111);
+        fg.generateFile(FileType.ASCII);
+        Statistics twoWay = Quicksort.run(new String[] { fname, "4",
+            "stats.txt" });
+
+        fg.generateFile(FileType.ASCII);
+        Statistics threeWay = Quicksort.run(new String[] { fname, "4",
+            "stats.txt", "-partition=threeway" });
+        assertTrue(CheckFile.check(fname));
+        assertTrue(threeWay.getHits() < twoWay.getHits());
+
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "4", "stats.txt",
+            "-partition=threeway", "-localsort" });
+        assertTrue(CheckFile.check(fname));
+
+        try {
+            new SortOptions().setPartition("lomuto");
+            fail("Unknown scheme accepted");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("lomuto"));
+        }
+    }
+
+
+    /**
+     * Tests the block partition, which must split every range exactly since
+     * local sorting leaves no final pass to hide a misplaced record, and the
+     * record runs it reads and writes across block boundaries.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testBlockPartition() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 12);
+        fg.setSeed(1212);
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "4", "stats.txt",
+            "-partition=block", "-localsort" });
+        assertTrue(CheckFile.check(fname));
+
+        fg.generateFile(FileType.ASCII);
+        Quicksort.main(new String[] { fname, "4", "stats.txt",
+            "-partition=block", "-mmap" });
+        assertTrue(CheckFile.check(fname));
+
+        RandomAccessFile file = new RandomAccessFile(fname, "rw");
+        LRUBufferPool pool = new LRUBufferPool(file, 2);
+        int[] run = new int[2000];
+        for (int i = 0; i < run.length; i++) {
+            run[i] = i;
+        }
+        pool.writeRecords(1000, run, run.length);
+        int[] back = new int[run.length];
+        pool.readRecords(1000, back, back.length);
+        assertTrue(Arrays.equals(run, back));
+        assertEquals(1999, pool.readRecord(2999));
+        pool.closeFileStream();
+    }
+
+
+    /**
+     * Tests sorting with dirty blocks written by the background writer, with
+     * so few staging frames that evicted blocks are often read back before
+     * they reach the disk.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testWriteBehind() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 24);
+        fg.setSeed(1313);
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "4", "stats.txt", "-slab",
+            "-writebehind=2" });
+        assertTrue(CheckFile.check(fname));
+
+        fg.generateFile(FileType.ASCII);
+        Quicksort.main(new String[] { fname, "3", "stats.txt",
+            "-writebehind=8", "-threads=2" });
+        assertTrue(CheckFile.check(fname));
+
+        RandomAccessFile file = new RandomAccessFile(fname, "rw");
+        LRUBufferPool pool = new LRUBufferPool(file, 1, true, "lru");
+        pool.enableWriteBehind(1);
+        pool.writeRecord(0, 42);
+        pool.readRecord(1024);
+        assertEquals(42, pool.readRecord(0));
+        pool.flush();
+        pool.closeFileStream();
+        file = new RandomAccessFile(fname, "r");
+        assertEquals(42, file.readInt());
+        file.close();
+
+        fg.generateFile(FileType.BINARY);
+        file = new RandomAccessFile(fname, "rw");
+        pool = new LRUBufferPool(file, 4, true, "lru");
+        pool.enableWriteBehind(4);
+        new QuicksortManager(pool, pool.getFileLength());
+        WriteBehindFlusher flusher = pool.getFlusher();
+        assertTrue(flusher.getCleanedAhead() > 0);
+        pool.flush();
+        pool.closeFileStream();
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests that read-ahead serves misses without changing the result, and
+     * that every extra disk read it causes is counted as wasted.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testReadAhead() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 30);
+        fg.setSeed(1414);
+        fg.generateFile(FileType.BINARY);
+        Statistics demand = Quicksort.run(new String[] { fname, "6",
+            "stats.txt", "-slab" });
+
+        fg.setSeed(1414);
+        fg.generateFile(FileType.BINARY);
+        Statistics ahead = Quicksort.run(new String[] { fname, "6",
+            "stats.txt", "-slab", "-prefetch=4" });
+        assertTrue(CheckFile.check(fname));
+        assertTrue(ahead.getPrefetchHits() > 0);
+        assertEquals(demand.getReads() + ahead.getPrefetchWasted(), ahead
+            .getReads());
+
+        fg.generateFile(FileType.ASCII);
+        Quicksort.main(new String[] { fname, "4", "stats.txt",
+            "-writebehind=4", "-prefetch=8" });
+        assertTrue(CheckFile.check(fname));
+    }
+
+
+    /**
+     * Tests that a flush writes every dirty block, in runs and singly, with
+     * and without a slab, and counts one write per block.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testOrderedFlush() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 10);
+        fg.generateFile(FileType.BINARY);
+        int[] blocks = { 7, 2, 4, 3, 9, 0 };
+        for (int slab = 0; slab < 2; slab++) {
+            RandomAccessFile file = new RandomAccessFile(fname, "rw");
+            LRUBufferPool pool = new LRUBufferPool(file, 8, slab == 1,
+                "lru");
+            for (int block : blocks) {
+                pool.writeRecord(block * 1024 + 5, block + slab);
+            }
+            long before = pool.getStatistics().getWrites();
+            pool.flush();
+            assertEquals(blocks.length, pool.getStatistics().getWrites()
+                - before);
+            pool.closeFileStream();
+
+            file = new RandomAccessFile(fname, "r");
+            for (int block : blocks) {
+                file.seek((block * 1024L + 5) * 4);
+                assertEquals(block + slab, file.readInt());
+            }
+            file.close();
+        }
+    }
+
+
+    /**
+     * Tests that every sort gets its own statistics, that misses, evictions,
+     * phase times and latencies are recorded, and that the JSON dump is
+     * appended to the metrics file.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testMetrics() throws Exception {
+        String fname = "input.bin";
+        File metrics = new File("metrics.json");
+        metrics.delete();
+        FileGenerator fg = new FileGenerator(fname, 20);
+        fg.setSeed(1616);
+        fg.generateFile(FileType.BINARY);
+        Statistics first = Quicksort.run(new String[] { fname, "4",
+            "stats.txt", "-slab", "-metrics=metrics.json" });
+        assertTrue(CheckFile.check(fname));
+        assertEquals(first.getReads(), first.getMisses());
+        assertEquals(first.getMisses() - 4, first.getEvictions());
+        assertEquals(first.getMisses(), first.getMissLatency().getCount());
+        assertTrue(first.getWriteLatency().getCount() > 0);
+        assertTrue(first.getMissLatency().getPercentile(50) <= first
+            .getMissLatency().getMax());
+        assertTrue(first.getPhaseNanos("quicksort") > 0);
+        assertTrue(first.getPhaseNanos("insertion") > 0);
+        assertTrue(first.getPhaseNanos("flush") > 0);
+
+        fg.setSeed(1616);
+        fg.generateFile(FileType.BINARY);
+        Statistics second = Quicksort.run(new String[] { fname, "4",
+            "stats.txt", "-slab" });
+        assertTrue(first != second);
+        assertEquals(first.getReads(), second.getReads());
+        assertEquals(first.getWrites(), second.getWrites());
+
+        RandomAccessFile dump = new RandomAccessFile(metrics, "r");
+        String line = dump.readLine();
+        assertNull(dump.readLine());
+        dump.close();
+        metrics.delete();
+        assertEquals(first.toJson(), line);
+        assertTrue(line.startsWith("{\"hits\":" + first.getHits()
+            + ",\"misses\":" + first.getMisses() + ","));
+        assertTrue(line.contains("\"missLatency\":{\"count\":" + first
+            .getMisses() + ","));
+    }
+
+
+    /**
+     * Tests records beyond the 2 GB mark, whose byte offsets do not fit in
+     * an int, through every pool on a sparse 3 GB file.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testLargeFileOffsets() throws Exception {
+        File large = new File("large.bin");
+        long length = 3L << 30;
+        long past = (1L << 29) + 5;
+        long last = length / 4 - 1;
+        try {
+            for (int backend = 0; backend < 3; backend++) {
+                RandomAccessFile file = new RandomAccessFile(large, "rw");
+                file.setLength(0);
+                file.setLength(length);
+                BufferPool pool = backend == 2
+                    ? new MappedBufferPool(file, 16)
+                    : new LRUBufferPool(file, 4, backend == 1, "lru");
+                assertEquals(length, pool.getFileLength());
+                assertFalse(pool.fitsInMemory());
+                pool.writeRecord(past, 0x12345678);
+                pool.writeRecord(last, 0x0102ABCD);
+                pool.writeRecord(7, 0x7FFF0001);
+                pool.swapRecords(past, 7);
+                assertEquals(0x1234, pool.fetchKey(7));
+                assertEquals(0x7FFF, pool.fetchKey(past));
+                int[] run = { 1, 2, 3 };
+                pool.writeRecords(last - 2, run, 2);
+                pool.flush();
+                pool.closeFileStream();
+
+                file = new RandomAccessFile(large, "r");
+                assertEquals(length, file.length());
+                file.seek(past * 4);
+                assertEquals(0x7FFF0001, file.readInt());
+                file.seek(28);
+                assertEquals(0x12345678, file.readInt());
+                file.seek((last - 2) * 4);
+                assertEquals(1, file.readInt());
+                assertEquals(2, file.readInt());
+                assertEquals(0x0102ABCD, file.readInt());
+                file.close();
+            }
+        }
+        finally {
+            large.delete();
+        }
+    }
+
+
+    /**
+     * Tests sorting records that are not 4 bytes with the key first, with a
+     * two-byte key in the middle of 8-byte records and a one-byte key at the
+     * end of 6-byte records, and that the sort keeps every record whole.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testRecordLayout() throws Exception {
+        String fname = "input.bin";
+        RecordLayout wide = new RecordLayout(8192, 8, 4, 2);
+        RecordLayout narrow = new RecordLayout(6144, 6, 5, 1);
+        RecordLayout[] layouts = { wide, wide, narrow, narrow };
+        String[][] options = { { "-slab" }, { "-mmap",
+            "-partition=threeway" }, { "-threads=2", "-writebehind=4",
+                "-prefetch=2" }, { "-localsort", "-partition=block" } };
+        for (int c = 0; c < layouts.length; c++) {
+            RecordLayout layout = layouts[c];
+            int size = layout.getRecordSize();
+            FileGenerator fg = new FileGenerator(fname, 12, layout);
+            fg.setSeed(1900 + c);
+            fg.generateFile(c % 2 == 0 ? FileType.BINARY : FileType.ASCII);
+            byte[] before = new byte[12 * layout.getBlockSize()];
+            RandomAccessFile file = new RandomAccessFile(fname, "r");
+            assertEquals(before.length, file.length());
+            file.readFully(before);
+            file.close();
+            assertFalse(CheckFile.check(fname, layout));
+
+            String[] arguments = new String[7 + options[c].length];
+            arguments[0] = fname;
+            arguments[1] = "4";
+            arguments[2] = "stats.txt";
+            arguments[3] = "-blocksize=" + layout.getBlockSize();
+            arguments[4] = "-recordsize=" + size;
+            arguments[5] = "-keyoffset=" + layout.getKeyOffset();
+            arguments[6] = "-keywidth=" + layout.getKeyWidth();
+            System.arraycopy(options[c], 0, arguments, 7, options[c].length);
+            Quicksort.run(arguments);
+            assertTrue(CheckFile.check(fname, layout));
+
+            byte[] after = new byte[before.length];
+            file = new RandomAccessFile(fname, "r");
+            file.readFully(after);
+            file.close();
+            String[] original = new String[before.length / size];
+            String[] sorted = new String[original.length];
+            for (int i = 0; i < original.length; i++) {
+                original[i] = new String(before, i * size, size, "ISO-8859-1");
+                sorted[i] = new String(after, i * size, size, "ISO-8859-1");
+            }
+            Arrays.sort(original);
+            Arrays.sort(sorted);
+            assertTrue(Arrays.equals(original, sorted));
+        }
+
+        Exception thrown = null;
+        try {
+            new RecordLayout(4096, 4, 3, 2);
+        }
+        catch (IllegalArgumentException e) {
+            thrown = e;
+        }
+        assertNotNull(thrown);
+        thrown = null;
+        try {
+            Quicksort.run(new String[] { fname, "4", "stats.txt",
+                "-engine=merge", "-recordsize=8" });
+        }
+        catch (IllegalArgumentException e) {
+            thrown = e;
+        }
+        assertNotNull(thrown);
+    }
+
+
+    /**
+     * Tests every engine and pool with blocks sixteen times the default
+     * size, counting one read per large block, and that a file whose length
+     * is not a multiple of the block size keeps its length. A pool too large
+     * for one array must be refused.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testLargeBlocks() throws Exception {
+        String fname = "input.bin";
+        RecordLayout layout = RecordLayout.DEFAULT.withBlockSize(65536);
+        FileGenerator fg = new FileGenerator(fname, 5, layout);
+        String[][] options = { { "-slab" }, { "-mmap" }, { "-writebehind=2",
+            "-prefetch=1" }, { "-engine=merge" }, {
+                "-engine=distribution" } };
+        for (int c = 0; c < options.length; c++) {
+            fg.setSeed(65536 + c);
+            fg.generateFile(FileType.BINARY);
+            assertEquals(5 * 65536, new File(fname).length());
+            String[] arguments = new String[4 + options[c].length];
+            arguments[0] = fname;
+            arguments[1] = "2";
+            arguments[2] = "stats.txt";
+            arguments[3] = "-blocksize=65536";
+            System.arraycopy(options[c], 0, arguments, 4, options[c].length);
+            Statistics stats = Quicksort.run(arguments);
+            assertTrue(CheckFile.check(fname));
+            if (c == 0) {
+                RandomAccessFile file = new RandomAccessFile(fname, "rw");
+                BufferPool pool = new LRUBufferPool(file, 2, true, "lru",
+                    layout);
+                for (long i = 0; i < 5 * 16384; i += 4096) {
+                    pool.fetchKey(i);
+                }
+                assertEquals(5, pool.getStatistics().getReads());
+                assertEquals(15, pool.getStatistics().getHits());
+                pool.closeFileStream();
+                assertTrue(stats.getReads() > 5);
+            }
+        }
+
+        // A file whose last block is short must not grow
+        String[][] tails = { {}, { "-slab" }, { "-writebehind=2" }, {
+            "-direct" } };
+        fg = new FileGenerator(fname, 49);
+        for (int c = 0; c < tails.length; c++) {
+            fg.setSeed(200704 + c);
+            fg.generateFile(FileType.BINARY);
+            String[] arguments = new String[4 + tails[c].length];
+            arguments[0] = fname;
+            arguments[1] = "2";
+            arguments[2] = "stats.txt";
+            arguments[3] = "-blocksize=65536";
+            System.arraycopy(tails[c], 0, arguments, 4, tails[c].length);
+            Quicksort.run(arguments);
+            assertEquals(49 * 4096, new File(fname).length());
+            assertTrue(CheckFile.check(fname));
+        }
+
+        assertEquals(2 * 65536, Buffer.slabSize(2, 65536));
+        Exception thrown = null;
+        try {
+            Buffer.slabSize(40000, 65536);
+        }
+        catch (IllegalArgumentException e) {
+            thrown = e;
+        }
+        assertNotNull(thrown);
+    }
+
+
+    /**
+     * Stress tests the concurrent pool: threads swap and read records of
+     * their own, interleaved so that every block is shared, through a pool
+     * far smaller than the file, and the file must end up exactly as the
+     * swaps dictate with no pins left. The pool must also sort in parallel.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testConcurrentPool() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 64);
+        fg.setSeed(2020);
+        fg.generateFile(FileType.BINARY);
+        int records = 64 * 1024;
+        int[] model = new int[records];
+        RandomAccessFile file = new RandomAccessFile(fname, "rw");
+        for (int i = 0; i < records; i++) {
+            model[i] = file.readInt();
+        }
+        file.seek(0);
+        ConcurrentBufferPool pool = new ConcurrentBufferPool(file, 20);
+        int threadCount = 8;
+        Thread[] threads = new Thread[threadCount];
+        Throwable[] failures = new Throwable[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    for (int op = 0; op < 20000; op++) {
+                        int a = random.nextInt(records / threadCount)
+                            * threadCount + id;
+                        int b = random.nextInt(records / threadCount)
+                            * threadCount + id;
+                        if (random.nextBoolean()) {
+                            pool.swapRecords(a, b);
+                            int swap = model[a];
+                            model[a] = model[b];
+                            model[b] = swap;
+                        }
+                        else if (pool.readRecord(a) != model[a]
+                            || pool.fetchKey(b) != (short)(model[b] >> 16)) {
+                            throw new AssertionError("Record " + a + " or "
+                                + b + " is wrong");
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    failures[id] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            assertNull(failure);
+        }
+        for (int block = 0; block < 64; block++) {
+            assertEquals(0, pool.getPinCount(block));
+        }
+        pool.flush();
+        Statistics stats = pool.getStatistics();
+        assertEquals(stats.getMisses(), stats.getReads());
+        assertTrue(stats.getEvictions() > 0);
+        pool.closeFileStream();
+        file = new RandomAccessFile(fname, "r");
+        for (int i = 0; i < records; i++) {
+            assertEquals(model[i], file.readInt());
+        }
+        file.close();
+
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "16", "stats.txt",
+            "-concurrent", "-threads=4" });
+        assertTrue(CheckFile.check(fname));
+
+        fg = new FileGenerator(fname, 8);
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "1", "stats.txt",
+            "-concurrent" });
+        assertTrue(CheckFile.check(fname));
+        fg.generateFile(FileType.ASCII);
+        Quicksort.main(new String[] { fname, "2", "stats.txt",
+            "-concurrent", "-threads=4" });
+        assertTrue(CheckFile.check(fname));
+
+        file = new RandomAccessFile(fname, "rw");
+        ConcurrentBufferPool small = new ConcurrentBufferPool(file, 2);
+        small.unpin(small.pin(0), false);
+        small.fetchKey(1);
+        small.swapRecords(2, 3);
+        small.swapRecords(2, 2048);
+        small.unpin(small.pin(0), false);
+        assertEquals(1, small.getStatistics().getHits());
+        small.closeFileStream();
+    }
+
+
+    /**
+     * Tests the off-heap pool: it sorts with every policy and with records
+     * other than 4 bytes, and a large pool takes almost nothing from the
+     * heap where a slab pool takes its full size.
+     *
+     * @throws Exception
+     *             either a IOException or FileNotFoundException
+     */
+    public void testDirectPool() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 24);
+        String[] policies = { "lru", "clock", "2q", "arc", "lru2" };
+        for (int p = 0; p < policies.length; p++) {
+            fg.setSeed(2100 + p);
+            fg.generateFile(p % 2 == 0 ? FileType.BINARY : FileType.ASCII);
+            Statistics stats = Quicksort.run(new String[] { fname, "5",
+                "stats.txt", "-direct", "-policy=" + policies[p] });
+            assertTrue(CheckFile.check(fname));
+            assertEquals(stats.getReads(), stats.getMisses());
+        }
+
+        RecordLayout layout = new RecordLayout(8192, 8, 4, 2);
+        fg = new FileGenerator(fname, 6, layout);
+        fg.generateFile(FileType.BINARY);
+        Quicksort.main(new String[] { fname, "3", "stats.txt", "-direct",
+            "-blocksize=8192", "-recordsize=8", "-keyoffset=4" });
+        assertTrue(CheckFile.check(fname, layout));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter =
+                (com.sun.management.ThreadMXBean)threads;
+            RandomAccessFile file = new RandomAccessFile(fname, "rw");
+            long before = counter.getCurrentThreadAllocatedBytes();
+            BufferPool pool = new DirectBufferPool(file, 8192, "lru",
+                RecordLayout.DEFAULT);
+            long direct = counter.getCurrentThreadAllocatedBytes() - before;
+            pool.closeFileStream();
+            file = new RandomAccessFile(fname, "rw");
+            before = counter.getCurrentThreadAllocatedBytes();
+            pool = new LRUBufferPool(file, 8192, true, "lru");
+            long slab = counter.getCurrentThreadAllocatedBytes() - before;
+            pool.closeFileStream();
+            assertTrue(slab >= 8192 * 4096);
+            assertTrue(direct < 8192 * 4096 / 8);
+        }
+    }
+
+
+    /**
+     * Tests the sampled pivot strategy: residency checks see only the
+     * blocks a pool holds and leave its statistics alone, and files sorted
+     * with a ninther pivot through every kind of pool come out sorted.
+     *
+     * @throws Exception
+     *             If an error occurs during the test.
+     */
+    public void testSampledPivot() throws Exception {
+        String fname = "input.bin";
+        FileGenerator fg = new FileGenerator(fname, 16);
+        fg.setSeed(2200);
+        fg.generateFile(FileType.BINARY);
+        RandomAccessFile file = new RandomAccessFile(fname, "rw");
+        BufferPool pool = new LRUBufferPool(file, 4, true, "lru");
+        assertFalse(pool.isResident(0));
+        pool.fetchKey(1025);
+        assertTrue(pool.isResident(1024));
+        assertTrue(pool.isResident(2047));
+        assertFalse(pool.isResident(2048));
+        long hits = pool.getStatistics().getHits();
+        assertTrue(pool.isResident(1500));
+        assertEquals(hits, pool.getStatistics().getHits());
+        pool.closeFileStream();
+
+        String[][] pools = { {}, { "-slab" }, { "-mmap" }, { "-direct" },
+            { "-concurrent", "-threads=4" }, { "-partition=threeway" } };
+        for (int p = 0; p < pools.length; p++) {
+            fg = new FileGenerator(fname, 64);
+            fg.setSeed(2210 + p);
+            fg.generateFile(p % 2 == 0 ? FileType.BINARY : FileType.ASCII);
+            String[] arguments = new String[4 + pools[p].length];
+            arguments[0] = fname;
+            arguments[1] = "32";
+            arguments[2] = "stats.txt";
+            arguments[3] = "-pivot=sampled";
+            System.arraycopy(pools[p], 0, arguments, 4, pools[p].length);
+            Quicksort.run(arguments);
+            assertTrue(CheckFile.check(fname));
+        }
+    }
+
+
+    /**
+     * Tests inputs that defeat a median-of-three pivot: reversed keys, which
+     * used to overflow the stack, and sorted, constant and organ-pipe keys,
+     * sorted one thread and several.
+     *
+     * @throws Exception
+     *             If an error occurs during the test.
+     */
+    public void testAdversarialInputs() throws Exception {
+        String fname = "input.bin";
+        int count = 100 * 1024;
+        for (int shape = 0; shape < 4; shape++) {
+            byte[] bytes = new byte[count * 4];
+            for (int i = 0; i < count; i++) {
+                int key;
+                if (shape == 0) {
+                    key = 30000 - (int)((long)i * 60000 / count);
+                }
+                else if (shape == 1) {
+                    key = (int)((long)i * 60000 / count) - 30000;
+                }
+                else if (shape == 2) {
+                    key = 7;
+                }
+                else {
+                    key = Math.min(i, count - i) % 30000;
+                }
+                bytes[4 * i] = (byte)(key >> 8);
+                bytes[4 * i + 1] = (byte)key;
+                bytes[4 * i + 2] = (byte)(i >> 8);
+                bytes[4 * i + 3] = (byte)i;
+            }
+            for (int threads = 1; threads <= 4; threads += 3) {
+                RandomAccessFile file = new RandomAccessFile(fname, "rw");
+                file.setLength(0);
+                file.write(bytes);
+                file.close();
+                Quicksort.run(new String[] { fname, "16", "stats.txt",
+                    "-threads=" + threads });
+                assertTrue(CheckFile.check(fname));
+            }
+        }
+    }
+
+
+    /**
+     * Tests that a resumable sort killed part way through picks up from its
+     * last checkpoint: the sort runs in a separate JVM that is killed once
+     * blocks have been written since a checkpoint, and a second run finishes
+     * the sort, leaving the same records in order and no journal behind.
+     *
+     * @throws Exception
+     *             If an error occurs during the test.
+     */
+    public void testCheckpointResume() throws Exception {
+        String fname = "resume.bin";
+        File journal = new File(fname + ".journal");
+        File undo = new File(fname + ".undo");
+        journal.delete();
+        undo.delete();
+        FileGenerator fg = new FileGenerator(fname, 2000);
+        fg.setSeed(2400);
+        fg.generateFile(FileType.BINARY);
+        int[] expected = records(fname);
+        Arrays.sort(expected);
+
+        Process sort = new ProcessBuilder(System.getProperty("java.home")
+            + File.separator + "bin" + File.separator + "java", "-cp", System
+                .getProperty("java.class.path"), "Quicksort", fname, "16",
+            "stats.txt", "-checkpoint=20").redirectErrorStream(true)
+            .redirectOutput(new File("resume.log")).start();
+        while (sort.isAlive() && !(journal.exists() && undo.length() > 8)) {
+            Thread.sleep(5);
+        }
+        sort.destroyForcibly();
+        sort.waitFor();
+        if (sort.exitValue() != 0) {
+            assertTrue(journal.exists());
+        }
+
+        Statistics stats = Quicksort.run(new String[] { fname, "16",
+            "stats.txt", "-checkpoint=20" });
+        assertTrue(CheckFile.check(fname));
+        int[] actual = records(fname);
+        Arrays.sort(actual);
+        assertTrue(Arrays.equals(expected, actual));
+        assertFalse(journal.exists());
+        assertFalse(undo.exists());
+        assertTrue(stats.getPhaseNanos("checkpoint") > 0);
+        new File(fname).delete();
+        new File("resume.log").delete();
+    }
+
+
+    /**
+     * Tests the parallel verifier: it agrees with the sequential check, its
+     * multiset hash survives a sort but not a record overwritten by its
+     * neighbour, and it catches records out of order across the boundary
+     * between two chunks.
+     *
+     * @throws Exception
+     *             If an error occurs during the test.
+     */
+    public void testParallelVerifier() throws Exception {
+        String fname = "input.bin";
+        RecordLayout layout = RecordLayout.DEFAULT;
+        FileGenerator fg = new FileGenerator(fname, 16);
+        fg.setSeed(2500);
+        fg.generateFile(FileType.BINARY);
+        long before = CheckFile.multisetHash(fname, layout, 4);
+        assertFalse(CheckFile.checkParallel(fname, layout, 4));
+        assertFalse(CheckFile.verify(fname, layout, 4, before));
+        Quicksort.run(new String[] { fname, "4", "stats.txt" });
+        assertTrue(CheckFile.check(fname));
+        assertTrue(CheckFile.verify(fname, layout, 4, before));
+        assertEquals(before, CheckFile.multisetHash(fname, layout, 1));
+
+        int[] sorted = records(fname);
+        RandomAccessFile file = new RandomAccessFile(fname, "rw");
+        file.seek(5 * 4);
+        file.writeInt(sorted[6]);
+        file.close();
+        assertTrue(CheckFile.checkParallel(fname, layout, 4));
+        assertFalse(CheckFile.verify(fname, layout, 4, before));
+
+        int boundary = 1024;
+        while ((sorted[boundary - 1] >> 16) == (sorted[boundary] >> 16)) {
+            boundary += 1024;
+        }
+        file = new RandomAccessFile(fname, "rw");
+        file.seek((boundary - 1) * 4L);
+        file.writeInt(sorted[boundary]);
+        file.writeInt(sorted[boundary - 1]);
+        file.close();
+        assertFalse(CheckFile.check(fname));
+        assertFalse(CheckFile.checkParallel(fname, layout, 4));
+
+        layout = new RecordLayout(4096, 8, 4, 1);
+        fg = new FileGenerator(fname, 8, layout);
+        fg.generateFile(FileType.BINARY);
+        before = CheckFile.multisetHash(fname, layout, 2);
+        Quicksort.run(new String[] { fname, "3", "stats.txt",
+            "-recordsize=8", "-keyoffset=4", "-keywidth=1" });
+        assertTrue(CheckFile.check(fname, layout));
+        assertTrue(CheckFile.verify(fname, layout, 2, before));
+    }
+
+
+    /**
+     * Tests that two sorts running at once in one JVM each keep to their own
+     * pool and statistics.
+     *
+     * @throws Exception
+     *             If an error occurs during the test.
+     */
+    public void testIndependentSorts() throws Exception {
+        String[] names = { "first.bin", "second.bin" };
+        LRUBufferPool[] pools = new LRUBufferPool[2];
+        Thread[] threads = new Thread[2];
+        Throwable[] failures = new Throwable[2];
+        for (int i = 0; i < 2; i++) {
+            FileGenerator fg = new FileGenerator(names[i], 16 * (i + 1));
+            fg.setSeed(1600 + i);
+            fg.generateFile(FileType.BINARY);
+            pools[i] = new LRUBufferPool(new RandomAccessFile(names[i], "rw"),
+                4);
+            final LRUBufferPool pool = pools[i];
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    new QuicksortManager(pool, pool.getFileLength());
+                    pool.flush();
+                    pool.closeFileStream();
+                }
+                catch (Throwable e) {
+                    failures[id] = e;
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int i = 0; i < 2; i++) {
+            threads[i].join();
+            assertNull(failures[i]);
+            assertTrue(CheckFile.check(names[i]));
+            new File(names[i]).delete();
+        }
+        assertTrue(pools[1].getStatistics().getReads() > pools[0]
+            .getStatistics().getReads());
+    }
+
+
+    /**
+     * Reads every record of a file as an int.
+     *
+     * @param fname
+     *            The file to read.
+     * @return The records in file order.
+     * @throws IOException
+     *             If the file cannot be read.
+     */
+    private int[] records(String fname) throws IOException {
+        byte[] bytes = Files.readAllBytes(new File(fname).toPath());
+        int[] records = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(records);
+        return records;
+    }
 }
@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A background reader that loads blocks a buffer pool is about to miss on.
+ * The pool reports every miss, and the prefetcher follows a few streams of
+ * misses, such as the two cursors of a partition scan: a miss on the block
+ * just after or just before the last block of a stream continues it upwards
+ * or downwards, and each continued stream has its next blocks in the same
+ * direction read ahead into the prefetcher's own frames. Any other miss
+ * starts a new stream in place of the one idle longest.
+ * On a miss the pool takes the block from the prefetcher if it is loaded,
+ * waits for it if it is being read, and reads it itself if it is only
+ * queued. A loaded block that is never taken, because its frame was needed
+ * for a newer block or the pool wrote the block in the meantime, is counted
+ * as wasted. The pool invalidates any copy of a block it writes, and blocks
+ * still waiting in its background writer are not read ahead, so a copy is
+ * never older than the disk. Reads use positional channel reads, which
+ * leave the file pointer the pool reads through untouched.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class ReadAheadPrefetcher extends Thread {
+    private static final int STREAMS = 4;
+    private static final int FREE = 0;
+    private static final int QUEUED = 1;
+    private static final int LOADING = 2;
+    private static final int LOADED = 3;
+    private FileChannel channel;
+    private int blockSize;
+    private WriteBehindFlusher writer;
+    private int blockCount;
+    private int depth;
+    private byte[] slab;
+    private Buffer[] frames;
+    private int[] states;
+    private boolean[] stale;
+    private long[] stamps;
+    private BlockTable<Buffer> entries;
+    private int[] streamLast;
+    private long[] streamUsed;
+    private long clock;
+    private boolean closing;
+    private Statistics stats;
+
+    /**
+     * Constructs a new ReadAheadPrefetcher. The thread is not started.
+     *
+     * @param channel
+     *            The channel of the file the blocks belong to.
+     * @param fileLength
+     *            The length of the file in bytes.
+     * @param depth
+     *            The number of blocks read ahead of each stream.
+     * @param blockSize
+     *            The number of bytes in a block.
+     * @param writer
+     *            The pool's background writer, whose staged blocks are newer
+     *            than the disk and so are never read ahead, or null.
+     * @param stats
+     *            The statistics the reads, hits and wasted blocks are
+     *            counted in.
+     */
+    public ReadAheadPrefetcher(
+        FileChannel channel,
+        long fileLength,
+        int depth,
+        int blockSize,
+        WriteBehindFlusher writer,
+        Statistics stats) {
+        super("read-ahead");
+        setDaemon(true);
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.stats = stats;
+        this.writer = writer;
+        this.depth = depth;
+        blockCount = (int)((fileLength + blockSize - 1) / blockSize);
+        int frameCount = 2 * depth;
+        slab = new byte[Buffer.slabSize(frameCount, blockSize)];
+        frames = new Buffer[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = new Buffer(slab, i * blockSize, -1);
+        }
+        states = new int[frameCount];
+        stale = new boolean[frameCount];
+        stamps = new long[frameCount];
+        entries = new BlockTable<Buffer>(frameCount);
+        streamLast = new int[STREAMS];
+        streamUsed = new long[STREAMS];
+        Arrays.fill(streamLast, -2);
+        closing = false;
+    }
+
+
+    /**
+     * Takes a block the pool missed on, if the prefetcher has it or is
+     * reading it.
+     *
+     * @param pos
+     *            The block position.
+     * @param target
+     *            The array to copy the block into.
+     * @param offset
+     *            The index in the target where the block goes.
+     * @return true if the block was copied, false if the pool must read it.
+     * @throws IOException
+     *             If the wait for the block was interrupted.
+     */
+    public synchronized boolean take(int pos, byte[] target, int offset)
+        throws IOException {
+        Buffer frame = entries.get(pos);
+        if (frame == null) {
+            return false;
+        }
+        int slot = frame.getOffset() / blockSize;
+        while (states[slot] == LOADING) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException(
+                    "Interrupted waiting for read-ahead");
+            }
+        }
+        if (states[slot] != LOADED || stale[slot]) {
+            // Queued but not started, or no longer valid
+            release(slot, states[slot] == LOADED);
+            return false;
+        }
+        System.arraycopy(slab, frame.getOffset(), target, offset, blockSize);
+        release(slot, false);
+        stats.incrementPrefetchHits();
+        return true;
+    }
+
+
+    /**
+     * Records a miss and reads ahead if it continues a stream.
+     *
+     * @param pos
+     *            The block position the pool missed on.
+     */
+    public synchronized void recordMiss(int pos) {
+        clock++;
+        int stream = -1;
+        int direction = 0;
+        for (int s = 0; s < STREAMS; s++) {
+            if (pos - streamLast[s] == 1 || pos - streamLast[s] == -1) {
+                stream = s;
+                direction = pos - streamLast[s];
+                break;
+            }
+            if (pos == streamLast[s]) {
+                streamUsed[s] = clock;
+                return;
+            }
+        }
+        if (stream < 0) {
+            stream = 0;
+            for (int s = 1; s < STREAMS; s++) {
+                if (streamUsed[s] < streamUsed[stream]) {
+                    stream = s;
+                }
+            }
+        }
+        streamLast[stream] = pos;
+        streamUsed[stream] = clock;
+        if (direction == 0) {
+            return;
+        }
+        for (int i = 1; i <= depth; i++) {
+            int next = pos + i * direction;
+            if (next < 0 || next >= blockCount) {
+                break;
+            }
+            if (writer != null && writer.isPending(next)) {
+                continue;
+            }
+            if (entries.get(next) == null && !request(next)) {
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Marks a block the pool is writing, so any copy of it read earlier is
+     * not handed out.
+     *
+     * @param pos
+     *            The block position.
+     */
+    public synchronized void invalidate(int pos) {
+        Buffer frame = entries.get(pos);
+        if (frame != null) {
+            stale[frame.getOffset() / blockSize] = true;
+        }
+    }
+
+
+    /**
+     * Marks every block held or being read, after the pool has rewritten
+     * the whole file.
+     */
+    public synchronized void invalidateAll() {
+        for (int slot = 0; slot < frames.length; slot++) {
+            if (states[slot] != FREE) {
+                stale[slot] = true;
+            }
+        }
+    }
+
+
+    /**
+     * Stops the thread, counting every loaded block never taken as wasted.
+     *
+     * @throws IOException
+     *             If the wait for the thread was interrupted.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            join();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted closing read-ahead");
+        }
+        synchronized (this) {
+            for (int slot = 0; slot < frames.length; slot++) {
+                if (states[slot] != FREE) {
+                    release(slot, states[slot] == LOADED);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Repeatedly takes the block queued first and reads it into its frame,
+     * until the prefetcher is closed.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            int slot;
+            synchronized (this) {
+                slot = nextQueued();
+                while (slot < 0 && !closing) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    slot = nextQueued();
+                }
+                if (closing) {
+                    return;
+                }
+                states[slot] = LOADING;
+            }
+            Buffer frame = frames[slot];
+            ByteBuffer bytes = ByteBuffer.wrap(slab, frame.getOffset(),
+                blockSize);
+            long position = (long)frame.getPosition() * blockSize;
+            boolean failed = false;
+            try {
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, position + bytes.position()
+                        - frame.getOffset()) < 0) {
+                        break;
+                    }
+                }
+                Arrays.fill(slab, bytes.position(), frame.getOffset()
+                    + blockSize, (byte)0);
+                stats.incrementReads();
+            }
+            catch (IOException e) {
+                failed = true;
+            }
+            synchronized (this) {
+                states[slot] = LOADED;
+                // A failed read is simply not handed out; the pool reads the
+                // block itself and sees the error there
+                stale[slot] = stale[slot] || failed;
+                stamps[slot] = ++clock;
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Queues a block to be read into a free frame, taking the frame of the
+     * longest-held loaded block if none is free.
+     *
+     * @param pos
+     *            The block position.
+     * @return true if the block was queued, false if every frame is queued
+     *         or being read.
+     */
+    private boolean request(int pos) {
+        int slot = -1;
+        for (int s = 0; s < frames.length; s++) {
+            if (states[s] == FREE) {
+                slot = s;
+                break;
+            }
+            if (states[s] == LOADED && (slot < 0 || stamps[s] < stamps[
+                slot])) {
+                slot = s;
+            }
+        }
+        if (slot < 0) {
+            return false;
+        }
+        if (states[slot] == LOADED) {
+            release(slot, true);
+        }
+        frames[slot].setPosition(pos);
+        states[slot] = QUEUED;
+        stale[slot] = false;
+        stamps[slot] = ++clock;
+        entries.put(pos, frames[slot]);
+        notifyAll();
+        return true;
+    }
+
+
+    /**
+     * Finds the queued block that was requested first.
+     *
+     * @return The slot of its frame, or -1 if no block is queued.
+     */
+    private int nextQueued() {
+        int slot = -1;
+        for (int s = 0; s < frames.length; s++) {
+            if (states[s] == QUEUED && (slot < 0 || stamps[s] < stamps[
+                slot])) {
+                slot = s;
+            }
+        }
+        return slot;
+    }
+
+
+    /**
+     * Frees a frame and forgets its block.
+     *
+     * @param slot
+     *            The frame's slot.
+     * @param wasted
+     *            true if the frame held a loaded block that was never taken.
+     */
+    private void release(int slot, boolean wasted) {
+        entries.remove(frames[slot].getPosition());
+        states[slot] = FREE;
+        stale[slot] = false;
+        if (wasted) {
+            stats.incrementPrefetchWasted();
+        }
+    }
+}
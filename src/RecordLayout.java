@@ -0,0 +1,172 @@
+/**
+ * Describes how a data file is cut into blocks and records: the number of
+ * bytes moved by each block read or write, the number of bytes in a record,
+ * and where in each record its key sits. A key is a signed big-endian
+ * integer of one or two bytes, so that it always fits the short a buffer
+ * pool's fetchKey returns.
+ * The default layout is the original file format of 4096-byte blocks of
+ * 4-byte records that start with a two-byte key. A record in that layout
+ * fits in an int, which the in-memory, local and block-partitioned sorts
+ * and the merge and distribution engines rely on; isPacked() tells whether
+ * those fast paths apply.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class RecordLayout {
+    /**
+     * The original layout of 4096-byte blocks of 4-byte records with a
+     * two-byte key first.
+     */
+    public static final RecordLayout DEFAULT = new RecordLayout(4096, 4, 0,
+        2);
+    private final int blockSize;
+    private final int recordSize;
+    private final int keyOffset;
+    private final int keyWidth;
+
+    /**
+     * Constructs a new RecordLayout.
+     *
+     * @param blockSize
+     *            The number of bytes in a block, a multiple of the record
+     *            size.
+     * @param recordSize
+     *            The number of bytes in a record.
+     * @param keyOffset
+     *            The index of the key's first byte within a record.
+     * @param keyWidth
+     *            The number of bytes in a key, 1 or 2.
+     * @throws IllegalArgumentException
+     *             If the sizes do not describe whole records in whole blocks
+     *             with the key inside each record.
+     */
+    public RecordLayout(
+        int blockSize,
+        int recordSize,
+        int keyOffset,
+        int keyWidth) {
+        if (recordSize <= 0 || blockSize <= 0
+            || blockSize % recordSize != 0) {
+            throw new IllegalArgumentException("Block size " + blockSize
+                + " is not a whole number of " + recordSize + "-byte records");
+        }
+        if (keyWidth != 1 && keyWidth != 2) {
+            throw new IllegalArgumentException("Keys must be 1 or 2 bytes, not "
+                + keyWidth);
+        }
+        if (keyOffset < 0 || keyOffset + keyWidth > recordSize) {
+            throw new IllegalArgumentException("A key at offset " + keyOffset
+                + " does not fit in a " + recordSize + "-byte record");
+        }
+        this.blockSize = blockSize;
+        this.recordSize = recordSize;
+        this.keyOffset = keyOffset;
+        this.keyWidth = keyWidth;
+    }
+
+
+    /**
+     * Gets the number of bytes in a block.
+     *
+     * @return The block size.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+
+    /**
+     * Gets the number of bytes in a record.
+     *
+     * @return The record size.
+     */
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+
+    /**
+     * Gets the index of the key's first byte within a record.
+     *
+     * @return The key offset.
+     */
+    public int getKeyOffset() {
+        return keyOffset;
+    }
+
+
+    /**
+     * Gets the number of bytes in a key.
+     *
+     * @return The key width, 1 or 2.
+     */
+    public int getKeyWidth() {
+        return keyWidth;
+    }
+
+
+    /**
+     * Gets the number of records in a block.
+     *
+     * @return The records per block.
+     */
+    public int getRecordsPerBlock() {
+        return blockSize / recordSize;
+    }
+
+
+    /**
+     * Checks whether records are 4 bytes with a two-byte key first, so that
+     * a record packs into an int whose top half is its key.
+     *
+     * @return true if records pack into an int.
+     */
+    public boolean isPacked() {
+        return recordSize == 4 && keyOffset == 0 && keyWidth == 2;
+    }
+
+
+    /**
+     * Creates a layout with the same records in blocks of another size.
+     *
+     * @param size
+     *            The number of bytes in a block.
+     * @return The new layout.
+     */
+    public RecordLayout withBlockSize(int size) {
+        return new RecordLayout(size, recordSize, keyOffset, keyWidth);
+    }
+
+
+    /**
+     * Reads a key from a copy of a record.
+     *
+     * @param bytes
+     *            The array holding the record.
+     * @param recordStart
+     *            The index of the record's first byte.
+     * @return The key.
+     */
+    public short keyAt(byte[] bytes, int recordStart) {
+        int i = recordStart + keyOffset;
+        if (keyWidth == 1) {
+            return bytes[i];
+        }
+        return (short)((bytes[i] << 8) | (bytes[i + 1] & 0xFF));
+    }
+
+
+    /**
+     * Describes the layout.
+     *
+     * @return The block size, record size and key position as text.
+     */
+    @Override
+    public String toString() {
+        return blockSize + "-byte blocks of " + recordSize
+            + "-byte records, key at " + keyOffset + " (" + keyWidth
+            + " bytes)";
+    }
+}
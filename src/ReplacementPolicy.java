@@ -0,0 +1,119 @@
+/**
+ * Decides which buffer the pool gives up when a block has to be loaded and
+ * every buffer is in use. An implementation keeps track of the resident
+ * buffers, learns from every hit through search, and names the buffer to
+ * evict through peekVictim and dequeue.
+ * Buffers with a negative position are empty frames; they are never indexed
+ * and are always preferred as victims over buffers that hold a block.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Searches for the buffer holding a block and records the reference.
+     *
+     * @param pos
+     *            The block position to search for.
+     * @return The buffer holding the block, or null if it is not resident.
+     */
+    Buffer search(int pos);
+
+
+    /**
+     * Finds the buffer holding a block without recording a reference, so
+     * looking does not change what is evicted next.
+     *
+     * @param pos
+     *            The block position to look for.
+     * @return The buffer holding the block, or null if it is not resident.
+     */
+    Buffer get(int pos);
+
+
+    /**
+     * Admits a newly loaded buffer. The pool makes room with dequeue or
+     * recycle first, so the policy never holds more than its capacity.
+     *
+     * @param buff
+     *            The buffer to admit.
+     */
+    void enqueue(Buffer buff);
+
+
+    /**
+     * Names the buffer that the next dequeue or recycle will evict, without
+     * evicting it.
+     *
+     * @return The next victim, or null if the policy holds no buffers.
+     */
+    Buffer peekVictim();
+
+
+    /**
+     * Evicts the victim buffer and returns it.
+     *
+     * @return The evicted buffer, or null if the policy holds no buffers.
+     */
+    Buffer dequeue();
+
+
+    /**
+     * Evicts the victim buffer and readmits the same buffer for a new block,
+     * as a clean buffer. The caller writes the victim back beforehand if it is
+     * dirty.
+     *
+     * @param pos
+     *            The block position the recycled buffer will hold.
+     * @return The recycled buffer, or null if the policy holds no buffers.
+     */
+    Buffer recycle(int pos);
+
+
+    /**
+     * Gets the number of buffers the policy currently holds.
+     *
+     * @return The number of buffers held.
+     */
+    int getSize();
+
+
+    /**
+     * Gets the number of buffers the policy can hold.
+     *
+     * @return The capacity of the policy.
+     */
+    int getCapacity();
+
+
+    /**
+     * Creates a replacement policy by its command line name.
+     *
+     * @param name
+     *            One of lru, clock, 2q, arc or lru2.
+     * @param capacity
+     *            The number of buffers the policy will manage.
+     * @return The new policy.
+     * @throws IllegalArgumentException
+     *             If the name is not a known policy.
+     */
+    static ReplacementPolicy forName(String name, int capacity) {
+        switch (name) {
+            case "lru":
+                return new Queue(capacity);
+            case "clock":
+                return new ClockPolicy(capacity);
+            case "2q":
+                return new TwoQueuePolicy(capacity);
+            case "arc":
+                return new ArcPolicy(capacity);
+            case "lru2":
+                return new LruKPolicy(capacity, 2);
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown replacement policy: " + name);
+        }
+    }
+}
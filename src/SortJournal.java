@@ -0,0 +1,332 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A journal that lets a quicksort killed part way through resume from its
+ * last checkpoint instead of starting over. Two small files sit next to the
+ * data file. The journal, name.journal, describes the last checkpoint: its
+ * number, the length of the data file, whether the sort had reached its
+ * final insertion pass, and the ranges still to be partitioned with their
+ * depth budgets. It is written in full to name.journal.tmp and renamed over
+ * the old one, so it is always whole. The undo log, name.undo, starts with
+ * the number of the checkpoint it belongs to and then holds the contents
+ * every block had at that checkpoint, saved just before the block's first
+ * write since.
+ * A checkpoint flushes the pool, so the data file holds exactly the state
+ * the new journal describes, writes the journal and empties the undo log.
+ * Between checkpoints the pool reports each block it is about to write, and
+ * the first report of a block appends its old contents to the undo log
+ * before the write goes ahead. A sort that dies at any point leaves the data
+ * file as its last checkpoint plus writes the undo log can take back: on
+ * resume the blocks in the undo log are put back, if the log belongs to the
+ * journal's checkpoint, and the sort carries on from the journal's ranges.
+ * A log entry cut short by the crash is ignored, since its block's write
+ * never started.
+ * Files are written but not forced to disk, so a checkpoint survives the
+ * process dying, not the machine. A journal is only valid for the file it
+ * was taken of and the same sort options; the files are deleted once the
+ * sort is done.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class SortJournal {
+    private static final int MAGIC = 0x514a524e;
+    private File journalFile;
+    private File tempFile;
+    private File undoFile;
+    private RandomAccessFile data;
+    private RandomAccessFile undo;
+    private int blockSize;
+    private long fileLength;
+    private long intervalNanos;
+    private long lastCheckpoint;
+    private long sequence;
+    private BitSet saved;
+    private byte[] entry;
+    private boolean resumed;
+    private boolean insertionPhase;
+    private List<long[]> ranges;
+
+    /**
+     * Constructs a new SortJournal for a data file. If a journal of the file
+     * is left from a sort that did not finish, the blocks in its undo log
+     * are put back so the file is as it was at the last checkpoint.
+     *
+     * @param dataPath
+     *            The path of the data file.
+     * @param layout
+     *            The layout giving the file's block size.
+     * @param intervalMillis
+     *            The least time between checkpoints, in milliseconds.
+     * @throws IOException
+     *             If the files cannot be read or written, or a journal left
+     *             behind describes a file of another length.
+     */
+    public SortJournal(
+        String dataPath,
+        RecordLayout layout,
+        long intervalMillis)
+        throws IOException {
+        journalFile = new File(dataPath + ".journal");
+        tempFile = new File(dataPath + ".journal.tmp");
+        undoFile = new File(dataPath + ".undo");
+        blockSize = layout.getBlockSize();
+        intervalNanos = intervalMillis * 1000000L;
+        data = new RandomAccessFile(dataPath, "rw");
+        fileLength = data.length();
+        saved = new BitSet();
+        entry = new byte[4 + blockSize];
+        ranges = new ArrayList<long[]>();
+        if (journalFile.exists()) {
+            readJournal();
+            rollBack();
+            resumed = true;
+        }
+        undo = new RandomAccessFile(undoFile, "rw");
+        resetUndo();
+        lastCheckpoint = System.nanoTime();
+    }
+
+
+    /**
+     * Checks whether the sort is picking up from a checkpoint.
+     *
+     * @return true if a journal was found and the file rolled back to it.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+
+    /**
+     * Checks whether the checkpoint resumed from was taken at the start of
+     * the final insertion pass.
+     *
+     * @return true if only the insertion pass is left.
+     */
+    public boolean isInsertionPhase() {
+        return insertionPhase;
+    }
+
+
+    /**
+     * Gets the ranges the checkpoint resumed from had still to partition,
+     * each the first and last record index and the depth budget left, in
+     * the order they were waiting in.
+     *
+     * @return The ranges.
+     */
+    public List<long[]> getRanges() {
+        return ranges;
+    }
+
+
+    /**
+     * Checks whether the interval since the last checkpoint has passed.
+     *
+     * @return true if a checkpoint should be taken.
+     */
+    public boolean isDue() {
+        return System.nanoTime() - lastCheckpoint >= intervalNanos;
+    }
+
+
+    /**
+     * Takes a checkpoint: flushes the pool, replaces the journal with one
+     * describing the remaining work and empties the undo log. The time it
+     * takes is added to the pool's "checkpoint" phase.
+     *
+     * @param pool
+     *            The pool sorting the file.
+     * @param pending
+     *            The ranges still to partition, as first index, last index
+     *            and depth budget.
+     * @param insertion
+     *            true if the partitioning is done and only the final
+     *            insertion pass is left.
+     * @throws IOException
+     *             If the pool cannot be flushed or the journal written.
+     */
+    public void checkpoint(
+        BufferPool pool,
+        Collection<long[]> pending,
+        boolean insertion)
+        throws IOException {
+        long begin = System.nanoTime();
+        pool.flush();
+        sequence++;
+        FileOutputStream file = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            file));
+        out.writeInt(MAGIC);
+        out.writeLong(sequence);
+        out.writeLong(fileLength);
+        out.writeBoolean(insertion);
+        out.writeInt(pending.size());
+        for (long[] range : pending) {
+            out.writeLong(range[0]);
+            out.writeLong(range[1]);
+            out.writeInt((int)range[2]);
+        }
+        out.flush();
+        file.getFD().sync();
+        out.close();
+        Files.move(tempFile.toPath(), journalFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        resetUndo();
+        lastCheckpoint = System.nanoTime();
+        pool.getStatistics().addPhaseTime("checkpoint", lastCheckpoint
+            - begin);
+    }
+
+
+    /**
+     * Saves a block's contents at the last checkpoint to the undo log, if
+     * this is its first write since. The pool calls it before writing the
+     * block to the file.
+     *
+     * @param pos
+     *            The block position.
+     * @throws IOException
+     *             If the block cannot be read or the log written.
+     */
+    public void beforeWrite(int pos) throws IOException {
+        if (saved.get(pos)) {
+            return;
+        }
+        int length = blockLength(pos);
+        data.seek((long)pos * blockSize);
+        data.readFully(entry, 4, length);
+        entry[0] = (byte)(pos >> 24);
+        entry[1] = (byte)(pos >> 16);
+        entry[2] = (byte)(pos >> 8);
+        entry[3] = (byte)pos;
+        // One write per entry, so a crash can only cut off the last one
+        undo.write(entry, 0, 4 + length);
+        saved.set(pos);
+    }
+
+
+    /**
+     * Ends the journal once the sorted file is flushed, deleting its files.
+     *
+     * @throws IOException
+     *             If the files cannot be closed.
+     */
+    public void finish() throws IOException {
+        undo.close();
+        data.close();
+        journalFile.delete();
+        undoFile.delete();
+    }
+
+
+    /**
+     * Reads the journal left by an unfinished sort.
+     *
+     * @throws IOException
+     *             If it cannot be read or belongs to another file.
+     */
+    private void readJournal() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(journalFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a sort journal: " + journalFile);
+            }
+            sequence = in.readLong();
+            if (in.readLong() != fileLength) {
+                throw new IOException(journalFile
+                    + " belongs to a file of another length");
+            }
+            insertionPhase = in.readBoolean();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ranges.add(new long[] { in.readLong(), in.readLong(), in
+                    .readInt() });
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Puts back the blocks saved in the undo log, if the log belongs to the
+     * journal's checkpoint. A log of another checkpoint is one the crash
+     * left before it was emptied, with no writes after it.
+     *
+     * @throws IOException
+     *             If the log cannot be read or the blocks written.
+     */
+    private void rollBack() throws IOException {
+        if (!undoFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(undoFile)));
+        try {
+            if (in.readLong() != sequence) {
+                return;
+            }
+            while (true) {
+                int pos = in.readInt();
+                int length = blockLength(pos);
+                in.readFully(entry, 0, length);
+                data.seek((long)pos * blockSize);
+                data.write(entry, 0, length);
+            }
+        }
+        catch (EOFException e) {
+            // The end of the log, or an entry whose write never started
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Empties the undo log and starts it for the current checkpoint.
+     *
+     * @throws IOException
+     *             If the log cannot be written.
+     */
+    private void resetUndo() throws IOException {
+        undo.setLength(0);
+        undo.seek(0);
+        undo.writeLong(sequence);
+        saved.clear();
+    }
+
+
+    /**
+     * Gets the number of bytes in a block, which is less than the block
+     * size for a short last block.
+     *
+     * @param pos
+     *            The block position.
+     * @return The length of the block.
+     */
+    private int blockLength(int pos) {
+        return (int)Math.min(blockSize, fileLength - (long)pos * blockSize);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * The settings that choose how QuicksortManager sorts a file through the
+ * buffer pool. A new SortOptions describes the original algorithm: one
+ * thread, Hoare partitioning around a median of three, and small partitions
+ * left for a final insertion sort over the whole file, without a journal.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class SortOptions {
+    private int threads;
+    private boolean localSort;
+    private String partition;
+    private String pivot;
+    private SortJournal journal;
+
+    /**
+     * Constructs a new SortOptions with the default settings.
+     */
+    public SortOptions() {
+        threads = 1;
+        localSort = false;
+        partition = "hoare";
+        pivot = "median3";
+        journal = null;
+    }
+
+
+    /**
+     * Gets the number of fork/join threads to sort with.
+     *
+     * @return The number of threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+
+    /**
+     * Sets the number of fork/join threads to sort with. More than one
+     * requires a thread-safe buffer pool.
+     *
+     * @param threads
+     *            The number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+
+    /**
+     * Checks whether small partitions are sorted as soon as they are formed.
+     *
+     * @return true if small partitions are sorted locally, false if they are
+     *         left for the final insertion sort.
+     */
+    public boolean isLocalSort() {
+        return localSort;
+    }
+
+
+    /**
+     * Sets whether small partitions are sorted as soon as they are formed,
+     * while their blocks are still resident, instead of by a final insertion
+     * sort over the whole file.
+     *
+     * @param localSort
+     *            true to sort small partitions locally.
+     */
+    public void setLocalSort(boolean localSort) {
+        this.localSort = localSort;
+    }
+
+
+    /**
+     * Gets the name of the partitioning scheme.
+     *
+     * @return The scheme name.
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+
+    /**
+     * Sets the partitioning scheme: "hoare" for the two-way partition that
+     * scans in from both ends, "threeway" for the Bentley-McIlroy partition
+     * that gathers the records equal to the pivot in the middle so they take
+     * no further part in the sort, or "block" for the two-way partition
+     * that exchanges records between local copies of whole blocks.
+     *
+     * @param partition
+     *            The scheme name.
+     * @throws IllegalArgumentException
+     *             If the name is not a known scheme.
+     */
+    public void setPartition(String partition) {
+        if (!partition.equals("hoare") && !partition.equals("threeway")
+            && !partition.equals("block")) {
+            throw new IllegalArgumentException("Unknown partition scheme: "
+                + partition);
+        }
+        this.partition = partition;
+    }
+
+
+    /**
+     * Gets the name of the pivot strategy.
+     *
+     * @return The strategy name.
+     */
+    public String getPivot() {
+        return pivot;
+    }
+
+
+    /**
+     * Sets the pivot strategy: "median3" for the median of the first, middle
+     * and last records, or "sampled" for the ninther of nine records spread
+     * over large ranges, each taken from a block the pool already holds
+     * where one is near.
+     *
+     * @param pivot
+     *            The strategy name.
+     * @throws IllegalArgumentException
+     *             If the name is not a known strategy.
+     */
+    public void setPivot(String pivot) {
+        if (!pivot.equals("median3") && !pivot.equals("sampled")) {
+            throw new IllegalArgumentException("Unknown pivot strategy: "
+                + pivot);
+        }
+        this.pivot = pivot;
+    }
+
+
+    /**
+     * Gets the journal the sort takes checkpoints in.
+     *
+     * @return The journal, or null if the sort cannot be resumed.
+     */
+    public SortJournal getJournal() {
+        return journal;
+    }
+
+
+    /**
+     * Sets a journal for the sort to take checkpoints in, and to resume
+     * from if it holds one. Only a single-threaded sort keeps a journal.
+     *
+     * @param journal
+     *            The journal, or null for none.
+     */
+    public void setJournal(SortJournal journal) {
+        this.journal = journal;
+    }
+}
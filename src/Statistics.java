@@ -1,3 +1,7 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Provides a centralized storage for statistics related to data processing
  * activities, such as caching hits,
@@ -5,24 +9,77 @@
  * monitor and analyze the performance
  * of data buffering and sorting operations, facilitating optimization and
  * debugging efforts.
+ * Every buffer pool and sort engine keeps its own Statistics, so sorts run
+ * one after another or side by side in one JVM are measured separately. The
+ * counters are LongAdders, which the sorting threads and the background
+ * reader and writer can all update without losing counts or overflowing.
+ * Time spent in each phase of a sort is kept in nanoseconds by phase name,
+ * and the latencies of serving a miss and of writing a block back are kept
+ * as histograms. toJson() describes everything in one machine-readable line.
  */
 /**
  * @author {Ibrahim Khalilov} {Francisca Wood}
  * @version {ibrahimk} {fransciscawood}
  */
 public class Statistics {
-    private static int hits = 0;
-    private static int reads = 0;
-    private static int writes = 0;
-    private static long executionTime = 0;
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder reads;
+    private LongAdder writes;
+    private LongAdder evictions;
+    private LongAdder prefetchHits;
+    private LongAdder prefetchWasted;
+    private LatencyHistogram missLatency;
+    private LatencyHistogram writeLatency;
+    private Map<String, Long> phaseNanos;
+    private volatile long executionNanos;
+
+    /**
+     * Constructs a new Statistics with every counter at zero.
+     */
+    public Statistics() {
+        hits = new LongAdder();
+        misses = new LongAdder();
+        reads = new LongAdder();
+        writes = new LongAdder();
+        evictions = new LongAdder();
+        prefetchHits = new LongAdder();
+        prefetchWasted = new LongAdder();
+        missLatency = new LatencyHistogram();
+        writeLatency = new LatencyHistogram();
+        phaseNanos = new LinkedHashMap<String, Long>();
+        executionNanos = 0;
+    }
+
 
     /**
      * Retrieves the total execution time recorded.
      *
      * @return The total execution time in milliseconds.
      */
-    public static long measureTime() {
-        return executionTime;
+    public long measureTime() {
+        return executionNanos / 1000000;
+    }
+
+
+    /**
+     * Retrieves the total execution time recorded.
+     *
+     * @return The total execution time in nanoseconds.
+     */
+    public long getExecutionNanos() {
+        return executionNanos;
+    }
+
+
+    /**
+     * Sets the total execution time.
+     *
+     * @param nanos
+     *            total time it took to execute the sort, in nanoseconds.
+     */
+    public void setExecutionNanos(long nanos) {
+        executionNanos = nanos;
     }
 
 
@@ -31,18 +88,34 @@ public class Statistics {
      *
      * @return The total number of cache hits.
      */
-    public static int getHits() {
-        return hits;
+    public long getHits() {
+        return hits.sum();
     }
 
 
     /**
      * Increments the total number of cache hits recorded.
+     */
+    public void incrementHits() {
+        hits.increment();
+    }
+
+
+    /**
+     * Retrieves the number of lookups that missed the pool.
      *
-     * @return The total number of cache hits.
+     * @return The number of misses.
      */
-    public static int incrementHits() {
-        return hits++;
+    public long getMisses() {
+        return misses.sum();
+    }
+
+
+    /**
+     * Increments the number of lookups that missed the pool.
+     */
+    public void incrementMisses() {
+        misses.increment();
     }
 
 
@@ -51,18 +124,16 @@ public class Statistics {
      *
      * @return The total number of disk reads.
      */
-    public static int getReads() {
-        return reads;
+    public long getReads() {
+        return reads.sum();
     }
 
 
     /**
      * Increments the total number of disk reads recorded.
-     *
-     * @return The total number of disk reads.
      */
-    public static int incrementReads() {
-        return reads++;
+    public void incrementReads() {
+        reads.increment();
     }
 
 
@@ -71,28 +142,145 @@ public class Statistics {
      *
      * @return The total number of disk writes.
      */
-    public static int getWrites() {
-        return writes;
+    public long getWrites() {
+        return writes.sum();
     }
 
 
     /**
      * Increments the total number of disk writes recorded.
+     */
+    public void incrementWrites() {
+        writes.increment();
+    }
+
+
+    /**
+     * Retrieves the number of blocks evicted to make room for others.
      *
-     * @return The total number of disk writes.
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+
+    /**
+     * Increments the number of blocks evicted to make room for others.
+     */
+    public void incrementEvictions() {
+        evictions.increment();
+    }
+
+
+    /**
+     * Retrieves the number of misses served by a block read ahead.
+     *
+     * @return The number of prefetch hits.
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+
+    /**
+     * Increments the number of misses served by a block read ahead.
+     */
+    public void incrementPrefetchHits() {
+        prefetchHits.increment();
+    }
+
+
+    /**
+     * Retrieves the number of blocks read ahead but never used.
+     *
+     * @return The number of wasted prefetches.
+     */
+    public long getPrefetchWasted() {
+        return prefetchWasted.sum();
+    }
+
+
+    /**
+     * Increments the number of blocks read ahead but never used.
+     */
+    public void incrementPrefetchWasted() {
+        prefetchWasted.increment();
+    }
+
+
+    /**
+     * Gets the latencies of serving a miss, from the lookup that missed to
+     * the block being ready in the pool.
+     *
+     * @return The miss latency histogram.
+     */
+    public LatencyHistogram getMissLatency() {
+        return missLatency;
+    }
+
+
+    /**
+     * Gets the latencies of writing dirty blocks back, one entry per write.
+     *
+     * @return The write-back latency histogram.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+
+    /**
+     * Adds time spent in a phase of the sort, such as "quicksort",
+     * "insertion" or "flush".
+     *
+     * @param phase
+     *            The phase name.
+     * @param nanos
+     *            The time to add, in nanoseconds.
+     */
+    public synchronized void addPhaseTime(String phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+
+    /**
+     * Gets the time spent in a phase of the sort.
+     *
+     * @param phase
+     *            The phase name.
+     * @return The time in nanoseconds, or 0 if the phase never ran.
      */
-    public static int incrementWrites() {
-        return writes++;
+    public synchronized long getPhaseNanos(String phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
     }
 
 
     /**
-     * Sets the total number of disk write operations recorded.
+     * Describes every counter, phase time and latency histogram as a single
+     * line of JSON.
      *
-     * @param time
-     *            total time it took to execute the program.
+     * @return The JSON text.
      */
-    public static void setExecutionTime(long time) {
-        executionTime = time;
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"hits\":").append(getHits());
+        json.append(",\"misses\":").append(getMisses());
+        json.append(",\"reads\":").append(getReads());
+        json.append(",\"writes\":").append(getWrites());
+        json.append(",\"evictions\":").append(getEvictions());
+        json.append(",\"prefetchHits\":").append(getPrefetchHits());
+        json.append(",\"prefetchWasted\":").append(getPrefetchWasted());
+        json.append(",\"executionNanos\":").append(executionNanos);
+        json.append(",\"phaseNanos\":{");
+        String separator = "";
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            json.append(separator).append('"').append(phase.getKey()).append(
+                "\":").append(phase.getValue());
+            separator = ",";
+        }
+        json.append("},\"missLatency\":").append(missLatency.toJson());
+        json.append(",\"writeLatency\":").append(writeLatency.toJson());
+        return json.append('}').toString();
     }
 }
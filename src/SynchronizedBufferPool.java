@@ -0,0 +1,195 @@
+import java.io.IOException;
+
+/**
+ * Makes any buffer pool safe to share between threads by running every
+ * operation under one lock. Each operation, including a swap that touches
+ * two blocks, is atomic with respect to the others, and the statistics the
+ * wrapped pool keeps are only updated while the lock is held.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class SynchronizedBufferPool implements BufferPool {
+    private final BufferPool pool;
+
+    /**
+     * Constructs a new SynchronizedBufferPool around an existing pool, which
+     * must not be used directly afterwards.
+     *
+     * @param pool
+     *            The pool to guard.
+     */
+    public SynchronizedBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized short fetchKey(long index) throws IOException {
+        return pool.fetchKey(index);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void retrieveBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        pool.retrieveBytes(fromArray, bytesCopied, destinationPos);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void storeBytes(
+        byte[] fromArray,
+        int bytesCopied,
+        long destinationPos)
+        throws IOException {
+        pool.storeBytes(fromArray, bytesCopied, destinationPos);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int readRecord(long index) throws IOException {
+        return pool.readRecord(index);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void writeRecord(long index, int record)
+        throws IOException {
+        pool.writeRecord(index, record);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void swapRecords(long first, long second)
+        throws IOException {
+        pool.swapRecords(first, second);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void readRecords(long index, int[] records, int count)
+        throws IOException {
+        pool.readRecords(index, records, count);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void writeRecords(
+        long index,
+        int[] records,
+        int count)
+        throws IOException {
+        pool.writeRecords(index, records, count);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean fitsInMemory() {
+        return pool.fitsInMemory();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int[] readAllRecords() throws IOException {
+        return pool.readAllRecords();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void writeAllRecords(int[] records)
+        throws IOException {
+        pool.writeAllRecords(records);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFileLength() {
+        return pool.getFileLength();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statistics getStatistics() {
+        return pool.getStatistics();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RecordLayout getLayout() {
+        return pool.getLayout();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isResident(long index) {
+        return pool.isResident(index);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        pool.flush();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void closeFileStream() throws IOException {
+        pool.closeFileStream();
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * The 2Q replacement policy of Johnson and Shasha. A block seen once enters
+ * the FIFO queue A1in; a hit there does not promote it, so a sequential scan
+ * passes through A1in without disturbing the hot blocks. When a block leaves
+ * A1in its number is remembered in the ghost queue A1out, and a block that is
+ * loaded again while still remembered there has proven reuse and goes to the
+ * LRU queue Am. Victims come from A1in while it is larger than a quarter of
+ * the pool, otherwise from the tail of Am.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private Queue recent;
+    private Queue frequent;
+    private Queue ghosts;
+    private int recentTarget;
+    private int ghostLimit;
+    private int capacity;
+
+    /**
+     * Constructs a new TwoQueuePolicy. A1in is kept to a quarter of the
+     * capacity and A1out remembers up to half the capacity in block numbers.
+     *
+     * @param capacity
+     *            The maximum number of buffers the policy can hold.
+     */
+    public TwoQueuePolicy(int capacity) {
+        this.capacity = capacity;
+        recentTarget = Math.max(1, capacity / 4);
+        ghostLimit = Math.max(1, capacity / 2);
+        recent = new Queue(capacity);
+        frequent = new Queue(capacity);
+        ghosts = new Queue(ghostLimit);
+    }
+
+
+    /**
+     * Searches for the buffer holding a block. A hit in Am makes the block
+     * the most recently used; a hit in A1in changes nothing.
+     *
+     * @param pos
+     *            The block position to search for.
+     * @return The buffer holding the block, or null if it is not resident.
+     */
+    @Override
+    public Buffer search(int pos) {
+        Buffer found = frequent.search(pos);
+        if (found == null) {
+            found = recent.get(pos);
+        }
+        return found;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer get(int pos) {
+        Buffer found = frequent.get(pos);
+        return found == null ? recent.get(pos) : found;
+    }
+
+
+    /**
+     * Admits a newly loaded buffer into Am if its block is remembered in
+     * A1out, and into A1in otherwise.
+     *
+     * @param buff
+     *            The buffer to admit.
+     */
+    @Override
+    public void enqueue(Buffer buff) {
+        if (buff.getPosition() >= 0 && ghosts.remove(
+            buff.getPosition()) != null) {
+            frequent.enqueue(buff);
+        }
+        else {
+            recent.enqueue(buff);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer peekVictim() {
+        return victimQueue().peekVictim();
+    }
+
+
+    /**
+     * Evicts the victim and, if it came from A1in, remembers its block in
+     * A1out.
+     *
+     * @return The evicted buffer, or null if the policy holds no buffers.
+     */
+    @Override
+    public Buffer dequeue() {
+        Queue from = victimQueue();
+        Buffer victim = from.dequeue();
+        if (victim != null && from == recent && victim.getPosition() >= 0) {
+            remember(victim.getPosition());
+        }
+        return victim;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Buffer recycle(int pos) {
+        Buffer victim = dequeue();
+        if (victim == null) {
+            return null;
+        }
+        victim.setPosition(pos);
+        victim.setDirty(false);
+        enqueue(victim);
+        return victim;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSize() {
+        return recent.getSize() + frequent.getSize();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Chooses the queue the next victim comes from: A1in while it is over
+     * its target size or Am is empty, Am otherwise.
+     *
+     * @return The queue to evict from.
+     */
+    private Queue victimQueue() {
+        if (recent.getSize() > recentTarget || frequent.getSize() == 0) {
+            return recent;
+        }
+        return frequent;
+    }
+
+
+    /**
+     * Remembers an evicted block in A1out, forgetting the oldest remembered
+     * block if A1out is full.
+     *
+     * @param pos
+     *            The block position to remember.
+     */
+    private void remember(int pos) {
+        if (ghosts.getSize() >= ghostLimit) {
+            ghosts.dequeue();
+        }
+        ghosts.enqueue(new Buffer(null, pos));
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A background writer that takes dirty blocks off the eviction path of a
+ * buffer pool. When the pool evicts a dirty buffer it hands the block to the
+ * flusher, which copies it into one of its own staging frames and returns at
+ * once, so the pool can reuse the buffer without waiting for the disk. The
+ * flusher's thread writes the staged blocks out in position order, merging
+ * blocks with consecutive positions into a single write.
+ * A staged block stays visible until it is on disk: reading it back is
+ * served from its staging frame, and staging it again before the thread has
+ * taken it overwrites the frame instead of queueing a second copy. The pool
+ * only has to wait when every staging frame is still waiting to be written.
+ * The pool also cleans ahead of eviction: after each miss it offers the
+ * next victim, if dirty, through tryStage, which takes it only if a staging
+ * frame is free and never waits. By the time the victim is evicted its
+ * block is usually staged or on disk already, so eviction has nothing to
+ * write.
+ * Writes use positional channel writes, which leave the file pointer the
+ * pool reads through untouched.
+ */
+/**
+ * @author {Ibrahim Khalilov} {Francisca Wood}
+ * @version {ibrahimk} {fransciscawood}
+ */
+public class WriteBehindFlusher extends Thread {
+    private int blockSize;
+    private long fileLength;
+    private FileChannel channel;
+    private byte[] slab;
+    private Buffer[] frames;
+    private int[] freeSlots;
+    private int freeCount;
+    private Buffer[] queue;
+    private int queued;
+    private BlockTable<Buffer> pending;
+    private byte[] run;
+    private IOException failure;
+    private boolean closing;
+    private int stalls;
+    private int cleanedAhead;
+    private Statistics stats;
+
+    /**
+     * Constructs a new WriteBehindFlusher. The thread is not started.
+     *
+     * @param channel
+     *            The channel of the file the blocks belong to.
+     * @param fileLength
+     *            The length of the file in bytes; a short last block is
+     *            written only up to it.
+     * @param frameCount
+     *            The number of staging frames, which is the number of blocks
+     *            that can wait to be written before eviction has to wait.
+     * @param blockSize
+     *            The number of bytes in a block.
+     * @param stats
+     *            The statistics the writes and their latencies are counted in.
+     */
+    public WriteBehindFlusher(
+        FileChannel channel,
+        long fileLength,
+        int frameCount,
+        int blockSize,
+        Statistics stats) {
+        super("write-behind");
+        setDaemon(true);
+        this.channel = channel;
+        this.fileLength = fileLength;
+        this.blockSize = blockSize;
+        this.stats = stats;
+        slab = new byte[Buffer.slabSize(frameCount, blockSize)];
+        frames = new Buffer[frameCount];
+        freeSlots = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = new Buffer(slab, i * blockSize, -1);
+            freeSlots[i] = frameCount - 1 - i;
+        }
+        freeCount = frameCount;
+        queue = new Buffer[frameCount];
+        queued = 0;
+        pending = new BlockTable<Buffer>(frameCount);
+        run = new byte[slab.length];
+        closing = false;
+        stalls = 0;
+        cleanedAhead = 0;
+    }
+
+
+    /**
+     * Stages a dirty buffer's block to be written and marks the buffer
+     * clean. Waits only if every staging frame is in use.
+     *
+     * @param buffer
+     *            The dirty buffer.
+     * @throws IOException
+     *             If an earlier write failed or the wait was interrupted.
+     */
+    public synchronized void stage(Buffer buffer) throws IOException {
+        checkFailure();
+        int pos = buffer.getPosition();
+        // A staging frame that is dirty has not been taken by the thread yet
+        // and can simply be overwritten
+        Buffer frame = pending.get(pos);
+        if (frame == null || !frame.isDirty()) {
+            if (freeCount == 0) {
+                stalls++;
+                while (freeCount == 0) {
+                    await();
+                    checkFailure();
+                }
+            }
+            frame = frames[freeSlots[--freeCount]];
+            frame.setPosition(pos);
+            frame.setDirty(true);
+            pending.put(pos, frame);
+            queue[queued++] = frame;
+            notifyAll();
+        }
+        System.arraycopy(buffer.getByteArray(), buffer.getOffset(), slab, frame
+            .getOffset(), blockSize);
+        buffer.setDirty(false);
+    }
+
+
+    /**
+     * Stages a dirty buffer ahead of its eviction if a staging frame is free
+     * or already holds the block, and marks it clean. Never waits.
+     *
+     * @param buffer
+     *            The dirty buffer that is next to be evicted.
+     * @return true if the buffer was staged, false if every staging frame
+     *         is in use.
+     * @throws IOException
+     *             If an earlier write failed.
+     */
+    public synchronized boolean tryStage(Buffer buffer) throws IOException {
+        checkFailure();
+        Buffer frame = pending.get(buffer.getPosition());
+        if (freeCount == 0 && (frame == null || !frame.isDirty())) {
+            return false;
+        }
+        stage(buffer);
+        cleanedAhead++;
+        return true;
+    }
+
+
+    /**
+     * Copies a block that is staged but may not be on disk yet.
+     *
+     * @param pos
+     *            The block position.
+     * @param target
+     *            The array to copy the block into.
+     * @param offset
+     *            The index in the target where the block goes.
+     * @return true if the block was staged and copied, false if the disk
+     *         holds its latest contents.
+     */
+    public synchronized boolean readPending(
+        int pos,
+        byte[] target,
+        int offset) {
+        Buffer frame = pending.get(pos);
+        if (frame == null) {
+            return false;
+        }
+        System.arraycopy(slab, frame.getOffset(), target, offset, blockSize);
+        return true;
+    }
+
+
+    /**
+     * Checks whether a block is staged but may not be on disk yet.
+     *
+     * @param pos
+     *            The block position.
+     * @return true if the block is staged.
+     */
+    public synchronized boolean isPending(int pos) {
+        return pending.get(pos) != null;
+    }
+
+
+    /**
+     * Waits until every staged block is on disk.
+     *
+     * @throws IOException
+     *             If a write failed or the wait was interrupted.
+     */
+    public synchronized void drain() throws IOException {
+        while (pending.getSize() > 0 && failure == null) {
+            await();
+        }
+        checkFailure();
+    }
+
+
+    /**
+     * Writes out every staged block and stops the thread.
+     *
+     * @throws IOException
+     *             If a write failed or the wait was interrupted.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            join();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted closing flusher");
+        }
+        checkFailure();
+    }
+
+
+    /**
+     * Gets the number of times a block could not be staged at once because
+     * every staging frame was waiting to be written.
+     *
+     * @return The number of stalls.
+     */
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+
+    /**
+     * Gets the number of dirty buffers staged ahead of their eviction.
+     *
+     * @return The number of buffers cleaned ahead.
+     */
+    public synchronized int getCleanedAhead() {
+        return cleanedAhead;
+    }
+
+
+    /**
+     * Repeatedly takes every queued block, writes them out in position order
+     * and frees their staging frames, until the flusher is closed and the
+     * queue is empty.
+     */
+    @Override
+    public void run() {
+        Buffer[] batch = new Buffer[frames.length];
+        Comparator<Buffer> byPosition = Comparator.comparingInt(
+            Buffer::getPosition);
+        while (true) {
+            int count;
+            synchronized (this) {
+                while (queued == 0 && !closing) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queued == 0) {
+                    return;
+                }
+                count = queued;
+                for (int i = 0; i < count; i++) {
+                    batch[i] = queue[i];
+                    batch[i].setDirty(false);
+                }
+                queued = 0;
+            }
+            Arrays.sort(batch, 0, count, byPosition);
+            IOException error = null;
+            try {
+                writeRuns(batch, count);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                for (int i = 0; i < count; i++) {
+                    int pos = batch[i].getPosition();
+                    if (pending.get(pos) == batch[i]) {
+                        pending.remove(pos);
+                    }
+                    freeSlots[freeCount++] = batch[i].getOffset() / blockSize;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Writes a batch of staged blocks sorted by position, one write per run
+     * of consecutive positions. Statistics count one write per block.
+     *
+     * @param batch
+     *            The staging frames, sorted by position.
+     * @param count
+     *            The number of frames in the batch.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void writeRuns(Buffer[] batch, int count) throws IOException {
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && batch[end].getPosition() == batch[end - 1]
+                .getPosition() + 1) {
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                System.arraycopy(slab, batch[i].getOffset(), run, (i - start)
+                    * blockSize, blockSize);
+                stats.incrementWrites();
+            }
+            long position = (long)batch[start].getPosition() * blockSize;
+            int length = (int)Math.min((long)(end - start) * blockSize,
+                fileLength - position);
+            ByteBuffer bytes = ByteBuffer.wrap(run, 0, length);
+            long begin = System.nanoTime();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, position + bytes.position());
+            }
+            stats.getWriteLatency().record(System.nanoTime() - begin);
+            start = end;
+        }
+    }
+
+
+    /**
+     * Waits to be notified by the thread.
+     *
+     * @throws IOException
+     *             If the wait was interrupted.
+     */
+    private void await() throws IOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for writes");
+        }
+    }
+
+
+    /**
+     * Rethrows the first write failure of the thread, if there was one.
+     *
+     * @throws IOException
+     *             If a write failed.
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}